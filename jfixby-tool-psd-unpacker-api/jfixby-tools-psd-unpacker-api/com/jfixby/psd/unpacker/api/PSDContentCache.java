@@ -0,0 +1,23 @@
+package com.jfixby.psd.unpacker.api;
+
+/** In-process cache of unpacked files, keyed by file path, size and modification time. Entries are weighted by the bytes of
+ * their decoded rasters. Disabled while the byte budget is 0. Unpacking with a layer filter bypasses the cache. */
+public interface PSDContentCache {
+
+	void setByteBudget (long bytes);
+
+	long getByteBudget ();
+
+	long getBytesUsed ();
+
+	int size ();
+
+	long getHits ();
+
+	long getMisses ();
+
+	long getEvictions ();
+
+	void clear ();
+
+}
@@ -1,9 +1,13 @@
 package com.jfixby.psd.unpacker.api;
 
 import com.jfixby.scarabei.api.collections.Collection;
+import com.jfixby.scarabei.api.util.path.AbsolutePath;
 import com.jfixby.scarabei.api.util.path.MountPoint;
 
-public interface PSDFileContent extends MountPoint {
+/** Unpacked file. The content is reference counted: {@link PSDUnpacker#unpack(PSDUnpackingParameters)} hands out one
+ * reference, every {@link #retain()} adds one, and each of them must be matched by exactly one {@link #close()}. Raster
+ * memory is released when the last reference is closed. */
+public interface PSDFileContent extends MountPoint, AutoCloseable {
 
 	void print();
 
@@ -13,6 +17,28 @@ public interface PSDFileContent extends MountPoint {
 
 	Collection<PSDLayer> getRasterLayerGroups();
 
+	/** @return the layer at a path like "ui/buttons/ok", null if there is none. Of siblings with equal names the last one is
+	 *         found, like with {@link PSDLayer#findChildByName(String)}. */
+	PSDLayer findByPath(String path);
+
+	PSDLayer findByPath(AbsolutePath<PSDFileContent> path);
+
+	/** @return all layers whose path starts with the given string, in document order */
+	Collection<PSDLayer> findByPathPrefix(String prefix);
+
+	/** @return metrics of the unpack that produced this content, shared by all its references */
+	PSDUnpackMetrics getMetrics();
+
+	/** @deprecated use {@link #close()} */
+	@Deprecated
 	void dropRaster();
 
+	/** Adds a reference for another consumer.
+	 *
+	 * @throws IllegalStateException if the content was already closed */
+	PSDFileContent retain();
+
+	@Override
+	void close();
+
 }
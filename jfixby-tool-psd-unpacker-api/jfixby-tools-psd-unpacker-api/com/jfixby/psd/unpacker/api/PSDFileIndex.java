@@ -0,0 +1,63 @@
+package com.jfixby.psd.unpacker.api;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import com.jfixby.scarabei.api.collections.Collection;
+
+/** Header, image resources, layer tree and channel offsets of one PSD file. Any raster layer can be decoded by reading just
+ * its own channel data. Keeps the file open until closed.
+ * <p>
+ * The index may come from a sidecar file next to the PSD file, see {@link #SIDECAR_EXTENSION}. A sidecar is only used while
+ * the size and modification time of the PSD file are the ones it was written for. */
+public interface PSDFileIndex extends Closeable {
+
+	/** Appended to the name of the PSD file, e.g. "art.psd.psdindex". */
+	String SIDECAR_EXTENSION = ".psdindex";
+
+	/** @return true if the index was read from a sidecar file instead of the PSD file */
+	boolean isFromSidecar();
+
+	long getFileSize();
+
+	long getLastModified();
+
+	int getWidth();
+
+	int getHeight();
+
+	int getNumberOfChannels();
+
+	long getImageResourcesOffset();
+
+	long getImageResourcesLength();
+
+	long getImageDataOffset();
+
+	int getNumberOfImageResources();
+
+	int getImageResourceID(int i);
+
+	/** @return absolute file offset of the data of the resource */
+	long getImageResourceOffset(int i);
+
+	long getImageResourceLength(int i);
+
+	/** @return raster layers and groups in document order, every group is followed by its content. Groups have no size. */
+	Collection<PSDLayerRecord> getLayers();
+
+	/** @return the layer at the path, same paths as {@link PSDFileContent#findByPath(String)}, null if there is none */
+	PSDLayerRecord findByPath(String path);
+
+	boolean isFolder(PSDLayerRecord layer);
+
+	/** Reads and decodes the pixels of one raster layer of this index. The caller owns the returned raster and releases it. */
+	PSDRaster readRaster(PSDLayerRecord layer) throws IOException;
+
+	/** Same as {@link #readRaster(PSDLayerRecord)}, decoded rasters are looked up in and stored to the cache. */
+	PSDRaster readRaster(PSDLayerRecord layer, PSDRasterCache cache) throws IOException;
+
+	@Override
+	void close() throws IOException;
+
+}
@@ -0,0 +1,28 @@
+package com.jfixby.psd.unpacker.api;
+
+import java.io.IOException;
+
+/** Thrown when a file is rejected as corrupt, truncated or not supported. */
+public class PSDFormatException extends IOException {
+
+	private static final long serialVersionUID = 3817245561042392361L;
+
+	private final PSD_FORMAT_PROBLEM problem;
+	private final long offset;
+
+	public PSDFormatException(PSD_FORMAT_PROBLEM problem, long offset, String message) {
+		super(problem + " at " + offset + ": " + message);
+		this.problem = problem;
+		this.offset = offset;
+	}
+
+	public PSD_FORMAT_PROBLEM getProblem() {
+		return problem;
+	}
+
+	/** @return file offset the problem was found at, -1 if unknown */
+	public long getOffset() {
+		return offset;
+	}
+
+}
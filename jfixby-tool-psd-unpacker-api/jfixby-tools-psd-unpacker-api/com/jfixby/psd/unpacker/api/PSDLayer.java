@@ -27,6 +27,12 @@ public interface PSDLayer {
 
 	PSDRaster getRaster ();
 
+	/** Layers with identical pixel data are decoded once and share one raster, see
+	 * {@link PSDUnpackingParameters#setDeduplicateLayers(boolean)}. The shared image must not be modified.
+	 *
+	 * @return the first layer in document order whose raster this layer shares, null if the pixels are its own */
+	PSDLayer getRasterAliasOf ();
+
 	AbsolutePath<PSDFileContent> getPath ();
 
 	void dropRaster ();
@@ -35,4 +41,7 @@ public interface PSDLayer {
 
 	double getOpacity ();
 
+	/** @return ID that Photoshop keeps for the layer across edits, -1 if the file does not store one */
+	int getLayerID ();
+
 }
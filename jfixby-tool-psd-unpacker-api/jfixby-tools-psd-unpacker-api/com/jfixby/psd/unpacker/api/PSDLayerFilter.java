@@ -0,0 +1,9 @@
+package com.jfixby.psd.unpacker.api;
+
+public interface PSDLayerFilter {
+
+	/** Called once per raster layer before its channels are read. Rejected layers are skipped without decoding and do not
+	 * appear in the resulting {@link PSDFileContent}. */
+	boolean accept (PSDLayerRecord layer);
+
+}
@@ -0,0 +1,31 @@
+package com.jfixby.psd.unpacker.api;
+
+/** Layer record as seen by the reader before any pixel data of the layer is decoded. */
+public interface PSDLayerRecord {
+
+	String getName ();
+
+	/** @return names of the enclosing groups and the layer itself joined with '/', e.g. "ui/buttons/ok" */
+	String getPath ();
+
+	boolean isVisible ();
+
+	/** @return true if the layer and all of its enclosing groups are visible */
+	boolean isVisibleInTree ();
+
+	int getX ();
+
+	int getY ();
+
+	int getWidth ();
+
+	int getHeight ();
+
+	/** @return ID that Photoshop keeps for the layer across edits, -1 if the file does not store one */
+	int getLayerID ();
+
+	/** Hash of the compressed channel data of the layer. The data is read but not decoded. Available while the record is
+	 * being passed to a {@link PSDLayerFilter}. */
+	String getFingerprint ();
+
+}
@@ -0,0 +1,25 @@
+package com.jfixby.psd.unpacker.api;
+
+/** Configurable {@link PSDLayerFilter}. A layer is accepted only if it passes every criterion that was set. */
+public interface PSDLayerSelector extends PSDLayerFilter {
+
+	/** @param glob pattern over {@link PSDLayerRecord#getPath()}: '*' matches within one path step, '**' across steps, '?' a
+	 *           single character. */
+	void setPathGlob (String glob);
+
+	String getPathGlob ();
+
+	void setNamePrefix (String prefix);
+
+	String getNamePrefix ();
+
+	/** @param visible_only accept only layers that are visible together with all enclosing groups */
+	void setVisibleOnly (boolean visible_only);
+
+	boolean getVisibleOnly ();
+
+	void setMinSize (int width, int height);
+
+	void setMaxSize (int width, int height);
+
+}
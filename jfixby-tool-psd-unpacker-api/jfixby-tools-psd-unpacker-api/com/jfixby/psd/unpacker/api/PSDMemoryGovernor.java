@@ -0,0 +1,30 @@
+package com.jfixby.psd.unpacker.api;
+
+/** Admission control for unpacks running at the same time. Every unpack reserves the memory it will need before it
+ * allocates it: the bytes of the file before the file is read, then the decoded rasters and the decoding buffers estimated
+ * from the layer records before any pixel data is decoded. With a {@link PSDLayerFilter} only the layers it accepts are
+ * reserved, each before it is decoded. An unpack that does not fit into the byte budget waits until
+ * running unpacks finish or their contents are closed. The rasters stay reserved until the content is closed, contents
+ * kept by the {@link PSDContentCache} are left to the budget of the cache.
+ * <p>
+ * An unpack never waits when no other unpack is running, so a document bigger than the budget is unpacked alone instead of
+ * never. Disabled while the byte budget is 0. */
+public interface PSDMemoryGovernor {
+
+	void setByteBudget (long bytes);
+
+	long getByteBudget ();
+
+	/** @return bytes reserved by running unpacks and open contents */
+	long getBytesReserved ();
+
+	/** @return unpacks waiting for memory right now */
+	int getNumberOfWaitingUnpacks ();
+
+	/** @return number of times an unpack had to wait for memory */
+	long getWaits ();
+
+	/** @return memory needed to decode the document of the report, the file itself included */
+	long estimate (PSDStructureReport report);
+
+}
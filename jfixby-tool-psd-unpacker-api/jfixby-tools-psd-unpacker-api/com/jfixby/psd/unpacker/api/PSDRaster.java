@@ -2,6 +2,9 @@ package com.jfixby.psd.unpacker.api;
 
 import java.awt.image.BufferedImage;
 
+/** Decoded layer pixels. The raster is reference counted: its document holds one reference, {@link #retain()} adds one,
+ * {@link #release()} removes one. The pixel memory is returned for reuse when the count drops to zero and
+ * {@link #getBufferedImage()} returns null from then on. */
 public interface PSDRaster {
 
 	PSDRasterPosition getPosition();
@@ -10,6 +13,15 @@ public interface PSDRaster {
 
 	BufferedImage getBufferedImage();
 
+	/** Keeps the raster alive after its document is closed.
+	 *
+	 * @throws IllegalStateException if the raster was already released */
+	PSDRaster retain();
+
+	void release();
+
+	/** @deprecated use {@link #release()} */
+	@Deprecated
 	void drop();
 
 }
@@ -0,0 +1,13 @@
+package com.jfixby.psd.unpacker.api;
+
+/** Storage for decoded layer rasters. Keys are derived from the compressed channel bytes of a layer and the decoding options,
+ * so an entry never goes stale: a changed layer simply gets a different key. */
+public interface PSDRasterCache {
+
+	/** @param argb destination for width*height ARGB pixels
+	 * @return true if the entry was found and copied into argb */
+	boolean load (String key, int width, int height, int[] argb);
+
+	void store (String key, int width, int height, int[] argb);
+
+}
@@ -0,0 +1,55 @@
+package com.jfixby.psd.unpacker.api;
+
+/** Result of the structural pre-scan: section layout and size estimates, read without decoding or allocating any pixel data.
+ * The scan stops at the first problem found. */
+public interface PSDStructureReport {
+
+	boolean isValid();
+
+	PSD_FORMAT_PROBLEM getProblem();
+
+	/** @return file offset of the problem, -1 if the file is valid */
+	long getProblemOffset();
+
+	String getProblemDescription();
+
+	/** @throws PSDFormatException if the file is not valid */
+	void check() throws PSDFormatException;
+
+	long getFileSize();
+
+	int getWidth();
+
+	int getHeight();
+
+	int getNumberOfChannels();
+
+	long getImageResourcesOffset();
+
+	long getImageResourcesLength();
+
+	long getLayerAndMaskOffset();
+
+	long getLayerAndMaskLength();
+
+	long getImageDataOffset();
+
+	int getNumberOfLayers();
+
+	/** @return layers with non-empty bounds, the ones that get a raster */
+	int getNumberOfRasterLayers();
+
+	int getNumberOfRawChannels();
+
+	int getNumberOfRLEChannels();
+
+	/** @return stored size of all layer channel data */
+	long getChannelDataBytes();
+
+	/** @return memory the decoded ARGB rasters of all layers will take */
+	long getDecodedRasterBytes();
+
+	/** @return the biggest single plane the decoder will have to allocate */
+	long getLargestPlaneBytes();
+
+}
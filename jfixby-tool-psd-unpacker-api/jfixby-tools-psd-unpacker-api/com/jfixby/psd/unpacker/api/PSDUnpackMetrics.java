@@ -0,0 +1,47 @@
+package com.jfixby.psd.unpacker.api;
+
+/** Where time and memory went while unpacking. Every unpacked file carries the metrics of its own decode, batches sum
+ * them up with {@link #add(PSDUnpackMetrics)} into an instance from {@link PSDUnpacker#newMetrics()}. */
+public interface PSDUnpackMetrics {
+
+	long getNanos(PSD_UNPACK_PHASE phase);
+
+	long getTotalNanos();
+
+	int getNumberOfFiles();
+
+	/** @return bytes consumed from the file by the reader */
+	long getBytesRead();
+
+	/** @return bytes stepped over without being looked at */
+	long getBytesSkipped();
+
+	/** @return bytes of decoded planes the reader asked for, pooled or not */
+	long getPlaneBytesAllocated();
+
+	/** @return bytes of ARGB rasters the reader asked for */
+	long getRasterBytesAllocated();
+
+	int getNumberOfLayers();
+
+	int getNumberOfDecodedLayers();
+
+	/** @return layers taken from the raster cache instead of being decoded */
+	int getNumberOfCachedLayers();
+
+	/** @return layers that share the raster of an identical layer decoded before them */
+	int getNumberOfSharedLayers();
+
+	/** @return layers rejected by the layer filter */
+	int getNumberOfFilteredLayers();
+
+	/** @return decoded layers whose color channels are stored with the given compression */
+	int getNumberOfLayers(PSD_COMPRESSION compression);
+
+	int getNumberOfChannels(PSD_COMPRESSION compression);
+
+	void add(PSDUnpackMetrics other);
+
+	void reset();
+
+}
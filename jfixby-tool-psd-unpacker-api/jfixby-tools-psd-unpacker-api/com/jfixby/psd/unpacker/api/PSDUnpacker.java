@@ -1,6 +1,7 @@
 package com.jfixby.psd.unpacker.api;
 
 import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
 
 import com.jfixby.scarabei.api.ComponentInstaller;
 
@@ -26,8 +27,54 @@ public class PSDUnpacker {
 		return invoke().newUnpackingSpecs();
 	}
 
+	public static PSDLayerSelector newLayerSelector() {
+		return invoke().newLayerSelector();
+	}
+
+	public static PSDRasterCache newDiskRasterCache(java.io.File cache_folder, long max_size_in_bytes) {
+		return invoke().newDiskRasterCache(cache_folder, max_size_in_bytes);
+	}
+
+	public static PSDContentCache getContentCache() {
+		return invoke().getContentCache();
+	}
+
+	public static PSDMemoryGovernor getMemoryGovernor() {
+		return invoke().getMemoryGovernor();
+	}
+
+	public static PSDUnpackMetrics newMetrics() {
+		return invoke().newMetrics();
+	}
+
 	public static final PSDFileContent unpack(PSDUnpackingParameters params) throws IOException {
 		return invoke().unpack(params);
 	}
 
+	/** Reads the file on the I/O executor and decodes it on the decode executor of the parameters. The future fails with the
+	 * exception {@link #unpack(PSDUnpackingParameters)} would throw. Cancelling the future stops the decoding at the next
+	 * layer and releases what was decoded so far. A content that completes an already cancelled future is closed.
+	 *
+	 * @see PSDUnpackingParameters#setIOExecutor(java.util.concurrent.Executor)
+	 * @see PSDUnpackingParameters#setDecodeExecutor(java.util.concurrent.Executor) */
+	public static final CompletableFuture<PSDFileContent> unpackAsync(PSDUnpackingParameters params) {
+		return invoke().unpackAsync(params);
+	}
+
+	public static final PSDFileIndex openIndex(java.nio.file.Path psd_file, boolean write_sidecar) throws IOException {
+		return invoke().openIndex(psd_file, write_sidecar);
+	}
+
+	/** Composites a group, or the whole document from its root layer, into one raster with visibility, opacity and blend mode
+	 * of every layer. The layer itself is drawn even if hidden. The caller owns the returned raster and releases it.
+	 *
+	 * @return the pixels positioned at the top left of the visible content, null if nothing visible is left */
+	public static final PSDRaster flatten(PSDLayer layer) {
+		return invoke().flatten(layer);
+	}
+
+	public static final PSDStructureReport scan(PSDUnpackingParameters params) throws IOException {
+		return invoke().scan(params);
+	}
+
 }
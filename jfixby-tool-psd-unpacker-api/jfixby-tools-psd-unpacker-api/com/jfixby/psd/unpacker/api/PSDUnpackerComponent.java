@@ -1,13 +1,37 @@
 package com.jfixby.psd.unpacker.api;
 
 import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
 
 public interface PSDUnpackerComponent {
 
 	PSDFileContent unpack(PSDUnpackingParameters params) throws IOException;
 
+	/** Unpacks on the executors of the parameters, see {@link PSDUnpacker#unpackAsync(PSDUnpackingParameters)}. */
+	CompletableFuture<PSDFileContent> unpackAsync(PSDUnpackingParameters params);
+
+	/** Walks the section and channel lengths of the file without decoding it. */
+	PSDStructureReport scan(PSDUnpackingParameters params) throws IOException;
+
+	/** Opens the index of the file. A valid sidecar index next to the file is used instead of reading the layer records.
+	 *
+	 * @param write_sidecar store the index next to the file when it had to be built */
+	PSDFileIndex openIndex(java.nio.file.Path psd_file, boolean write_sidecar) throws IOException;
+
+	/** Composites the visible layers below the given layer into one raster, see {@link PSDUnpacker#flatten(PSDLayer)}. */
+	PSDRaster flatten(PSDLayer layer);
+
 	PSDUnpackingParameters newUnpackingSpecs();
 
-	
+	PSDLayerSelector newLayerSelector();
+
+	PSDRasterCache newDiskRasterCache(java.io.File cache_folder, long max_size_in_bytes);
+
+	PSDContentCache getContentCache();
+
+	PSDMemoryGovernor getMemoryGovernor();
+
+	PSDUnpackMetrics newMetrics();
+
 
 }
@@ -8,8 +8,61 @@ public interface PSDUnpackingParameters {
 
 	File getPSDFile();
 
+	/** Reads the document from the stream instead of a file, through a window of fixed size, without copying the whole
+	 * stream first. The stream is read up to the end of the layer data and is not closed. A stream, a channel or a buffer
+	 * is used in this order before the file. Streams are not pre-scanned and not kept in the content cache, and
+	 * {@link PSDUnpacker#unpackAsync(PSDUnpackingParameters)} reads them on the decode executor. */
+	void setPSDStream(java.io.InputStream stream);
+
+	java.io.InputStream getPSDStream();
+
+	/** Same as {@link #setPSDStream(java.io.InputStream)} for a channel. Skipped data is seeked over if the channel is a
+	 * {@link java.nio.channels.SeekableByteChannel}. A selectable channel must be in blocking mode. */
+	void setPSDChannel(java.nio.channels.ReadableByteChannel channel);
+
+	java.nio.channels.ReadableByteChannel getPSDChannel();
+
+	/** Reads the document from the remaining bytes of the buffer, which may be direct or a mapped file. The buffer is not
+	 * copied and its position is left as it was, so it must not change until the unpacking is done. */
+	void setPSDBuffer(java.nio.ByteBuffer buffer);
+
+	java.nio.ByteBuffer getPSDBuffer();
+
 	boolean getCrashOnMask();
 
 	void setCrashOnMask(boolean value);
 
+	void setLayerFilter(PSDLayerFilter filter);
+
+	PSDLayerFilter getLayerFilter();
+
+	void setRasterCache(PSDRasterCache cache);
+
+	PSDRasterCache getRasterCache();
+
+	/** With true the rasters hold premultiplied pixels in a {@link java.awt.image.BufferedImage#TYPE_INT_ARGB_PRE} image,
+	 * computed while the planes are packed. False by default. */
+	void setPremultipliedAlpha(boolean value);
+
+	boolean getPremultipliedAlpha();
+
+	/** With true layers whose compressed channel data, size and compression are identical are decoded once and share one
+	 * raster, see {@link PSDLayer#getRasterAliasOf()}. Costs a hash over the channel data of every layer and the shared
+	 * images must not be modified, so false by default. */
+	void setDeduplicateLayers(boolean value);
+
+	boolean getDeduplicateLayers();
+
+	/** Runs the blocking file reads of {@link PSDUnpacker#unpackAsync(PSDUnpackingParameters)}. Null by default: virtual
+	 * threads where the runtime has them, a cached pool of daemon threads otherwise. */
+	void setIOExecutor(java.util.concurrent.Executor executor);
+
+	java.util.concurrent.Executor getIOExecutor();
+
+	/** Runs the decoding of {@link PSDUnpacker#unpackAsync(PSDUnpackingParameters)}. Null by default: a shared pool with
+	 * one platform thread per core. */
+	void setDecodeExecutor(java.util.concurrent.Executor executor);
+
+	java.util.concurrent.Executor getDecodeExecutor();
+
 }
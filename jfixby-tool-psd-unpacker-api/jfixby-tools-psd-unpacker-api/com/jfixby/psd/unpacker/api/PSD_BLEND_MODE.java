@@ -1,7 +1,21 @@
 package com.jfixby.psd.unpacker.api;
 
+/** Blend modes of Photoshop layers. PASS_THROUGH is only used by groups whose content blends directly with the layers below
+ * the group. */
 public enum PSD_BLEND_MODE {
 
 	NORMAL, HUE, UNKNOWN, MULTIPLY,
 
+	PASS_THROUGH, DISSOLVE,
+
+	DARKEN, COLOR_BURN, LINEAR_BURN, DARKER_COLOR,
+
+	LIGHTEN, SCREEN, COLOR_DODGE, LINEAR_DODGE, LIGHTER_COLOR,
+
+	OVERLAY, SOFT_LIGHT, HARD_LIGHT, VIVID_LIGHT, LINEAR_LIGHT, PIN_LIGHT, HARD_MIX,
+
+	DIFFERENCE, EXCLUSION, SUBTRACT, DIVIDE,
+
+	SATURATION, COLOR, LUMINOSITY,
+
 }
@@ -0,0 +1,7 @@
+package com.jfixby.psd.unpacker.api;
+
+public enum PSD_COMPRESSION {
+
+	RAW, RLE, ZIP, ZIP_PREDICTION,
+
+}
@@ -0,0 +1,8 @@
+package com.jfixby.psd.unpacker.api;
+
+public enum PSD_FORMAT_PROBLEM {
+
+	NONE, TRUNCATED, BAD_SIGNATURE, UNSUPPORTED_VERSION, UNSUPPORTED_FORMAT, BAD_DIMENSIONS, SECTION_OVERFLOW, BAD_LAYER_RECORD,
+	UNSUPPORTED_COMPRESSION, MALFORMED_DATA,
+
+}
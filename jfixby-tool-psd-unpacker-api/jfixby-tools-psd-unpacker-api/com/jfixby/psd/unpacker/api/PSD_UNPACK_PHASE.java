@@ -0,0 +1,8 @@
+package com.jfixby.psd.unpacker.api;
+
+public enum PSD_UNPACK_PHASE {
+
+	FILE_READ, PRE_SCAN, HEADER, IMAGE_RESOURCES, LAYER_RECORDS, CHANNEL_READ, RASTER_CACHE_LOAD, RLE_DECODE, INTERLEAVE,
+	TREE_BUILD,
+
+}
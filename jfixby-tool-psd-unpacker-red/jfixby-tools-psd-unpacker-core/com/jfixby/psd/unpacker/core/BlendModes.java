@@ -0,0 +1,201 @@
+package com.jfixby.psd.unpacker.core;
+
+import com.jfixby.psd.unpacker.api.PSD_BLEND_MODE;
+
+/** Blend functions B(backdrop, source) on colors in [0, 1], as in the W3C compositing specification. Photoshop modes
+ * without a published formula (hard mix, darker and lighter color) use the usual approximations. Dissolve blends like
+ * normal. */
+final class BlendModes {
+
+	private BlendModes () {
+	}
+
+	/** @return true if the mode leaves the backdrop out, so the source can be drawn with plain source-over */
+	static boolean isNormal (final PSD_BLEND_MODE mode) {
+		return mode == PSD_BLEND_MODE.NORMAL || mode == PSD_BLEND_MODE.DISSOLVE || mode == PSD_BLEND_MODE.UNKNOWN
+			|| mode == PSD_BLEND_MODE.PASS_THROUGH;
+	}
+
+	/** Stores B(cb, cs) in result, all three arrays are r, g, b. */
+	static void blend (final PSD_BLEND_MODE mode, final float[] cb, final float[] cs, final float[] result) {
+		switch (mode) {
+		case HUE:
+			setSat(cs, sat(cb), result);
+			setLum(result, lum(cb), result);
+			return;
+		case SATURATION:
+			setSat(cb, sat(cs), result);
+			setLum(result, lum(cb), result);
+			return;
+		case COLOR:
+			setLum(cs, lum(cb), result);
+			return;
+		case LUMINOSITY:
+			setLum(cb, lum(cs), result);
+			return;
+		case DARKER_COLOR:
+			copy(lum(cs) < lum(cb) ? cs : cb, result);
+			return;
+		case LIGHTER_COLOR:
+			copy(lum(cs) > lum(cb) ? cs : cb, result);
+			return;
+		default:
+			for (int i = 0; i < 3; i++) {
+				result[i] = channel(mode, cb[i], cs[i]);
+			}
+		}
+	}
+
+	static float channel (final PSD_BLEND_MODE mode, final float cb, final float cs) {
+		switch (mode) {
+		case MULTIPLY:
+			return cb * cs;
+		case SCREEN:
+			return screen(cb, cs);
+		case OVERLAY:
+			return hardLight(cs, cb);
+		case DARKEN:
+			return Math.min(cb, cs);
+		case LIGHTEN:
+			return Math.max(cb, cs);
+		case COLOR_DODGE:
+			return colorDodge(cb, cs);
+		case COLOR_BURN:
+			return colorBurn(cb, cs);
+		case HARD_LIGHT:
+			return hardLight(cb, cs);
+		case SOFT_LIGHT:
+			return softLight(cb, cs);
+		case DIFFERENCE:
+			return Math.abs(cb - cs);
+		case EXCLUSION:
+			return cb + cs - 2 * cb * cs;
+		case LINEAR_DODGE:
+			return Math.min(1, cb + cs);
+		case LINEAR_BURN:
+			return Math.max(0, cb + cs - 1);
+		case VIVID_LIGHT:
+			return cs <= 0.5f ? colorBurn(cb, 2 * cs) : colorDodge(cb, 2 * cs - 1);
+		case LINEAR_LIGHT:
+			return clamp(cb + 2 * cs - 1);
+		case PIN_LIGHT:
+			return cs <= 0.5f ? Math.min(cb, 2 * cs) : Math.max(cb, 2 * cs - 1);
+		case HARD_MIX:
+			return cb + cs >= 1 ? 1 : 0;
+		case SUBTRACT:
+			return Math.max(0, cb - cs);
+		case DIVIDE:
+			if (cs <= 0) {
+				return cb <= 0 ? 0 : 1;
+			}
+			return Math.min(1, cb / cs);
+		default:
+			return cs;
+		}
+	}
+
+	private static float screen (final float cb, final float cs) {
+		return cb + cs - cb * cs;
+	}
+
+	private static float hardLight (final float cb, final float cs) {
+		if (cs <= 0.5f) {
+			return cb * 2 * cs;
+		}
+		return screen(cb, 2 * cs - 1);
+	}
+
+	private static float colorDodge (final float cb, final float cs) {
+		if (cb <= 0) {
+			return 0;
+		}
+		if (cs >= 1) {
+			return 1;
+		}
+		return Math.min(1, cb / (1 - cs));
+	}
+
+	private static float colorBurn (final float cb, final float cs) {
+		if (cb >= 1) {
+			return 1;
+		}
+		if (cs <= 0) {
+			return 0;
+		}
+		return 1 - Math.min(1, (1 - cb) / cs);
+	}
+
+	private static float softLight (final float cb, final float cs) {
+		if (cs <= 0.5f) {
+			return cb - (1 - 2 * cs) * cb * (1 - cb);
+		}
+		final float d = cb <= 0.25f ? ((16 * cb - 12) * cb + 4) * cb : (float)Math.sqrt(cb);
+		return cb + (2 * cs - 1) * (d - cb);
+	}
+
+	private static float clamp (final float value) {
+		return value < 0 ? 0 : value > 1 ? 1 : value;
+	}
+
+	private static void copy (final float[] c, final float[] result) {
+		result[0] = c[0];
+		result[1] = c[1];
+		result[2] = c[2];
+	}
+
+	private static float lum (final float[] c) {
+		return 0.3f * c[0] + 0.59f * c[1] + 0.11f * c[2];
+	}
+
+	private static float sat (final float[] c) {
+		return Math.max(c[0], Math.max(c[1], c[2])) - Math.min(c[0], Math.min(c[1], c[2]));
+	}
+
+	/** c and result may be the same array */
+	private static void setLum (final float[] c, final float l, final float[] result) {
+		final float d = l - lum(c);
+		float r = c[0] + d;
+		float g = c[1] + d;
+		float b = c[2] + d;
+		// clip back into range keeping the luminosity
+		final float n = Math.min(r, Math.min(g, b));
+		final float x = Math.max(r, Math.max(g, b));
+		if (n < 0) {
+			final float k = l / (l - n);
+			r = l + (r - l) * k;
+			g = l + (g - l) * k;
+			b = l + (b - l) * k;
+		}
+		if (x > 1) {
+			final float k = (1 - l) / (x - l);
+			r = l + (r - l) * k;
+			g = l + (g - l) * k;
+			b = l + (b - l) * k;
+		}
+		result[0] = r;
+		result[1] = g;
+		result[2] = b;
+	}
+
+	/** c and result must be different arrays */
+	private static void setSat (final float[] c, final float s, final float[] result) {
+		int max = c[0] >= c[1] ? 0 : 1;
+		max = c[2] > c[max] ? 2 : max;
+		int min = c[0] < c[1] ? 0 : 1;
+		min = c[2] < c[min] ? 2 : min;
+		if (min == max) {
+			// grey, any order does
+			min = (max + 1) % 3;
+		}
+		final int mid = 3 - max - min;
+		if (c[max] > c[min]) {
+			result[mid] = (c[mid] - c[min]) * s / (c[max] - c[min]);
+			result[max] = s;
+		} else {
+			result[mid] = 0;
+			result[max] = 0;
+		}
+		result[min] = 0;
+	}
+
+}
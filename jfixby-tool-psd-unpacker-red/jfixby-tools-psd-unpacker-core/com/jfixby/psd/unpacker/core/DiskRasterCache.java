@@ -0,0 +1,215 @@
+package com.jfixby.psd.unpacker.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.jfixby.psd.unpacker.api.PSDRasterCache;
+import com.jfixby.scarabei.api.log.L;
+
+/** {@link PSDRasterCache} keeping one file per entry in a folder that may be shared by several processes.
+ * <p>
+ * Entry files are a 16 byte header (magic, version, width, height) followed by little-endian ARGB pixels, and are read
+ * through a memory mapping. Entries are written to a temporary file and atomically renamed into place, so readers never
+ * observe partial data. Each hit refreshes the modification time of the entry which is then used as the LRU order when
+ * the folder grows over the size limit. Eviction runs under an exclusive file lock. */
+public class DiskRasterCache implements PSDRasterCache {
+
+	static final String ENTRY_EXTENSION = ".argb";
+	static final String TEMP_EXTENSION = ".tmp";
+	static final String LOCK_FILE_NAME = "cache.lock";
+
+	static final int MAGIC = 0x50534452;
+	static final int VERSION = 1;
+	static final int HEADER_SIZE = 16;
+	static final int WRITE_CHUNK_SIZE = 64 * 1024;
+	static final long STALE_TEMP_FILE_AGE = 10 * 60 * 1000L;
+
+	private final Path folder;
+	private final long max_size;
+	private final AtomicLong estimated_size = new AtomicLong(-1);
+
+	public DiskRasterCache (final File folder, final long max_size) {
+		this.folder = folder.toPath();
+		this.max_size = max_size;
+	}
+
+	@Override
+	public boolean load (final String key, final int width, final int height, final int[] argb) {
+		final Path file = this.folder.resolve(key + ENTRY_EXTENSION);
+		if (!Files.isRegularFile(file)) {
+			return false;
+		}
+		final long expected_size = HEADER_SIZE + 4L * width * height;
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			if (channel.size() != expected_size) {
+				return false;
+			}
+			final MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, expected_size);
+			map.order(ByteOrder.LITTLE_ENDIAN);
+			if (map.getInt(0) != MAGIC || map.getInt(4) != VERSION || map.getInt(8) != width || map.getInt(12) != height) {
+				return false;
+			}
+			map.position(HEADER_SIZE);
+			map.slice().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().get(argb, 0, width * height);
+		} catch (final IOException e) {
+			// evicted by another process in the meantime
+			return false;
+		}
+		try {
+			Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+		} catch (final IOException e) {
+		}
+		return true;
+	}
+
+	@Override
+	public void store (final String key, final int width, final int height, final int[] argb) {
+		final Path file = this.folder.resolve(key + ENTRY_EXTENSION);
+		Path temp = null;
+		try {
+			Files.createDirectories(this.folder);
+			temp = Files.createTempFile(this.folder, key, TEMP_EXTENSION);
+			try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+				writeEntry(channel, width, height, argb);
+			}
+			try {
+				Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE);
+			} catch (final AtomicMoveNotSupportedException e) {
+				Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+			}
+			temp = null;
+		} catch (final IOException e) {
+			L.e("failed to store raster " + key, e);
+			return;
+		} finally {
+			if (temp != null) {
+				try {
+					Files.deleteIfExists(temp);
+				} catch (final IOException e) {
+				}
+			}
+		}
+		this.added(HEADER_SIZE + 4L * width * height);
+	}
+
+	private static void writeEntry (final FileChannel channel, final int width, final int height, final int[] argb)
+		throws IOException {
+		final ByteBuffer buffer = ByteBuffer.allocate(WRITE_CHUNK_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.putInt(MAGIC).putInt(VERSION).putInt(width).putInt(height);
+		final int n = width * height;
+		int i = 0;
+		while (true) {
+			final IntBuffer ints = buffer.asIntBuffer();
+			final int count = Math.min(ints.remaining(), n - i);
+			ints.put(argb, i, count);
+			buffer.position(buffer.position() + count * 4);
+			i = i + count;
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			buffer.clear();
+			if (i >= n) {
+				return;
+			}
+		}
+	}
+
+	private void added (final long bytes) {
+		final long size = this.estimated_size.get();
+		if (size < 0 || this.estimated_size.addAndGet(bytes) > this.max_size) {
+			this.evict();
+		}
+	}
+
+	/** Deletes least recently used entries until the folder is back under 3/4 of the size limit. */
+	public synchronized void evict () {
+		final Path lock_file = this.folder.resolve(LOCK_FILE_NAME);
+		try (FileChannel lock_channel = FileChannel.open(lock_file, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+			final FileLock lock = lock_channel.lock();
+			try {
+				final ArrayList<Entry> entries = new ArrayList<>();
+				long total = 0;
+				final long now = System.currentTimeMillis();
+				try (DirectoryStream<Path> files = Files.newDirectoryStream(this.folder)) {
+					for (final Path file : files) {
+						final String name = file.getFileName().toString();
+						if (name.endsWith(ENTRY_EXTENSION)) {
+							final Entry entry = new Entry(file, Files.size(file),
+								Files.getLastModifiedTime(file).toMillis());
+							entries.add(entry);
+							total = total + entry.size;
+						} else if (name.endsWith(TEMP_EXTENSION)
+							&& now - Files.getLastModifiedTime(file).toMillis() > STALE_TEMP_FILE_AGE) {
+							// left behind by a crashed writer
+							Files.deleteIfExists(file);
+						}
+					}
+				}
+				if (total > this.max_size) {
+					Collections.sort(entries, OLDEST_FIRST);
+					final long target = this.max_size / 4 * 3;
+					for (int i = 0; i < entries.size() && total > target; i++) {
+						final Entry entry = entries.get(i);
+						try {
+							Files.deleteIfExists(entry.file);
+							total = total - entry.size;
+						} catch (final IOException e) {
+							// still mapped by a reader on a platform that does not allow that
+						}
+					}
+				}
+				this.estimated_size.set(total);
+			} finally {
+				lock.release();
+			}
+		} catch (final OverlappingFileLockException e) {
+			// another cache instance of this JVM is evicting right now
+		} catch (final IOException e) {
+			L.e("raster cache eviction failed", e);
+		}
+	}
+
+	static final class Entry {
+		final Path file;
+		final long size;
+		final long last_used;
+
+		Entry (final Path file, final long size, final long last_used) {
+			this.file = file;
+			this.size = size;
+			this.last_used = last_used;
+		}
+	}
+
+	static final Comparator<Entry> OLDEST_FIRST = new Comparator<Entry>() {
+		@Override
+		public int compare (final Entry a, final Entry b) {
+			return Long.compare(a.last_used, b.last_used);
+		}
+	};
+
+	@Override
+	public String toString () {
+		return "DiskRasterCache[" + this.folder + ", max_size=" + this.max_size + "]";
+	}
+
+}
@@ -0,0 +1,387 @@
+package com.jfixby.psd.unpacker.core;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import com.jfixby.psd.unpacker.api.PSDLayer;
+import com.jfixby.psd.unpacker.api.PSDRaster;
+import com.jfixby.psd.unpacker.api.PSD_BLEND_MODE;
+
+/** Flattens a layer subtree into one raster. The output is cut into square tiles that are composited independently on a
+ * fork-join pool; a tile no visible layer touches is left transparent without further work. Every tile is worked on in
+ * premultiplied floats, bottom layer first, with visibility, opacity and blend mode of every layer. A group is composited
+ * in isolation and then blended as a whole, a pass-through group blends its content directly with the layers below.
+ * Layer masks, clipping masks and layer effects are not applied. */
+public class LayerCompositor {
+
+	static final int TILE_SIZE = 64;
+
+	/** A visible layer of the subtree. Bounds are in document coordinates, for a group the union of its content. */
+	static class Node {
+		final PSD_BLEND_MODE mode;
+		final float opacity;
+		final Node[] children;
+		final PSDRaster raster;
+		final int[] pixels;
+		/** the color of the pixels is multiplied with their alpha */
+		final boolean premultiplied;
+		final int stride;
+		int x0;
+		int y0;
+		int x1;
+		int y1;
+
+		Node (final PSD_BLEND_MODE mode, final float opacity, final Node[] children) {
+			this.mode = mode;
+			this.opacity = opacity;
+			this.children = children;
+			this.raster = null;
+			this.pixels = null;
+			this.premultiplied = false;
+			this.stride = 0;
+			this.x0 = Integer.MAX_VALUE;
+			this.y0 = Integer.MAX_VALUE;
+			this.x1 = Integer.MIN_VALUE;
+			this.y1 = Integer.MIN_VALUE;
+			for (final Node child : children) {
+				this.x0 = Math.min(this.x0, child.x0);
+				this.y0 = Math.min(this.y0, child.y0);
+				this.x1 = Math.max(this.x1, child.x1);
+				this.y1 = Math.max(this.y1, child.y1);
+			}
+		}
+
+		Node (final PSD_BLEND_MODE mode, final float opacity, final PSDRaster raster, final BufferedImage image) {
+			this.mode = mode;
+			this.opacity = opacity;
+			this.children = null;
+			this.raster = raster;
+			final int[] pixels = RasterPixels.pixelsOf(image);
+			this.pixels = pixels != null ? pixels
+				: RasterPixels.getPixels(image, 0, 0, image.getWidth(), image.getHeight(), null);
+			this.premultiplied = RasterPixels.isPremultiplied(image);
+			this.stride = image.getWidth();
+			this.x0 = (int)raster.getPosition().getX();
+			this.y0 = (int)raster.getPosition().getY();
+			this.x1 = this.x0 + image.getWidth();
+			this.y1 = this.y0 + image.getHeight();
+		}
+
+		boolean isEmpty () {
+			return this.x1 <= this.x0 || this.y1 <= this.y0;
+		}
+
+		boolean intersects (final int x0, final int y0, final int x1, final int y1) {
+			return this.x0 < x1 && x0 < this.x1 && this.y0 < y1 && y0 < this.y1;
+		}
+	}
+
+	private final ForkJoinPool pool;
+
+	/** @param pool the common pool if null */
+	public LayerCompositor (final ForkJoinPool pool) {
+		this.pool = pool != null ? pool : ForkJoinPool.commonPool();
+	}
+
+	/** The layer itself is drawn at full opacity and in normal mode even when it is hidden; the layers below it are
+	 * composited with their own settings.
+	 *
+	 * @return the flattened pixels, positioned at the top left of the visible content, null if nothing visible is left */
+	public PSDRaster flatten (final PSDLayer layer) {
+		final ArrayList<PSDRaster> retained = new ArrayList<PSDRaster>();
+		try {
+			final Node top;
+			if (layer.isFolder()) {
+				top = new Node(PSD_BLEND_MODE.NORMAL, 1f, this.children(layer, retained));
+			} else {
+				final Node raster = this.raster(layer, PSD_BLEND_MODE.NORMAL, 1f, retained);
+				top = new Node(PSD_BLEND_MODE.NORMAL, 1f, raster == null ? new Node[0] : new Node[] {raster});
+			}
+			if (top.isEmpty()) {
+				return null;
+			}
+			final int width = top.x1 - top.x0;
+			final int height = top.y1 - top.y0;
+			final BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+			final int[] output = ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+			final int tiles_x = (width + TILE_SIZE - 1) / TILE_SIZE;
+			final int tiles_y = (height + TILE_SIZE - 1) / TILE_SIZE;
+			final int tiles = tiles_x * tiles_y;
+			final int leaf = Math.max(1, tiles / (this.pool.getParallelism() * 4));
+			this.pool.invoke(new TileRange(top, output, tiles_x, 0, tiles, leaf));
+			return new PSDRasterImpl(image, top.x0, top.y0);
+		} finally {
+			for (final PSDRaster raster : retained) {
+				raster.release();
+			}
+		}
+	}
+
+	private Node[] children (final PSDLayer folder, final ArrayList<PSDRaster> retained) {
+		final ArrayList<Node> nodes = new ArrayList<Node>();
+		// child 0 is the bottom layer
+		for (int i = 0; i < folder.numberOfChildren(); i++) {
+			final PSDLayer child = folder.getChild(i);
+			if (!child.isVisible() || child.getOpacity() <= 0) {
+				continue;
+			}
+			final Node node;
+			if (child.isFolder()) {
+				node = new Node(child.getMode(), (float)child.getOpacity(), this.children(child, retained));
+			} else {
+				node = this.raster(child, child.getMode(), (float)child.getOpacity(), retained);
+			}
+			if (node != null && !node.isEmpty()) {
+				nodes.add(node);
+			}
+		}
+		return nodes.toArray(new Node[nodes.size()]);
+	}
+
+	private Node raster (final PSDLayer layer, final PSD_BLEND_MODE mode, final float opacity,
+		final ArrayList<PSDRaster> retained) {
+		final PSDRaster raster = layer.getRaster();
+		if (raster == null) {
+			return null;
+		}
+		try {
+			raster.retain();
+		} catch (final IllegalStateException e) {
+			// released by its owner, there are no pixels to draw
+			return null;
+		}
+		retained.add(raster);
+		final BufferedImage image = raster.getBufferedImage();
+		if (image == null || image.getWidth() == 0 || image.getHeight() == 0) {
+			return null;
+		}
+		return new Node(mode, opacity, raster, image);
+	}
+
+	/** Tiles [from, to) in row order, split in halves down to the leaf size. */
+	static class TileRange extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		final Node top;
+		final int[] output;
+		final int tiles_x;
+		final int from;
+		final int to;
+		final int leaf;
+
+		TileRange (final Node top, final int[] output, final int tiles_x, final int from, final int to, final int leaf) {
+			this.top = top;
+			this.output = output;
+			this.tiles_x = tiles_x;
+			this.from = from;
+			this.to = to;
+			this.leaf = leaf;
+		}
+
+		@Override
+		protected void compute () {
+			if (this.to - this.from > this.leaf) {
+				final int middle = (this.from + this.to) >>> 1;
+				invokeAll(new TileRange(this.top, this.output, this.tiles_x, this.from, middle, this.leaf),
+					new TileRange(this.top, this.output, this.tiles_x, middle, this.to, this.leaf));
+				return;
+			}
+			final Tile tile = new Tile(this.top);
+			for (int i = this.from; i < this.to; i++) {
+				tile.render(i % this.tiles_x, i / this.tiles_x, this.output);
+			}
+		}
+	}
+
+	/** Composites one tile at a time, keeps its buffers for the next tile. */
+	static class Tile {
+		final Node top;
+		final ArrayList<float[]> free = new ArrayList<float[]>();
+		final float[] cb = new float[3];
+		final float[] cs = new float[3];
+		final float[] b = new float[3];
+		int x0;
+		int y0;
+		int x1;
+		int y1;
+		int width;
+
+		Tile (final Node top) {
+			this.top = top;
+		}
+
+		void render (final int tx, final int ty, final int[] output) {
+			final int output_width = this.top.x1 - this.top.x0;
+			this.x0 = this.top.x0 + tx * TILE_SIZE;
+			this.y0 = this.top.y0 + ty * TILE_SIZE;
+			this.x1 = Math.min(this.top.x1, this.x0 + TILE_SIZE);
+			this.y1 = Math.min(this.top.y1, this.y0 + TILE_SIZE);
+			this.width = this.x1 - this.x0;
+			if (!this.touched(this.top)) {
+				return;
+			}
+			final float[] buffer = this.take();
+			this.composite(this.top, buffer);
+			for (int y = this.y0; y < this.y1; y++) {
+				int o = (y - this.top.y0) * output_width + this.x0 - this.top.x0;
+				int i = (y - this.y0) * this.width * 4;
+				for (int x = this.x0; x < this.x1; x++, o++, i += 4) {
+					final float a = buffer[i + 3];
+					if (a <= 0) {
+						continue;
+					}
+					final float k = 255 / a;
+					output[o] = channel(a * 255) << 24 | channel(buffer[i] * k) << 16 | channel(buffer[i + 1] * k) << 8
+						| channel(buffer[i + 2] * k);
+				}
+			}
+			this.give(buffer);
+		}
+
+		private static int channel (final float value) {
+			return value <= 0 ? 0 : value >= 255 ? 255 : (int)(value + 0.5f);
+		}
+
+		private boolean touched (final Node group) {
+			for (final Node child : group.children) {
+				if (child.intersects(this.x0, this.y0, this.x1, this.y1)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		/** @return a zeroed buffer for the current tile */
+		private float[] take () {
+			final int size = TILE_SIZE * TILE_SIZE * 4;
+			if (this.free.size() == 0) {
+				return new float[size];
+			}
+			final float[] buffer = this.free.remove(this.free.size() - 1);
+			Arrays.fill(buffer, 0f);
+			return buffer;
+		}
+
+		private void give (final float[] buffer) {
+			this.free.add(buffer);
+		}
+
+		private void composite (final Node group, final float[] target) {
+			for (final Node child : group.children) {
+				if (!child.intersects(this.x0, this.y0, this.x1, this.y1)) {
+					continue;
+				}
+				if (child.children == null) {
+					this.drawRaster(child, target);
+				} else if (child.mode == PSD_BLEND_MODE.PASS_THROUGH) {
+					if (child.opacity >= 1) {
+						this.composite(child, target);
+					} else {
+						// the content goes onto the backdrop, the group opacity fades between before and after
+						final float[] before = this.take();
+						final int n = (this.y1 - this.y0) * this.width * 4;
+						System.arraycopy(target, 0, before, 0, n);
+						this.composite(child, target);
+						for (int i = 0; i < n; i++) {
+							target[i] = before[i] + (target[i] - before[i]) * child.opacity;
+						}
+						this.give(before);
+					}
+				} else {
+					final float[] content = this.take();
+					this.composite(child, content);
+					this.drawBuffer(child, content, target);
+					this.give(content);
+				}
+			}
+		}
+
+		private void drawRaster (final Node layer, final float[] target) {
+			final int x0 = Math.max(this.x0, layer.x0);
+			final int y0 = Math.max(this.y0, layer.y0);
+			final int x1 = Math.min(this.x1, layer.x1);
+			final int y1 = Math.min(this.y1, layer.y1);
+			final float scale = layer.opacity / 255f;
+			final boolean normal = BlendModes.isNormal(layer.mode);
+			for (int y = y0; y < y1; y++) {
+				int p = (y - layer.y0) * layer.stride + x0 - layer.x0;
+				int i = ((y - this.y0) * this.width + x0 - this.x0) * 4;
+				for (int x = x0; x < x1; x++, p++, i += 4) {
+					final int argb = layer.pixels[p];
+					final float a = (argb >>> 24) * scale;
+					if (a <= 0) {
+						continue;
+					}
+					final float unit = layer.premultiplied ? argb >>> 24 : 255f;
+					final float r = ((argb >>> 16) & 0xff) / unit;
+					final float g = ((argb >>> 8) & 0xff) / unit;
+					final float b = (argb & 0xff) / unit;
+					if (normal) {
+						final float k = 1 - a;
+						target[i] = r * a + target[i] * k;
+						target[i + 1] = g * a + target[i + 1] * k;
+						target[i + 2] = b * a + target[i + 2] * k;
+						target[i + 3] = a + target[i + 3] * k;
+					} else {
+						this.blend(layer.mode, a, r, g, b, target, i);
+					}
+				}
+			}
+		}
+
+		private void drawBuffer (final Node group, final float[] content, final float[] target) {
+			final boolean normal = BlendModes.isNormal(group.mode);
+			final int n = (this.y1 - this.y0) * this.width * 4;
+			for (int i = 0; i < n; i += 4) {
+				final float content_a = content[i + 3];
+				if (content_a <= 0) {
+					continue;
+				}
+				final float a = content_a * group.opacity;
+				if (normal) {
+					final float k = 1 - a;
+					target[i] = content[i] * group.opacity + target[i] * k;
+					target[i + 1] = content[i + 1] * group.opacity + target[i + 1] * k;
+					target[i + 2] = content[i + 2] * group.opacity + target[i + 2] * k;
+					target[i + 3] = a + target[i + 3] * k;
+				} else {
+					this.blend(group.mode, a, content[i] / content_a, content[i + 1] / content_a, content[i + 2] / content_a, target,
+						i);
+				}
+			}
+		}
+
+		/** Source over with the blend function: the source color is replaced by B(backdrop, source) where the backdrop is
+		 * opaque. */
+		private void blend (final PSD_BLEND_MODE mode, final float a, final float r, final float g, final float b,
+			final float[] target, final int i) {
+			final float backdrop_a = target[i + 3];
+			final float k = 1 - a;
+			if (backdrop_a <= 0) {
+				target[i] = r * a;
+				target[i + 1] = g * a;
+				target[i + 2] = b * a;
+				target[i + 3] = a;
+				return;
+			}
+			this.cb[0] = Math.min(1, target[i] / backdrop_a);
+			this.cb[1] = Math.min(1, target[i + 1] / backdrop_a);
+			this.cb[2] = Math.min(1, target[i + 2] / backdrop_a);
+			this.cs[0] = r;
+			this.cs[1] = g;
+			this.cs[2] = b;
+			BlendModes.blend(mode, this.cb, this.cs, this.b);
+			final float source = a * (1 - backdrop_a);
+			final float mixed = a * backdrop_a;
+			target[i] = source * r + mixed * this.b[0] + k * target[i];
+			target[i + 1] = source * g + mixed * this.b[1] + k * target[i + 1];
+			target[i + 2] = source * b + mixed * this.b[2] + k * target[i + 2];
+			target[i + 3] = a + backdrop_a * k;
+		}
+	}
+
+}
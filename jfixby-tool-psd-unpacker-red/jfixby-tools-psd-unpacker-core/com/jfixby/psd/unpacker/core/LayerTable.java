@@ -0,0 +1,202 @@
+package com.jfixby.psd.unpacker.core;
+
+import java.awt.image.BufferedImage;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+import com.jfixby.psd.unpacker.core.legacy.Layer;
+import com.jfixby.psd.unpacker.core.legacy.LayerGroup;
+import com.jfixby.psd.unpacker.core.legacy.RasterLayer;
+
+/** The layer tree of a document in primitive arrays. Layers are numbered breadth first with the root at 0, so the children
+ * of a layer are the consecutive rows [firstChild, firstChild + childCount) and every parent comes before its children.
+ * {@link PSDLayerImpl} is a view of one row. */
+public class LayerTable {
+
+	static final byte VISIBLE = 1;
+	static final byte FOLDER = 2;
+
+	final int size;
+	final int[] parent;
+	final int[] first_child;
+	final int[] child_count;
+	final int[] x;
+	final int[] y;
+	final int[] w;
+	final int[] h;
+	final byte[] flags;
+	final float[] opacity;
+	final int[] blend;
+	final int[] layer_id;
+	/** interned per document, generated files repeat the same few names many times */
+	final String[] name;
+	final PSDRasterImpl[] raster;
+	/** row whose raster shares its pixels with this row, the first one in document order, or -1 */
+	final int[] alias_of;
+	private final boolean[] raster_released;
+	private int[] document_order;
+
+	private LayerTable (final int size) {
+		this.size = size;
+		this.parent = new int[size];
+		this.first_child = new int[size];
+		this.child_count = new int[size];
+		this.x = new int[size];
+		this.y = new int[size];
+		this.w = new int[size];
+		this.h = new int[size];
+		this.flags = new byte[size];
+		this.opacity = new float[size];
+		this.blend = new int[size];
+		this.layer_id = new int[size];
+		this.name = new String[size];
+		this.raster = new PSDRasterImpl[size];
+		this.alias_of = new int[size];
+		this.raster_released = new boolean[size];
+	}
+
+	public static LayerTable of (final LayerGroup root) {
+		final LayerTable table = new LayerTable(1 + count(root));
+		final HashMap<String, String> names = new HashMap<String, String>();
+		final Layer[] queue = new Layer[table.size];
+		final BufferedImage[] images = new BufferedImage[table.size];
+		queue[0] = root;
+		table.parent[0] = -1;
+		int tail = 1;
+		for (int i = 0; i < table.size; i++) {
+			final Layer layer = queue[i];
+			images[i] = table.set(i, layer, names);
+			if (layer.isLayerGroup()) {
+				final LayerGroup group = (LayerGroup)layer;
+				table.first_child[i] = tail;
+				table.child_count[i] = group.getSublayers().size();
+				for (int k = 0; k < group.getSublayers().size(); k++) {
+					table.parent[tail] = i;
+					queue[tail++] = group.getSublayers().get(k);
+				}
+			}
+		}
+		table.link(images);
+		return table;
+	}
+
+	/** Creates the rasters. The reader hands the same image to layers with identical pixel data, the first of them in document
+	 * order owns it and the others become its aliases. */
+	private void link (final BufferedImage[] images) {
+		final IdentityHashMap<BufferedImage, Integer> owners = new IdentityHashMap<BufferedImage, Integer>();
+		final int[] order = this.documentOrder();
+		for (int k = 0; k < this.size; k++) {
+			final int i = order[k];
+			this.alias_of[i] = -1;
+			if (images[i] == null) {
+				continue;
+			}
+			final Integer owner = owners.get(images[i]);
+			if (owner == null) {
+				owners.put(images[i], i);
+				this.raster[i] = new PSDRasterImpl(images[i], this.x[i], this.y[i]);
+			} else {
+				this.alias_of[i] = owner;
+				this.raster[owner].retain();
+				this.raster[i] = new PSDRasterImpl(this.raster[owner], this.x[i], this.y[i]);
+			}
+		}
+	}
+
+	private static int count (final LayerGroup group) {
+		int count = group.getSublayers().size();
+		for (int k = 0; k < group.getSublayers().size(); k++) {
+			final Layer child = group.getSublayers().get(k);
+			if (child.isLayerGroup()) {
+				count = count + count((LayerGroup)child);
+			}
+		}
+		return count;
+	}
+
+	/** @return the image of a raster layer, null for a folder */
+	private BufferedImage set (final int i, final Layer layer, final HashMap<String, String> names) {
+		String name = names.get(layer.getName());
+		if (name == null && layer.getName() != null) {
+			name = layer.getName();
+			names.put(name, name);
+		}
+		this.name[i] = name;
+		this.opacity[i] = (float)layer.getOpacity();
+		this.blend[i] = layer.getBlendMode();
+		this.layer_id[i] = layer.getLayerID();
+		byte flags = 0;
+		if (layer.isVisible()) {
+			flags |= VISIBLE;
+		}
+		if (layer.isLayerGroup()) {
+			flags |= FOLDER;
+		} else {
+			final RasterLayer raster_layer = (RasterLayer)layer;
+			final BufferedImage image = raster_layer.getRaster();
+			this.x[i] = (int)raster_layer.getOffset().getX();
+			this.y[i] = (int)raster_layer.getOffset().getY();
+			this.w[i] = image.getWidth();
+			this.h[i] = image.getHeight();
+			this.flags[i] = flags;
+			return image;
+		}
+		this.flags[i] = flags;
+		return null;
+	}
+
+	boolean isFolder (final int i) {
+		return (this.flags[i] & FOLDER) != 0;
+	}
+
+	boolean isVisible (final int i) {
+		return (this.flags[i] & VISIBLE) != 0;
+	}
+
+	/** @return rows in document order: every folder followed by its content, depth first */
+	synchronized int[] documentOrder () {
+		if (this.document_order == null) {
+			final int[] order = new int[this.size];
+			final int[] stack = new int[this.size];
+			int top = 0;
+			int n = 0;
+			stack[top++] = 0;
+			while (top > 0) {
+				final int i = stack[--top];
+				order[n++] = i;
+				// push in reverse, so the first child comes out first
+				for (int k = this.child_count[i] - 1; k >= 0; k--) {
+					stack[top++] = this.first_child[i] + k;
+				}
+			}
+			this.document_order = order;
+		}
+		return this.document_order;
+	}
+
+	/** Releases the reference the document holds on the raster of a row, at most once.
+	 *
+	 * @return true if this call released it */
+	boolean releaseRaster (final int i) {
+		synchronized (this.raster_released) {
+			if (this.raster[i] == null || this.raster_released[i]) {
+				return false;
+			}
+			this.raster_released[i] = true;
+		}
+		this.raster[i].release();
+		return true;
+	}
+
+	/** @return size of all decoded rasters in bytes, shared pixels counted once */
+	long getRasterBytes () {
+		long bytes = 0;
+		for (int i = 0; i < this.size; i++) {
+			if (this.raster[i] != null && this.alias_of[i] < 0) {
+				bytes = bytes + 4L * this.w[i] * this.h[i];
+			}
+		}
+		return bytes;
+	}
+
+}
@@ -0,0 +1,137 @@
+package com.jfixby.psd.unpacker.core;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.jfixby.psd.unpacker.api.PSDContentCache;
+import com.jfixby.scarabei.api.file.File;
+
+public class PSDContentCacheImpl implements PSDContentCache {
+
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	private long byte_budget = 0;
+	private long bytes_used = 0;
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+
+	static final class Entry {
+		final PSDFileContentImpl content;
+		final long weight;
+
+		Entry (final PSDFileContentImpl content, final long weight) {
+			this.content = content;
+			this.weight = weight;
+		}
+	}
+
+	public static String keyOf (final File file, final boolean crash_on_mask, final boolean premultiplied,
+		final boolean deduplicate) {
+		return file + "|" + file.getSize() + "|" + file.lastModified() + "|" + crash_on_mask + "|" + premultiplied + "|"
+			+ deduplicate;
+	}
+
+	public synchronized PSDFileContentImpl get (final String key) {
+		final Entry entry = this.entries.get(key);
+		if (entry == null) {
+			this.misses++;
+			return null;
+		}
+		if (entry.content.isRasterDropped()) {
+			// a consumer dropped a raster of the shared content
+			this.remove(key);
+			this.misses++;
+			return null;
+		}
+		this.hits++;
+		entry.content.retain();
+		return entry.content;
+	}
+
+	public synchronized void put (final String key, final PSDFileContentImpl content) {
+		final long weight = content.getRasterBytes();
+		if (weight > this.byte_budget) {
+			return;
+		}
+		this.remove(key);
+		content.retain();
+		content.markShared();
+		// from now on the budget of the cache governs the rasters, waiting unpacks must not wait for an eviction
+		content.releaseReservation();
+		this.entries.put(key, new Entry(content, weight));
+		this.bytes_used = this.bytes_used + weight;
+		this.trim();
+	}
+
+	private void remove (final String key) {
+		final Entry entry = this.entries.remove(key);
+		if (entry != null) {
+			this.bytes_used = this.bytes_used - entry.weight;
+			entry.content.close();
+		}
+	}
+
+	private void trim () {
+		final Iterator<Map.Entry<String, Entry>> iterator = this.entries.entrySet().iterator();
+		while (this.bytes_used > this.byte_budget && iterator.hasNext()) {
+			final Entry eldest = iterator.next().getValue();
+			iterator.remove();
+			this.bytes_used = this.bytes_used - eldest.weight;
+			this.evictions++;
+			eldest.content.close();
+		}
+	}
+
+	@Override
+	public synchronized void setByteBudget (final long bytes) {
+		this.byte_budget = bytes;
+		this.trim();
+	}
+
+	@Override
+	public synchronized long getByteBudget () {
+		return this.byte_budget;
+	}
+
+	@Override
+	public synchronized long getBytesUsed () {
+		return this.bytes_used;
+	}
+
+	@Override
+	public synchronized int size () {
+		return this.entries.size();
+	}
+
+	@Override
+	public synchronized long getHits () {
+		return this.hits;
+	}
+
+	@Override
+	public synchronized long getMisses () {
+		return this.misses;
+	}
+
+	@Override
+	public synchronized long getEvictions () {
+		return this.evictions;
+	}
+
+	@Override
+	public synchronized void clear () {
+		for (final Entry entry : this.entries.values()) {
+			entry.content.close();
+		}
+		this.entries.clear();
+		this.bytes_used = 0;
+	}
+
+	@Override
+	public synchronized String toString () {
+		return "PSDContentCache [entries=" + this.entries.size() + ", bytes_used=" + this.bytes_used + ", byte_budget="
+			+ this.byte_budget + ", hits=" + this.hits + ", misses=" + this.misses + ", evictions=" + this.evictions + "]";
+	}
+
+}
@@ -1,72 +1,73 @@
 package com.jfixby.psd.unpacker.core;
 
-import java.awt.image.BufferedImage;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.jfixby.psd.unpacker.api.PSDFileContent;
 import com.jfixby.psd.unpacker.api.PSDLayer;
 import com.jfixby.psd.unpacker.api.PSDRootLayer;
-import com.jfixby.psd.unpacker.core.legacy.Layer;
-import com.jfixby.psd.unpacker.core.legacy.LayerGroup;
-import com.jfixby.psd.unpacker.core.legacy.RasterLayer;
+import com.jfixby.psd.unpacker.api.PSDUnpackMetrics;
 import com.jfixby.scarabei.api.collections.Collection;
 import com.jfixby.scarabei.api.collections.Collections;
 import com.jfixby.scarabei.api.collections.List;
+import com.jfixby.scarabei.api.floatn.Float2;
+import com.jfixby.scarabei.api.geometry.Geometry;
 import com.jfixby.scarabei.api.log.L;
 import com.jfixby.scarabei.api.util.Utils;
 import com.jfixby.scarabei.api.util.path.AbsolutePath;
 
 public class PSDFileContentImpl implements PSDFileContent {
 
-	private com.jfixby.psd.unpacker.core.legacy.FileContent result;
-	private PSDRootLayer root;
-	final List<PSDLayer> rasters = Collections.newList();
-	final List<PSDLayer> groups = Collections.newList();
-	private AbsolutePath<PSDFileContent> root_path;
+	private final String file_name;
+	private final LayerTable table;
+	private final PSDLayerImpl[] views;
+	private List<PSDLayer> rasters;
+	private List<PSDLayer> groups;
+	private final AbsolutePath<PSDFileContent> root_path;
+	private volatile boolean raster_dropped = false;
+	private volatile boolean shared = false;
+	private final AtomicInteger references = new AtomicInteger(1);
+	private final PSDUnpackMetrics metrics;
+	private volatile PSDLayerPathIndex path_index;
+	private volatile PSDMemoryGovernorImpl.Reservation reservation;
 
 	@Override
 	public String toString() {
-		return result.getFileName();
+		return file_name;
 	}
 
-	public PSDFileContentImpl(com.jfixby.psd.unpacker.core.legacy.FileContent result) {
-		this.result = result;
+	public PSDFileContentImpl(com.jfixby.psd.unpacker.core.legacy.FileContent result, PSDUnpackMetrics metrics) {
+		// the legacy tree is not kept, the table holds everything the views need
+		this.file_name = result.getFileName();
+		this.table = LayerTable.of(result.getRootLayer());
+		this.views = new PSDLayerImpl[table.size];
+		this.metrics = metrics;
 		root_path = Utils.newAbsolutePath(this);
-		root = new PSDLayerImpl(this, this.result.getRootLayer(), root_path);
-
 	}
 
 	@Override
 	public void print() {
 
-		LayerGroup root = result.getRootLayer();
-
-		L.d("---PSDFileContent[" + result.getFileName() + "]------------");
-
-		for (int i = 0; i < root.getSublayers().size(); i++) {
-			Layer layer = root.getSublayers().get(i);
-			print(3, layer);
+		L.d("---PSDFileContent[" + file_name + "]------------");
 
+		for (int i = 0; i < table.child_count[0]; i++) {
+			print(3, table.first_child[0] + i);
 		}
 
 		L.d("---PSDFileContent", "END------------");
 
 	}
 
-	private static void print(int indent, Layer layer) {
-		if (layer.isLayerGroup()) {
-			LayerGroup group = (LayerGroup) layer;
-			boolean is_visible = group.isVisible();
-
-			L.d(prefix(indent) + "group", isHidden(is_visible) + group.getName());
-			for (int i = 0; i < group.getSublayers().size(); i++) {
-				Layer sub_layer = group.getSublayers().get(i);
-				print(indent + 1, sub_layer);
+	private void print(int indent, int layer) {
+		boolean is_visible = table.isVisible(layer);
+		if (table.isFolder(layer)) {
+			L.d(prefix(indent) + "group", isHidden(is_visible) + table.name[layer]);
+			for (int i = 0; i < table.child_count[layer]; i++) {
+				print(indent + 1, table.first_child[layer] + i);
 			}
 		} else {
-			RasterLayer raster = (RasterLayer) layer;
-			boolean is_visible = raster.isVisible();
-			L.d(prefix(indent) + "raster", isHidden(is_visible) + "[" + raster.getName() + "]" + " "
-					+ raster.getOffset() + " " + print(raster.getRaster()));
+			PSDRasterImpl raster = table.raster[layer];
+			L.d(prefix(indent) + "raster", isHidden(is_visible) + "[" + table.name[layer] + "]" + " "
+					+ offset(raster) + " [" + table.w[layer] + "x" + table.h[layer] + "]");
 		}
 
 	}
@@ -80,10 +81,11 @@ public class PSDFileContentImpl implements PSDFileContent {
 
 	}
 
-	private static String print(BufferedImage raster) {
-		int w = raster.getWidth();
-		int h = raster.getHeight();
-		return "[" + w + "x" + h + "]";
+	private static Float2 offset(PSDRasterImpl raster) {
+		Float2 offset = Geometry.newFloat2();
+		offset.setX(raster.getX());
+		offset.setY(raster.getY());
+		return offset;
 	}
 
 	private static String prefix(int prefix) {
@@ -97,34 +99,160 @@ public class PSDFileContentImpl implements PSDFileContent {
 
 	@Override
 	public PSDRootLayer getRootlayer() {
-		return root;
+		return view(0);
 	}
 
 	@Override
-	public Collection<PSDLayer> getRasterLayers() {
+	public synchronized Collection<PSDLayer> getRasterLayers() {
+		if (rasters == null) {
+			rasters = layers(false);
+		}
 		return rasters;
 	}
 
 	@Override
-	public Collection<PSDLayer> getRasterLayerGroups() {
+	public synchronized Collection<PSDLayer> getRasterLayerGroups() {
+		if (groups == null) {
+			groups = layers(true);
+		}
 		return groups;
 	}
 
-	public void reportGroup(PSDLayerImpl psdLayerImpl) {
-		this.groups.add(psdLayerImpl);
+	private List<PSDLayer> layers(boolean folders) {
+		List<PSDLayer> result = Collections.newList();
+		int[] order = table.documentOrder();
+		for (int i = 0; i < order.length; i++) {
+			if (table.isFolder(order[i]) == folders) {
+				result.add(view(order[i]));
+			}
+		}
+		return result;
+	}
+
+	/** @return the view of a table row, created on first access */
+	PSDLayerImpl view(int index) {
+		PSDLayerImpl view = views[index];
+		if (view == null) {
+			// a race creates two equal views, which is harmless
+			view = new PSDLayerImpl(this, table, index);
+			views[index] = view;
+		}
+		return view;
 	}
 
-	public void reportRaster(PSDLayerImpl psdLayerImpl) {
-//		L.d("reportRaster", psdLayerImpl);
-		rasters.add(psdLayerImpl);
+	AbsolutePath<PSDFileContent> getRootPath() {
+		return root_path;
+	}
+
+	LayerTable getTable() {
+		return table;
 	}
 
 	@Override
+	public PSDUnpackMetrics getMetrics() {
+		return metrics;
+	}
+
+	@Override
+	public PSDLayer findByPath(String path) {
+		return getPathIndex().find(path);
+	}
+
+	@Override
+	public PSDLayer findByPath(AbsolutePath<PSDFileContent> path) {
+		return getPathIndex().find(path);
+	}
+
+	@Override
+	public Collection<PSDLayer> findByPathPrefix(String prefix) {
+		return getPathIndex().findAll(prefix);
+	}
+
+	PSDLayerPathIndex getPathIndex() {
+		PSDLayerPathIndex index = path_index;
+		if (index == null) {
+			synchronized (this) {
+				index = path_index;
+				if (index == null) {
+					index = new PSDLayerPathIndex(this, table);
+					path_index = index;
+				}
+			}
+		}
+		return index;
+	}
+
+	@Override
+	@Deprecated
 	public void dropRaster() {
-		for (int i = 0; i < rasters.size(); i++) {
-			rasters.getElementAt(i).dropRaster();
+		close();
+	}
+
+	@Override
+	public PSDFileContent retain() {
+		while (true) {
+			int count = references.get();
+			if (count <= 0) {
+				throw new IllegalStateException("Content is closed: " + this);
+			}
+			if (references.compareAndSet(count, count + 1)) {
+				return this;
+			}
+		}
+	}
+
+	@Override
+	public void close() {
+		int count = references.decrementAndGet();
+		if (count > 0) {
+			return;
+		}
+		if (count < 0) {
+			throw new IllegalStateException("Content is closed more often than retained: " + this);
+		}
+		for (int i = 0; i < table.size; i++) {
+			if (table.releaseRaster(i)) {
+				raster_dropped = true;
+			}
+		}
+		releaseReservation();
+	}
+
+	/** The rasters stay reserved in the memory governor until this content is closed. */
+	void holdReservation(PSDMemoryGovernorImpl.Reservation reservation) {
+		reservation.finish(getRasterBytes());
+		this.reservation = reservation;
+	}
+
+	void releaseReservation() {
+		PSDMemoryGovernorImpl.Reservation reservation = this.reservation;
+		if (reservation != null) {
+			this.reservation = null;
+			reservation.release();
 		}
-		System.gc();
+	}
+
+	/** Marks this content as handed out by the content cache, for good: consumers may still hold it after an eviction. */
+	void markShared() {
+		shared = true;
+	}
+
+	boolean isShared() {
+		return shared;
+	}
+
+	void reportRasterDropped() {
+		raster_dropped = true;
+	}
+
+	/** @return true if some raster of this content was released by its owner */
+	public boolean isRasterDropped() {
+		return raster_dropped;
+	}
+
+	/** @return size of all decoded rasters in bytes */
+	public long getRasterBytes() {
+		return table.getRasterBytes();
 	}
 
 }
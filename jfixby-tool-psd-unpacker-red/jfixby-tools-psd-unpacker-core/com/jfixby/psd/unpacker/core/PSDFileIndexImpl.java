@@ -0,0 +1,180 @@
+package com.jfixby.psd.unpacker.core;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import com.jfixby.psd.unpacker.api.PSDFileIndex;
+import com.jfixby.psd.unpacker.api.PSDLayerRecord;
+import com.jfixby.psd.unpacker.api.PSDRaster;
+import com.jfixby.psd.unpacker.api.PSDRasterCache;
+import com.jfixby.psd.unpacker.core.legacy.FileIndex;
+import com.jfixby.psd.unpacker.core.legacy.IndexedLayer;
+import com.jfixby.scarabei.api.collections.Collection;
+import com.jfixby.scarabei.api.collections.Collections;
+import com.jfixby.scarabei.api.collections.List;
+import com.jfixby.scarabei.api.log.L;
+
+public class PSDFileIndexImpl implements PSDFileIndex {
+
+	private final Path file;
+	private final FileChannel channel;
+	private final FileIndex index;
+	private final List<PSDLayerRecord> layers = Collections.newList();
+	private final HashMap<String, IndexedLayer> by_path = new HashMap<String, IndexedLayer>();
+
+	private PSDFileIndexImpl (final Path file, final FileChannel channel, final FileIndex index) {
+		this.file = file;
+		this.channel = channel;
+		this.index = index;
+		final ArrayList<IndexedLayer> layers = index.getLayers();
+		for (int i = 0; i < layers.size(); i++) {
+			final IndexedLayer layer = layers.get(i);
+			this.layers.add(layer);
+			// later siblings with the same name win, like in PSDFileContent.findByPath()
+			this.by_path.put(layer.getPath(), layer);
+		}
+	}
+
+	public static Path sidecarOf (final Path file) {
+		return file.resolveSibling(file.getFileName() + SIDECAR_EXTENSION);
+	}
+
+	public static PSDFileIndexImpl open (final Path file, final boolean write_sidecar) throws IOException {
+		final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+		try {
+			final String file_name = file.getFileName().toString();
+			final long last_modified = Files.getLastModifiedTime(file).toMillis();
+			final Path sidecar = sidecarOf(file);
+			FileIndex index = FileIndex.read(sidecar, channel.size(), last_modified);
+			if (index == null) {
+				L.d("indexing", file);
+				index = FileIndex.build(channel, file_name, last_modified);
+				if (write_sidecar) {
+					index.write(sidecar);
+				}
+			} else {
+				index.open(channel, file_name);
+			}
+			return new PSDFileIndexImpl(file, channel, index);
+		} catch (final IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	@Override
+	public boolean isFromSidecar () {
+		return this.index.isFromSidecar();
+	}
+
+	@Override
+	public long getFileSize () {
+		return this.index.getFileSize();
+	}
+
+	@Override
+	public long getLastModified () {
+		return this.index.getLastModified();
+	}
+
+	@Override
+	public int getWidth () {
+		return this.index.getWidth();
+	}
+
+	@Override
+	public int getHeight () {
+		return this.index.getHeight();
+	}
+
+	@Override
+	public int getNumberOfChannels () {
+		return this.index.getNumberOfChannels();
+	}
+
+	@Override
+	public long getImageResourcesOffset () {
+		return this.index.getImageResourcesOffset();
+	}
+
+	@Override
+	public long getImageResourcesLength () {
+		return this.index.getImageResourcesLength();
+	}
+
+	@Override
+	public long getImageDataOffset () {
+		return this.index.getImageDataOffset();
+	}
+
+	@Override
+	public int getNumberOfImageResources () {
+		return this.index.getNumberOfResources();
+	}
+
+	@Override
+	public int getImageResourceID (final int i) {
+		return this.index.getResourceID(i);
+	}
+
+	@Override
+	public long getImageResourceOffset (final int i) {
+		return this.index.getResourceOffset(i);
+	}
+
+	@Override
+	public long getImageResourceLength (final int i) {
+		return this.index.getResourceLength(i);
+	}
+
+	@Override
+	public Collection<PSDLayerRecord> getLayers () {
+		return this.layers;
+	}
+
+	@Override
+	public PSDLayerRecord findByPath (final String path) {
+		return this.by_path.get(path);
+	}
+
+	@Override
+	public boolean isFolder (final PSDLayerRecord layer) {
+		return this.indexed(layer).isFolder();
+	}
+
+	@Override
+	public PSDRaster readRaster (final PSDLayerRecord layer) throws IOException {
+		return this.readRaster(layer, null);
+	}
+
+	@Override
+	public PSDRaster readRaster (final PSDLayerRecord layer, final PSDRasterCache cache) throws IOException {
+		final IndexedLayer indexed = this.indexed(layer);
+		final BufferedImage image = this.index.decode(indexed, cache);
+		return new PSDRasterImpl(image, indexed.getX(), indexed.getY());
+	}
+
+	private IndexedLayer indexed (final PSDLayerRecord layer) {
+		if (!(layer instanceof IndexedLayer) || ((IndexedLayer)layer).getIndex() != this.index) {
+			throw new IllegalArgumentException("not a layer of " + this + ": " + layer);
+		}
+		return (IndexedLayer)layer;
+	}
+
+	@Override
+	public void close () throws IOException {
+		this.channel.close();
+	}
+
+	@Override
+	public String toString () {
+		return "PSDFileIndex(" + this.file + ") " + this.index;
+	}
+
+}
@@ -1,103 +1,96 @@
 
 package com.jfixby.psd.unpacker.core;
 
-import java.awt.image.BufferedImage;
+import java.util.HashMap;
 
 import com.jfixby.psd.unpacker.api.PSDFileContent;
 import com.jfixby.psd.unpacker.api.PSDLayer;
 import com.jfixby.psd.unpacker.api.PSDRaster;
 import com.jfixby.psd.unpacker.api.PSDRootLayer;
 import com.jfixby.psd.unpacker.api.PSD_BLEND_MODE;
-import com.jfixby.psd.unpacker.core.legacy.Layer;
-import com.jfixby.psd.unpacker.core.legacy.LayerGroup;
-import com.jfixby.psd.unpacker.core.legacy.LayerInfo;
-import com.jfixby.psd.unpacker.core.legacy.RasterLayer;
 import com.jfixby.scarabei.api.collections.Collections;
 import com.jfixby.scarabei.api.collections.List;
-import com.jfixby.scarabei.api.collections.Map;
 import com.jfixby.scarabei.api.err.Err;
 import com.jfixby.scarabei.api.log.L;
 import com.jfixby.scarabei.api.util.path.AbsolutePath;
 
+/** View of one row of the {@link LayerTable} of a document. Views are created on first access and cached by the document. */
 public class PSDLayerImpl implements PSDLayer, PSDRootLayer {
 
-	final private List<PSDLayer> children_list;
-	final private Map<String, PSDLayer> children_map;
-	private boolean visible = false;
-	private final String name;
-	private final AbsolutePath<PSDFileContent> my_path;
-
-	private final PSDRaster raster;
 	private final PSDFileContentImpl master;
-	private PSD_BLEND_MODE blend_mode = PSD_BLEND_MODE.UNKNOWN;
-	private final double opacity;
+	private final LayerTable table;
+	private final int index;
+	private AbsolutePath<PSDFileContent> my_path;
 
 	@Override
 	public double getOpacity () {
-		return this.opacity;
+		return this.table.opacity[this.index];
 	}
 
-	public PSDLayerImpl (final PSDFileContentImpl master, final Layer element, final AbsolutePath<PSDFileContent> root_path) {
+	PSDLayerImpl (final PSDFileContentImpl master, final LayerTable table, final int index) {
 		this.master = master;
-		this.visible = element.isVisible();
-		this.name = element.getName();
-		this.opacity = element.getOpacity();
-		this.blend_mode = modeOf(element.getBlendMode());
-
-		this.my_path = root_path;
-		if (element.isLayerGroup()) {
-			master.reportGroup(this);
-			this.children_list = Collections.newList();
-			this.children_map = Collections.newMap();
-			final LayerGroup group = (LayerGroup)element;
-			for (int i = 0; i < group.getSublayers().size(); i++) {
-				final Layer child = group.getSublayers().get(i);
-
-				final PSDLayerImpl layer = new PSDLayerImpl(master, child, this.my_path.child(child.getName()));
-
-				// path_string
-				// + PSDPathImpl.SEPARATOR + child.getName());
-				this.children_list.add(layer);
-				this.children_map.put(layer.getName(), layer);
-			}
-
-			this.raster = null;
-		} else {
-			master.reportRaster(this);
-			final RasterLayer raster = (RasterLayer)element;
-
-			final BufferedImage buffered_image = raster.getRaster();
-
-			this.raster = new PSDRasterImpl(buffered_image, raster.getOffset().getX(), raster.getOffset().getY());
-
-			this.children_list = null;
-			this.children_map = null;
-		}
-
-	}
-
+		this.table = table;
+		this.index = index;
+	}
+
+	int index () {
+		return this.index;
+	}
+
+	private static final HashMap<Integer, PSD_BLEND_MODE> MODES = new HashMap<Integer, PSD_BLEND_MODE>();
+	static {
+		mode("pass", PSD_BLEND_MODE.PASS_THROUGH);
+		mode("norm", PSD_BLEND_MODE.NORMAL);
+		mode("diss", PSD_BLEND_MODE.DISSOLVE);
+		mode("dark", PSD_BLEND_MODE.DARKEN);
+		mode("mul ", PSD_BLEND_MODE.MULTIPLY);
+		mode("idiv", PSD_BLEND_MODE.COLOR_BURN);
+		mode("lbrn", PSD_BLEND_MODE.LINEAR_BURN);
+		mode("dkCl", PSD_BLEND_MODE.DARKER_COLOR);
+		mode("lite", PSD_BLEND_MODE.LIGHTEN);
+		mode("scrn", PSD_BLEND_MODE.SCREEN);
+		mode("div ", PSD_BLEND_MODE.COLOR_DODGE);
+		mode("lddg", PSD_BLEND_MODE.LINEAR_DODGE);
+		mode("lgCl", PSD_BLEND_MODE.LIGHTER_COLOR);
+		mode("over", PSD_BLEND_MODE.OVERLAY);
+		mode("sLit", PSD_BLEND_MODE.SOFT_LIGHT);
+		mode("hLit", PSD_BLEND_MODE.HARD_LIGHT);
+		mode("vLit", PSD_BLEND_MODE.VIVID_LIGHT);
+		mode("lLit", PSD_BLEND_MODE.LINEAR_LIGHT);
+		mode("pLit", PSD_BLEND_MODE.PIN_LIGHT);
+		mode("hMix", PSD_BLEND_MODE.HARD_MIX);
+		mode("diff", PSD_BLEND_MODE.DIFFERENCE);
+		mode("smud", PSD_BLEND_MODE.EXCLUSION);
+		mode("fsub", PSD_BLEND_MODE.SUBTRACT);
+		mode("fdiv", PSD_BLEND_MODE.DIVIDE);
+		mode("hue ", PSD_BLEND_MODE.HUE);
+		mode("sat ", PSD_BLEND_MODE.SATURATION);
+		mode("colr", PSD_BLEND_MODE.COLOR);
+		mode("lum ", PSD_BLEND_MODE.LUMINOSITY);
+	}
+
+	private static void mode (final String key, final PSD_BLEND_MODE mode) {
+		final int value = key.charAt(0) << 24 | key.charAt(1) << 16 | key.charAt(2) << 8 | key.charAt(3);
+		MODES.put(value, mode);
+	}
+
+	/** @param blend the four character blend mode key of a layer record */
 	public static final PSD_BLEND_MODE modeOf (final int blend) {
-
-		if (blend == LayerInfo.BLEND_NORMAL) {
-			return PSD_BLEND_MODE.NORMAL;
-		}
-		if (blend == LayerInfo.BLEND_MULTIPLY) {
-			return PSD_BLEND_MODE.MULTIPLY;
+		final PSD_BLEND_MODE mode = MODES.get(blend);
+		if (mode == null) {
+			return PSD_BLEND_MODE.UNKNOWN;
 		}
-		if (blend == LayerInfo.BLEND_HUE) {
-			return PSD_BLEND_MODE.HUE;
-		}
-		return PSD_BLEND_MODE.UNKNOWN;
+		return mode;
 	}
 
 	@Override
 	public boolean isVisible () {
-		return this.visible;
+		return this.table.isVisible(this.index);
 	}
 
 	@Override
 	public boolean isFolder () {
-		return this.children_list != null;
+		return this.table.isFolder(this.index);
 	}
 
 	@Override
@@ -107,24 +100,14 @@ public class PSDLayerImpl implements PSDLayer, PSDRootLayer {
 
 	@Override
 	public String getName () {
-		return this.name;
+		return this.table.name[this.index];
 	}
 
 	@Override
 	public PSDLayer findChildByNamePrefix (final String child_name) {
 		if (this.isFolder()) {
-			final PSDLayer value = this.children_map.get(child_name);
-			if (value != null) {
-				return value;
-			} else {
-				for (int i = 0; i < this.children_list.size(); i++) {
-					final PSDLayer child = this.children_list.getElementAt(i);
-					if (child.getName().startsWith(child_name)) {
-						return child;
-					}
-				}
-				return null;
-			}
+			final int child = this.master.getPathIndex().firstChild(this.index, child_name);
+			return child < 0 ? null : this.master.view(child);
 		} else {
 			return null;
 		}
@@ -133,18 +116,8 @@ public class PSDLayerImpl implements PSDLayer, PSDRootLayer {
 	@Override
 	public PSDLayer findChildByName (final String child_name) {
 		if (this.isFolder()) {
-			final PSDLayer value = this.children_map.get(child_name);
-			if (value != null) {
-				return value;
-			} else {
-				for (int i = 0; i < this.children_list.size(); i++) {
-					final PSDLayer child = this.children_list.getElementAt(i);
-					if (child.getName().equals(child_name)) {
-						return child;
-					}
-				}
-				return null;
-			}
+			final int child = this.master.getPathIndex().child(this.index, child_name);
+			return child < 0 ? null : this.master.view(child);
 		} else {
 			return null;
 		}
@@ -152,50 +125,99 @@ public class PSDLayerImpl implements PSDLayer, PSDRootLayer {
 
 	@Override
 	public int numberOfChildren () {
-		if (this.children_list == null) {
+		if (!this.isFolder()) {
 			Err.reportError("null children " + this);
 		}
-		return this.children_list.size();
+		return this.table.child_count[this.index];
 	}
 
 	@Override
 	public PSDLayer getChild (final int i) {
-		return this.children_list.getElementAt(i);
+		if (i < 0 || i >= this.numberOfChildren()) {
+			throw new IndexOutOfBoundsException("index=" + i + " size=" + this.numberOfChildren());
+		}
+		return this.master.view(this.table.first_child[this.index] + i);
 	}
 
 	@Override
 	public AbsolutePath<PSDFileContent> getPath () {
-		return this.my_path;
+		// built on demand, most layers of a large document are never asked for it
+		AbsolutePath<PSDFileContent> path = this.my_path;
+		if (path == null) {
+			final int parent = this.table.parent[this.index];
+			if (parent < 0) {
+				path = this.master.getRootPath();
+			} else {
+				path = this.master.view(parent).getPath().child(this.getName());
+			}
+			this.my_path = path;
+		}
+		return path;
 	}
 
 	@Override
 	public void printChildren () {
-		L.d(this.getPath().toString(), this.children_map);
+		final List<String> names = Collections.newList();
+		for (int i = 0; i < this.table.child_count[this.index]; i++) {
+			names.add(this.table.name[this.table.first_child[this.index] + i]);
+		}
+		L.d(this.getPath().toString(), names);
 	}
 
-// @Override
-// public String toString() {
-// return "PSDLayer[visible=" + visible + ", name=" + name + ", my_path=" + my_path + "]";
-// }
-
 	@Override
 	public PSDRaster getRaster () {
-		return this.raster;
+		return this.table.raster[this.index];
+	}
+
+	@Override
+	public PSDLayer getRasterAliasOf () {
+		final int owner = this.table.alias_of[this.index];
+		return owner < 0 ? null : this.master.view(owner);
 	}
 
 	@Override
 	public String toString () {
-		return "PSDLayer(" + this.name + ") @=" + this.my_path + " visible=" + this.visible + "";
+		return "PSDLayer(" + this.getName() + ") @=" + this.getPath() + " visible=" + this.isVisible() + "";
 	}
 
+	/** Releases the reference the document holds on the raster of this layer, at most once. Does nothing for a content
+	 * shared through the content cache, other consumers still use the raster: they release it with
+	 * {@link com.jfixby.psd.unpacker.api.PSDFileContent#close()}. */
 	@Override
 	public void dropRaster () {
-		this.raster.drop();
+		if (this.master.isShared()) {
+			return;
+		}
+		if (this.table.releaseRaster(this.index)) {
+			this.master.reportRasterDropped();
+		}
 	}
 
 	@Override
 	public PSD_BLEND_MODE getMode () {
-		return this.blend_mode;
+		return modeOf(this.table.blend[this.index]);
+	}
+
+	@Override
+	public int getLayerID () {
+		return this.table.layer_id[this.index];
+	}
+
+	@Override
+	public int hashCode () {
+		return 31 * this.master.hashCode() + this.index;
+	}
+
+	@Override
+	public boolean equals (final Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof PSDLayerImpl)) {
+			return false;
+		}
+		final PSDLayerImpl other = (PSDLayerImpl)obj;
+		return this.master == other.master && this.index == other.index;
 	}
 
 }
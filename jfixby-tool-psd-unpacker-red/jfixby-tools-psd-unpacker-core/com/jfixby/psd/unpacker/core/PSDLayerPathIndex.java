@@ -0,0 +1,221 @@
+package com.jfixby.psd.unpacker.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import com.jfixby.psd.unpacker.api.PSDFileContent;
+import com.jfixby.psd.unpacker.api.PSDLayer;
+import com.jfixby.scarabei.api.collections.Collections;
+import com.jfixby.scarabei.api.collections.List;
+import com.jfixby.scarabei.api.util.path.AbsolutePath;
+
+/** Lookup structures over the layer table of one document, built once. Layers keep their table numbers, which go breadth
+ * first, so the smallest number under a trie node always belongs to the shallowest match. */
+class PSDLayerPathIndex {
+
+	private final PSDFileContentImpl master;
+	private final LayerTable table;
+	private final String[] paths;
+	private final HashMap<String, Integer> by_string = new HashMap<String, Integer>();
+	private final Node trie = new Node();
+	/** position of each layer in document order, built on the first findAll() */
+	private int[] rank;
+
+	/** Trie node over the characters of the path strings. */
+	static final class Node {
+		char[] keys = new char[0];
+		Node[] next = new Node[0];
+		/** number of the first layer whose path passes through this node */
+		int first = -1;
+		/** numbers of the layers whose path ends here, null if none */
+		int[] layers;
+
+		Node child (final char c) {
+			final int i = Arrays.binarySearch(this.keys, c);
+			return i < 0 ? null : this.next[i];
+		}
+
+		Node add (final char c) {
+			int i = Arrays.binarySearch(this.keys, c);
+			if (i >= 0) {
+				return this.next[i];
+			}
+			i = -i - 1;
+			final char[] keys = new char[this.keys.length + 1];
+			final Node[] next = new Node[this.next.length + 1];
+			System.arraycopy(this.keys, 0, keys, 0, i);
+			System.arraycopy(this.next, 0, next, 0, i);
+			System.arraycopy(this.keys, i, keys, i + 1, this.keys.length - i);
+			System.arraycopy(this.next, i, next, i + 1, this.next.length - i);
+			keys[i] = c;
+			next[i] = new Node();
+			this.keys = keys;
+			this.next = next;
+			return next[i];
+		}
+	}
+
+	PSDLayerPathIndex (final PSDFileContentImpl master, final LayerTable table) {
+		this.master = master;
+		this.table = table;
+		this.paths = new String[table.size];
+		this.paths[0] = "";
+		// parents come before their children, so the parent path is always there
+		for (int i = 1; i < table.size; i++) {
+			final int parent = table.parent[i];
+			this.paths[i] = parent == 0 ? table.name[i] : this.paths[parent] + "/" + table.name[i];
+			this.add(i);
+		}
+	}
+
+	private void add (final int number) {
+		final String path = this.paths[number];
+		// later siblings with the same name win, like in PSDLayer.findChildByName()
+		this.by_string.put(path, number);
+
+		Node node = this.trie;
+		for (int i = 0; i < path.length(); i++) {
+			node = node.add(path.charAt(i));
+			if (node.first < 0) {
+				node.first = number;
+			}
+		}
+		if (node.layers == null) {
+			node.layers = new int[]{number};
+		} else {
+			// siblings with equal names
+			node.layers = Arrays.copyOf(node.layers, node.layers.length + 1);
+			node.layers[node.layers.length - 1] = number;
+		}
+	}
+
+	PSDLayer find (final AbsolutePath<PSDFileContent> path) {
+		if (path.getMountPoint() != this.master) {
+			return null;
+		}
+		final ArrayList<String> names = new ArrayList<String>();
+		AbsolutePath<PSDFileContent> next = path;
+		while (!next.equals(this.master.getRootPath())) {
+			if (names.size() > this.table.size) {
+				return null;
+			}
+			names.add(next.getName());
+			next = next.parent();
+		}
+		int number = 0;
+		for (int i = names.size() - 1; i >= 0 && number >= 0; i--) {
+			number = this.child(number, names.get(i));
+		}
+		return number < 0 ? null : this.master.view(number);
+	}
+
+	PSDLayer find (final String path) {
+		final Integer number = this.by_string.get(path);
+		return number == null ? null : this.master.view(number);
+	}
+
+	/** @return number of the last child of the folder with this name, -1 if there is none */
+	int child (final int folder, final String name) {
+		if (!this.table.isFolder(folder)) {
+			return -1;
+		}
+		final Integer number = this.by_string.get(this.childPath(folder, name));
+		if (number != null && this.table.parent[number] == folder) {
+			return number;
+		}
+		// names with '/' in them make the path ambiguous
+		for (int i = this.table.child_count[folder] - 1; i >= 0; i--) {
+			final int child = this.table.first_child[folder] + i;
+			if (name.equals(this.table.name[child])) {
+				return child;
+			}
+		}
+		return -1;
+	}
+
+	/** @return number of the first child of the folder whose name starts with the prefix, -1 if there is none */
+	int firstChild (final int folder, final String prefix) {
+		if (!this.table.isFolder(folder)) {
+			return -1;
+		}
+		final Node node = this.walk(this.childPath(folder, prefix));
+		if (node == null || node.first < 0) {
+			return -1;
+		}
+		if (this.table.parent[node.first] == folder) {
+			return node.first;
+		}
+		for (int i = 0; i < this.table.child_count[folder]; i++) {
+			final int child = this.table.first_child[folder] + i;
+			final String name = this.table.name[child];
+			if (name != null && name.startsWith(prefix)) {
+				return child;
+			}
+		}
+		return -1;
+	}
+
+	private String childPath (final int folder, final String name) {
+		return folder == 0 ? name : this.paths[folder] + "/" + name;
+	}
+
+	private Node walk (final String prefix) {
+		Node node = this.trie;
+		for (int i = 0; i < prefix.length() && node != null; i++) {
+			node = node.child(prefix.charAt(i));
+		}
+		return node;
+	}
+
+	/** @return all layers whose path starts with the prefix, in document order */
+	List<PSDLayer> findAll (final String prefix) {
+		final List<PSDLayer> result = Collections.newList();
+		final Node node = this.walk(prefix);
+		if (node == null) {
+			return result;
+		}
+		int[] numbers = new int[16];
+		int count = 0;
+		final ArrayList<Node> stack = new ArrayList<Node>();
+		stack.add(node);
+		while (stack.size() > 0) {
+			final Node next = stack.remove(stack.size() - 1);
+			if (next.layers != null) {
+				for (int i = 0; i < next.layers.length; i++) {
+					if (count == numbers.length) {
+						numbers = Arrays.copyOf(numbers, count * 2);
+					}
+					numbers[count++] = next.layers[i];
+				}
+			}
+			for (int i = 0; i < next.next.length; i++) {
+				stack.add(next.next[i]);
+			}
+		}
+		// table numbers go breadth first, sort them into document order
+		final int[] rank = this.rank();
+		final long[] ranked = new long[count];
+		for (int i = 0; i < count; i++) {
+			ranked[i] = ((long)rank[numbers[i]] << 32) | numbers[i];
+		}
+		Arrays.sort(ranked);
+		for (int i = 0; i < count; i++) {
+			result.add(this.master.view((int)ranked[i]));
+		}
+		return result;
+	}
+
+	private synchronized int[] rank () {
+		if (this.rank == null) {
+			final int[] order = this.table.documentOrder();
+			final int[] rank = new int[order.length];
+			for (int i = 0; i < order.length; i++) {
+				rank[order[i]] = i;
+			}
+			this.rank = rank;
+		}
+		return this.rank;
+	}
+
+}
@@ -0,0 +1,113 @@
+package com.jfixby.psd.unpacker.core;
+
+import java.util.regex.Pattern;
+
+import com.jfixby.psd.unpacker.api.PSDLayerRecord;
+import com.jfixby.psd.unpacker.api.PSDLayerSelector;
+
+public class PSDLayerSelectorImpl implements PSDLayerSelector {
+
+	private String path_glob;
+	private Pattern path_pattern;
+	private String name_prefix;
+	private boolean visible_only = false;
+	private int min_width = 0;
+	private int min_height = 0;
+	private int max_width = Integer.MAX_VALUE;
+	private int max_height = Integer.MAX_VALUE;
+
+	@Override
+	public boolean accept (final PSDLayerRecord layer) {
+		if (this.visible_only && !layer.isVisibleInTree()) {
+			return false;
+		}
+		final int w = layer.getWidth();
+		final int h = layer.getHeight();
+		if (w < this.min_width || h < this.min_height || w > this.max_width || h > this.max_height) {
+			return false;
+		}
+		if (this.name_prefix != null && !layer.getName().startsWith(this.name_prefix)) {
+			return false;
+		}
+		if (this.path_pattern != null && !this.path_pattern.matcher(layer.getPath()).matches()) {
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public void setPathGlob (final String glob) {
+		this.path_glob = glob;
+		if (glob == null) {
+			this.path_pattern = null;
+		} else {
+			this.path_pattern = Pattern.compile(globToRegex(glob));
+		}
+	}
+
+	@Override
+	public String getPathGlob () {
+		return this.path_glob;
+	}
+
+	@Override
+	public void setNamePrefix (final String prefix) {
+		this.name_prefix = prefix;
+	}
+
+	@Override
+	public String getNamePrefix () {
+		return this.name_prefix;
+	}
+
+	@Override
+	public void setVisibleOnly (final boolean visible_only) {
+		this.visible_only = visible_only;
+	}
+
+	@Override
+	public boolean getVisibleOnly () {
+		return this.visible_only;
+	}
+
+	@Override
+	public void setMinSize (final int width, final int height) {
+		this.min_width = width;
+		this.min_height = height;
+	}
+
+	@Override
+	public void setMaxSize (final int width, final int height) {
+		this.max_width = width;
+		this.max_height = height;
+	}
+
+	static String globToRegex (final String glob) {
+		final StringBuilder regex = new StringBuilder(glob.length() * 2);
+		int i = 0;
+		while (i < glob.length()) {
+			final char c = glob.charAt(i);
+			if (c == '*') {
+				if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+					regex.append(".*");
+					i++;
+				} else {
+					regex.append("[^/]*");
+				}
+			} else if (c == '?') {
+				regex.append("[^/]");
+			} else {
+				regex.append(Pattern.quote(String.valueOf(c)));
+			}
+			i++;
+		}
+		return regex.toString();
+	}
+
+	@Override
+	public String toString () {
+		return "PSDLayerSelector [path_glob=" + this.path_glob + ", name_prefix=" + this.name_prefix + ", visible_only="
+			+ this.visible_only + "]";
+	}
+
+}
@@ -0,0 +1,216 @@
+package com.jfixby.psd.unpacker.core;
+
+import java.util.LinkedHashSet;
+import java.util.concurrent.Future;
+
+import com.jfixby.psd.unpacker.api.PSDMemoryGovernor;
+import com.jfixby.psd.unpacker.api.PSDStructureReport;
+
+public class PSDMemoryGovernorImpl implements PSDMemoryGovernor {
+
+	/** decoded planes and stored channel data of the biggest layer, both alive while it is decoded */
+	static final int BUFFER_PLANES = 8;
+	/** waiting unpacks look at their cancellation this often */
+	static final long POLL_MILLIS = 100;
+
+	private long byte_budget = 0;
+	private long bytes_reserved = 0;
+	/** reservations of unpacks that did not finish yet */
+	private int running = 0;
+	/** running reservations that were admitted, the ones that decode, oldest admission first */
+	private final LinkedHashSet<Reservation> decoding = new LinkedHashSet<Reservation>();
+	private int waiting = 0;
+	private long waits = 0;
+
+	/** Memory of one unpack, from the reading of the file until its content is closed. */
+	public final class Reservation {
+		private long bytes;
+		private boolean admitted;
+		private boolean finished;
+		private boolean released;
+
+		Reservation (final long bytes) {
+			this.bytes = bytes;
+		}
+
+		/** Grows the reservation to the estimate of the unpack, waits until it fits. Called again with a bigger estimate the
+		 * reservation grows further, e.g. with every layer a filter accepts.
+		 *
+		 * @return false if the unpack was cancelled or interrupted while waiting */
+		public boolean admit (final long total, final Future<?> cancellation) {
+			return PSDMemoryGovernorImpl.this.admit(this, total, cancellation);
+		}
+
+		/** The unpack is done: the reservation shrinks to the rasters that stay alive with the content. */
+		public void finish (final long raster_bytes) {
+			PSDMemoryGovernorImpl.this.finish(this, raster_bytes);
+		}
+
+		public void release () {
+			PSDMemoryGovernorImpl.this.release(this);
+		}
+
+		public long getBytes () {
+			synchronized (PSDMemoryGovernorImpl.this) {
+				return this.bytes;
+			}
+		}
+	}
+
+	/** @return memory needed to decode a document, the held input, its rasters and the decoding buffers */
+	public static long estimate (final long input_bytes, final long raster_bytes, final long largest_plane_bytes) {
+		return input_bytes + raster_bytes + BUFFER_PLANES * largest_plane_bytes;
+	}
+
+	@Override
+	public long estimate (final PSDStructureReport report) {
+		return estimate(report.getFileSize(), report.getDecodedRasterBytes(), report.getLargestPlaneBytes());
+	}
+
+	/** @return true if unpacks have to reserve their memory */
+	public synchronized boolean isEnabled () {
+		return this.byte_budget > 0;
+	}
+
+	/** Reserves the bytes of an input that is about to be read, waits until they fit or nothing else runs.
+	 *
+	 * @return null if the unpack was cancelled or interrupted while waiting */
+	public synchronized Reservation reserve (final long bytes, final Future<?> cancellation) {
+		if (!this.await(bytes, cancellation, false, null)) {
+			return null;
+		}
+		this.running++;
+		this.bytes_reserved = this.bytes_reserved + bytes;
+		return new Reservation(bytes);
+	}
+
+	synchronized boolean admit (final Reservation reservation, final long total, final Future<?> cancellation) {
+		if (reservation.finished || reservation.released) {
+			return true;
+		}
+		final long extra = Math.max(0, total - reservation.bytes);
+		if (reservation.admitted) {
+			if (extra > 0 && !this.await(extra, cancellation, true, reservation)) {
+				return false;
+			}
+		} else {
+			if (!this.await(extra, cancellation, true, null)) {
+				return false;
+			}
+			reservation.admitted = true;
+			this.decoding.add(reservation);
+		}
+		reservation.bytes = reservation.bytes + extra;
+		this.bytes_reserved = this.bytes_reserved + extra;
+		return true;
+	}
+
+	/** An input waits for any running unpack, an admission only for the decoding ones. A decoding one that grows waits only
+	 * while it is not the oldest: the oldest never waits, so one of them always finishes and nothing deadlocks.
+	 *
+	 * @param growing the admitted reservation that grows, null for an input or an admission */
+	private boolean await (final long bytes, final Future<?> cancellation, final boolean admission,
+		final Reservation growing) {
+		if (this.fits(bytes, admission, growing)) {
+			return true;
+		}
+		this.waits++;
+		this.waiting++;
+		try {
+			while (!this.fits(bytes, admission, growing)) {
+				if (cancellation != null && cancellation.isCancelled()) {
+					return false;
+				}
+				this.wait(POLL_MILLIS);
+			}
+			return true;
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} finally {
+			this.waiting--;
+		}
+	}
+
+	private boolean fits (final long bytes, final boolean admission, final Reservation growing) {
+		if (this.byte_budget <= 0) {
+			return true;
+		}
+		if (growing != null) {
+			return this.bytes_reserved + bytes <= this.byte_budget || this.decoding.iterator().next() == growing;
+		}
+		if (admission) {
+			return this.bytes_reserved + bytes <= this.byte_budget || this.decoding.isEmpty();
+		}
+		if (this.running == 0) {
+			return true;
+		}
+		// inputs are read one at a time ahead of their admission, so an admission granted over the budget holds the only one
+		return this.bytes_reserved + bytes <= this.byte_budget && this.running == this.decoding.size();
+	}
+
+	synchronized void finish (final Reservation reservation, final long raster_bytes) {
+		if (reservation.finished || reservation.released) {
+			return;
+		}
+		this.stop(reservation);
+		final long bytes = Math.min(reservation.bytes, raster_bytes);
+		this.bytes_reserved = this.bytes_reserved - (reservation.bytes - bytes);
+		reservation.bytes = bytes;
+		this.notifyAll();
+	}
+
+	synchronized void release (final Reservation reservation) {
+		if (reservation.released) {
+			return;
+		}
+		if (!reservation.finished) {
+			this.stop(reservation);
+		}
+		reservation.released = true;
+		this.bytes_reserved = this.bytes_reserved - reservation.bytes;
+		reservation.bytes = 0;
+		this.notifyAll();
+	}
+
+	private void stop (final Reservation reservation) {
+		reservation.finished = true;
+		this.running--;
+		if (reservation.admitted) {
+			this.decoding.remove(reservation);
+		}
+	}
+
+	@Override
+	public synchronized void setByteBudget (final long bytes) {
+		this.byte_budget = bytes;
+		this.notifyAll();
+	}
+
+	@Override
+	public synchronized long getByteBudget () {
+		return this.byte_budget;
+	}
+
+	@Override
+	public synchronized long getBytesReserved () {
+		return this.bytes_reserved;
+	}
+
+	@Override
+	public synchronized int getNumberOfWaitingUnpacks () {
+		return this.waiting;
+	}
+
+	@Override
+	public synchronized long getWaits () {
+		return this.waits;
+	}
+
+	@Override
+	public synchronized String toString () {
+		return "PSDMemoryGovernor [budget=" + this.byte_budget + ", reserved=" + this.bytes_reserved + ", running="
+			+ this.running + ", waiting=" + this.waiting + ", waits=" + this.waits + "]";
+	}
+
+}
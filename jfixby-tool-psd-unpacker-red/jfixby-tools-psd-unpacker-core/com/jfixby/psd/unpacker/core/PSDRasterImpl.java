@@ -2,11 +2,17 @@
 package com.jfixby.psd.unpacker.core;
 
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferInt;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.jfixby.psd.unpacker.api.PSDRaster;
 import com.jfixby.psd.unpacker.api.PSDRasterDimentions;
 import com.jfixby.psd.unpacker.api.PSDRasterPosition;
+import com.jfixby.psd.unpacker.core.legacy.PlaneBufferPool;
 
+/** Decoded pixels of a raster layer with the position of that layer. A raster may share the pixels of another one, see
+ * {@link #PSDRasterImpl(PSDRasterImpl, double, double)}. */
 public class PSDRasterImpl implements PSDRaster, PSDRasterPosition, PSDRasterDimentions {
 
 	@Override
@@ -15,7 +21,10 @@ public class PSDRasterImpl implements PSDRaster, PSDRasterPosition, PSDRasterDim
 			+ this.raster_position_y + ")";
 	}
 
-	private BufferedImage buffered_image;
+	private volatile BufferedImage buffered_image;
+	/** holds the pixels and the reference count if this raster is an alias, else null */
+	private final PSDRasterImpl owner;
+	private final AtomicInteger references = new AtomicInteger(1);
 	private final double raster_position_x;
 	private final double raster_position_y;
 	private final double raster_width;
@@ -27,7 +36,22 @@ public class PSDRasterImpl implements PSDRaster, PSDRasterPosition, PSDRasterDim
 		this.raster_height = this.buffered_image.getHeight();
 		this.raster_position_x = raster_position_x;
 		this.raster_position_y = raster_position_y;
+		this.owner = null;
+	}
 
+	/** An alias of a layer with the same pixels at another position. It holds no pixels and no reference count of its own:
+	 * {@link #retain()} and {@link #release()} go to the owner, so the caller gives the alias one reference of the owner. */
+	public PSDRasterImpl (final PSDRasterImpl pixels, final double raster_position_x, final double raster_position_y) {
+		this.owner = pixels.owner == null ? pixels : pixels.owner;
+		this.raster_width = this.owner.raster_width;
+		this.raster_height = this.owner.raster_height;
+		this.raster_position_x = raster_position_x;
+		this.raster_position_y = raster_position_y;
+	}
+
+	/** @return the raster that holds the pixels of this alias, null if this raster holds its own */
+	public PSDRasterImpl getOwner () {
+		return this.owner;
 	}
 
 	@Override
@@ -48,13 +72,54 @@ public class PSDRasterImpl implements PSDRaster, PSDRasterPosition, PSDRasterDim
 
 	@Override
 	public BufferedImage getBufferedImage () {
-
+		if (this.owner != null) {
+			return this.owner.getBufferedImage();
+		}
 		return this.buffered_image;
 	}
 
 	@Override
-	public void drop () {
+	public PSDRaster retain () {
+		if (this.owner != null) {
+			this.owner.retain();
+			return this;
+		}
+		while (true) {
+			final int count = this.references.get();
+			if (count <= 0) {
+				throw new IllegalStateException("Raster is released: " + this);
+			}
+			if (this.references.compareAndSet(count, count + 1)) {
+				return this;
+			}
+		}
+	}
+
+	@Override
+	public void release () {
+		if (this.owner != null) {
+			this.owner.release();
+			return;
+		}
+		final int count = this.references.decrementAndGet();
+		if (count > 0) {
+			return;
+		}
+		if (count < 0) {
+			throw new IllegalStateException("Raster is released more often than retained: " + this);
+		}
+		final BufferedImage image = this.buffered_image;
 		this.buffered_image = null;
+		final DataBuffer buffer = image.getRaster().getDataBuffer();
+		if (buffer instanceof DataBufferInt) {
+			PlaneBufferPool.SHARED.release(((DataBufferInt)buffer).getData());
+		}
+	}
+
+	@Override
+	@Deprecated
+	public void drop () {
+		this.release();
 	}
 
 	@Override
@@ -0,0 +1,250 @@
+package com.jfixby.psd.unpacker.core;
+
+import java.util.Arrays;
+
+import com.jfixby.psd.unpacker.api.PSDUnpackMetrics;
+import com.jfixby.psd.unpacker.api.PSD_COMPRESSION;
+import com.jfixby.psd.unpacker.api.PSD_UNPACK_PHASE;
+
+public class PSDUnpackMetricsImpl implements PSDUnpackMetrics {
+
+	private final long[] nanos = new long[PSD_UNPACK_PHASE.values().length];
+	private final int[] layers_by_compression = new int[PSD_COMPRESSION.values().length];
+	private final int[] channels_by_compression = new int[PSD_COMPRESSION.values().length];
+	private int files;
+	private long bytes_read;
+	private long bytes_skipped;
+	private long plane_bytes;
+	private long raster_bytes;
+	private int layers;
+	private int decoded_layers;
+	private int cached_layers;
+	private int shared_layers;
+	private int filtered_layers;
+
+	public static PSD_COMPRESSION compressionOf (final int code) {
+		if (code < 0 || code >= PSD_COMPRESSION.values().length) {
+			return null;
+		}
+		return PSD_COMPRESSION.values()[code];
+	}
+
+	public synchronized void addNanos (final PSD_UNPACK_PHASE phase, final long nanos) {
+		this.nanos[phase.ordinal()] += nanos;
+	}
+
+	public synchronized void addFile () {
+		this.files++;
+	}
+
+	public synchronized void addBytesRead (final long bytes) {
+		this.bytes_read += bytes;
+	}
+
+	public synchronized void addBytesSkipped (final long bytes) {
+		this.bytes_skipped += bytes;
+	}
+
+	public synchronized void addPlaneBytes (final long bytes) {
+		this.plane_bytes += bytes;
+	}
+
+	public synchronized void addRasterBytes (final long bytes) {
+		this.raster_bytes += bytes;
+	}
+
+	public synchronized void addLayers (final int layers) {
+		this.layers += layers;
+	}
+
+	public synchronized void addDecodedLayer (final PSD_COMPRESSION compression) {
+		this.decoded_layers++;
+		if (compression != null) {
+			this.layers_by_compression[compression.ordinal()]++;
+		}
+	}
+
+	public synchronized void addCachedLayer () {
+		this.cached_layers++;
+	}
+
+	public synchronized void addSharedLayer () {
+		this.shared_layers++;
+	}
+
+	public synchronized void addFilteredLayer () {
+		this.filtered_layers++;
+	}
+
+	public synchronized void addChannel (final PSD_COMPRESSION compression) {
+		if (compression != null) {
+			this.channels_by_compression[compression.ordinal()]++;
+		}
+	}
+
+	@Override
+	public synchronized long getNanos (final PSD_UNPACK_PHASE phase) {
+		return this.nanos[phase.ordinal()];
+	}
+
+	@Override
+	public synchronized long getTotalNanos () {
+		long total = 0;
+		for (int i = 0; i < this.nanos.length; i++) {
+			total += this.nanos[i];
+		}
+		return total;
+	}
+
+	@Override
+	public synchronized int getNumberOfFiles () {
+		return this.files;
+	}
+
+	@Override
+	public synchronized long getBytesRead () {
+		return this.bytes_read;
+	}
+
+	@Override
+	public synchronized long getBytesSkipped () {
+		return this.bytes_skipped;
+	}
+
+	@Override
+	public synchronized long getPlaneBytesAllocated () {
+		return this.plane_bytes;
+	}
+
+	@Override
+	public synchronized long getRasterBytesAllocated () {
+		return this.raster_bytes;
+	}
+
+	@Override
+	public synchronized int getNumberOfLayers () {
+		return this.layers;
+	}
+
+	@Override
+	public synchronized int getNumberOfDecodedLayers () {
+		return this.decoded_layers;
+	}
+
+	@Override
+	public synchronized int getNumberOfCachedLayers () {
+		return this.cached_layers;
+	}
+
+	@Override
+	public synchronized int getNumberOfSharedLayers () {
+		return this.shared_layers;
+	}
+
+	@Override
+	public synchronized int getNumberOfFilteredLayers () {
+		return this.filtered_layers;
+	}
+
+	@Override
+	public synchronized int getNumberOfLayers (final PSD_COMPRESSION compression) {
+		return this.layers_by_compression[compression.ordinal()];
+	}
+
+	@Override
+	public synchronized int getNumberOfChannels (final PSD_COMPRESSION compression) {
+		return this.channels_by_compression[compression.ordinal()];
+	}
+
+	@Override
+	public void add (final PSDUnpackMetrics other) {
+		if (other == this) {
+			throw new IllegalArgumentException("Metrics can not be added to themselves");
+		}
+		// read the other side first, never hold both locks
+		final long[] nanos = new long[this.nanos.length];
+		for (final PSD_UNPACK_PHASE phase : PSD_UNPACK_PHASE.values()) {
+			nanos[phase.ordinal()] = other.getNanos(phase);
+		}
+		final int[] layers_by_compression = new int[this.layers_by_compression.length];
+		final int[] channels_by_compression = new int[this.channels_by_compression.length];
+		for (final PSD_COMPRESSION compression : PSD_COMPRESSION.values()) {
+			layers_by_compression[compression.ordinal()] = other.getNumberOfLayers(compression);
+			channels_by_compression[compression.ordinal()] = other.getNumberOfChannels(compression);
+		}
+		final int files = other.getNumberOfFiles();
+		final long bytes_read = other.getBytesRead();
+		final long bytes_skipped = other.getBytesSkipped();
+		final long plane_bytes = other.getPlaneBytesAllocated();
+		final long raster_bytes = other.getRasterBytesAllocated();
+		final int layers = other.getNumberOfLayers();
+		final int decoded_layers = other.getNumberOfDecodedLayers();
+		final int cached_layers = other.getNumberOfCachedLayers();
+		final int shared_layers = other.getNumberOfSharedLayers();
+		final int filtered_layers = other.getNumberOfFilteredLayers();
+		synchronized (this) {
+			for (int i = 0; i < nanos.length; i++) {
+				this.nanos[i] += nanos[i];
+			}
+			for (int i = 0; i < layers_by_compression.length; i++) {
+				this.layers_by_compression[i] += layers_by_compression[i];
+				this.channels_by_compression[i] += channels_by_compression[i];
+			}
+			this.files += files;
+			this.bytes_read += bytes_read;
+			this.bytes_skipped += bytes_skipped;
+			this.plane_bytes += plane_bytes;
+			this.raster_bytes += raster_bytes;
+			this.layers += layers;
+			this.decoded_layers += decoded_layers;
+			this.cached_layers += cached_layers;
+			this.shared_layers += shared_layers;
+			this.filtered_layers += filtered_layers;
+		}
+	}
+
+	@Override
+	public synchronized void reset () {
+		Arrays.fill(this.nanos, 0);
+		Arrays.fill(this.layers_by_compression, 0);
+		Arrays.fill(this.channels_by_compression, 0);
+		this.files = 0;
+		this.bytes_read = 0;
+		this.bytes_skipped = 0;
+		this.plane_bytes = 0;
+		this.raster_bytes = 0;
+		this.layers = 0;
+		this.decoded_layers = 0;
+		this.cached_layers = 0;
+		this.shared_layers = 0;
+		this.filtered_layers = 0;
+	}
+
+	@Override
+	public synchronized String toString () {
+		final StringBuilder b = new StringBuilder();
+		b.append("PSDUnpackMetrics [files=").append(this.files);
+		b.append(", total=").append(this.getTotalNanos() / 1000000).append("ms");
+		for (final PSD_UNPACK_PHASE phase : PSD_UNPACK_PHASE.values()) {
+			b.append(", ").append(phase).append("=").append(this.nanos[phase.ordinal()] / 1000000).append("ms");
+		}
+		b.append(", read=").append(this.bytes_read);
+		b.append(", skipped=").append(this.bytes_skipped);
+		b.append(", planes=").append(this.plane_bytes);
+		b.append(", rasters=").append(this.raster_bytes);
+		b.append(", layers=").append(this.layers);
+		b.append(", decoded=").append(this.decoded_layers);
+		b.append(", cached=").append(this.cached_layers);
+		b.append(", shared=").append(this.shared_layers);
+		b.append(", filtered=").append(this.filtered_layers);
+		for (final PSD_COMPRESSION compression : PSD_COMPRESSION.values()) {
+			final int i = compression.ordinal();
+			if (this.channels_by_compression[i] > 0) {
+				b.append(", ").append(compression).append("=").append(this.layers_by_compression[i]).append(" layers/")
+					.append(this.channels_by_compression[i]).append(" channels");
+			}
+		}
+		return b.append("]").toString();
+	}
+
+}
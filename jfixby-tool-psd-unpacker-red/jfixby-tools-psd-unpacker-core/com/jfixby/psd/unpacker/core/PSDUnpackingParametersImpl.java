@@ -1,11 +1,27 @@
 package com.jfixby.psd.unpacker.core;
 
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.Executor;
+
+import com.jfixby.psd.unpacker.api.PSDLayerFilter;
+import com.jfixby.psd.unpacker.api.PSDRasterCache;
 import com.jfixby.psd.unpacker.api.PSDUnpackingParameters;
 import com.jfixby.scarabei.api.file.File;
 
 public class PSDUnpackingParametersImpl implements PSDUnpackingParameters {
 	private File PSDFilePath;
+	private InputStream PSDStream;
+	private ReadableByteChannel PSDChannel;
+	private ByteBuffer PSDBuffer;
 	private boolean CrashOnMask = true;
+	private PSDLayerFilter LayerFilter;
+	private PSDRasterCache RasterCache;
+	private boolean PremultipliedAlpha = false;
+	private boolean DeduplicateLayers = false;
+	private Executor IOExecutor;
+	private Executor DecodeExecutor;
 
 	@Override
 	public File getPSDFile() {
@@ -16,6 +32,30 @@ public class PSDUnpackingParametersImpl implements PSDUnpackingParameters {
 		PSDFilePath = pSDFilePath;
 	}
 	@Override
+	public InputStream getPSDStream() {
+		return PSDStream;
+	}
+	@Override
+	public void setPSDStream(InputStream pSDStream) {
+		PSDStream = pSDStream;
+	}
+	@Override
+	public ReadableByteChannel getPSDChannel() {
+		return PSDChannel;
+	}
+	@Override
+	public void setPSDChannel(ReadableByteChannel pSDChannel) {
+		PSDChannel = pSDChannel;
+	}
+	@Override
+	public ByteBuffer getPSDBuffer() {
+		return PSDBuffer;
+	}
+	@Override
+	public void setPSDBuffer(ByteBuffer pSDBuffer) {
+		PSDBuffer = pSDBuffer;
+	}
+	@Override
 	public boolean getCrashOnMask() {
 		return CrashOnMask;
 	}
@@ -23,5 +63,53 @@ public class PSDUnpackingParametersImpl implements PSDUnpackingParameters {
 	public void setCrashOnMask(boolean crashOnMask) {
 		CrashOnMask = crashOnMask;
 	}
+	@Override
+	public PSDLayerFilter getLayerFilter() {
+		return LayerFilter;
+	}
+	@Override
+	public void setLayerFilter(PSDLayerFilter layerFilter) {
+		LayerFilter = layerFilter;
+	}
+	@Override
+	public PSDRasterCache getRasterCache() {
+		return RasterCache;
+	}
+	@Override
+	public void setRasterCache(PSDRasterCache rasterCache) {
+		RasterCache = rasterCache;
+	}
+	@Override
+	public boolean getPremultipliedAlpha() {
+		return PremultipliedAlpha;
+	}
+	@Override
+	public void setPremultipliedAlpha(boolean premultipliedAlpha) {
+		PremultipliedAlpha = premultipliedAlpha;
+	}
+	@Override
+	public boolean getDeduplicateLayers() {
+		return DeduplicateLayers;
+	}
+	@Override
+	public void setDeduplicateLayers(boolean deduplicateLayers) {
+		DeduplicateLayers = deduplicateLayers;
+	}
+	@Override
+	public Executor getIOExecutor() {
+		return IOExecutor;
+	}
+	@Override
+	public void setIOExecutor(Executor iOExecutor) {
+		IOExecutor = iOExecutor;
+	}
+	@Override
+	public Executor getDecodeExecutor() {
+		return DecodeExecutor;
+	}
+	@Override
+	public void setDecodeExecutor(Executor decodeExecutor) {
+		DecodeExecutor = decodeExecutor;
+	}
 
 }
@@ -0,0 +1,49 @@
+package com.jfixby.psd.unpacker.core;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+
+/** Direct access to the pixel array of decoded rasters, shared by the compositor and the encoders of the runner so both
+ * accept the same images. */
+public final class RasterPixels {
+
+	private RasterPixels () {
+	}
+
+	/** @return the ARGB pixels of the image if it stores them row by row without gaps, null otherwise. They are premultiplied
+	 *         if {@link #isPremultiplied(BufferedImage)}. */
+	public static int[] pixelsOf (final BufferedImage image) {
+		if (!isIntARGB(image) || !(image.getRaster().getDataBuffer() instanceof DataBufferInt)) {
+			return null;
+		}
+		if (!(image.getSampleModel() instanceof SinglePixelPackedSampleModel)
+			|| ((SinglePixelPackedSampleModel)image.getSampleModel()).getScanlineStride() != image.getWidth()
+			|| image.getRaster().getSampleModelTranslateX() != 0 || image.getRaster().getSampleModelTranslateY() != 0) {
+			return null;
+		}
+		return ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+	}
+
+	/** Copies a rectangle of the ARGB pixels row by row, premultiplied if {@link #isPremultiplied(BufferedImage)}.
+	 *
+	 * @param into array of at least w * h pixels, a new one if null */
+	public static int[] getPixels (final BufferedImage image, final int x, final int y, final int w, final int h,
+		final int[] into) {
+		if (isIntARGB(image)) {
+			return (int[])image.getRaster().getDataElements(x, y, w, h, into);
+		}
+		return image.getRGB(x, y, w, h, into, 0, w);
+	}
+
+	/** @return true if the pixels returned for the image are premultiplied: they are for a
+	 *         {@link BufferedImage#TYPE_INT_ARGB_PRE} image, every other image type is converted to plain ARGB */
+	public static boolean isPremultiplied (final BufferedImage image) {
+		return image.getType() == BufferedImage.TYPE_INT_ARGB_PRE;
+	}
+
+	private static boolean isIntARGB (final BufferedImage image) {
+		return image.getType() == BufferedImage.TYPE_INT_ARGB || image.getType() == BufferedImage.TYPE_INT_ARGB_PRE;
+	}
+
+}
@@ -2,26 +2,249 @@ package com.jfixby.psd.unpacker.core;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 
+import com.jfixby.psd.unpacker.api.PSDContentCache;
 import com.jfixby.psd.unpacker.api.PSDFileContent;
+import com.jfixby.psd.unpacker.api.PSDFileIndex;
+import com.jfixby.psd.unpacker.api.PSDFormatException;
+import com.jfixby.psd.unpacker.api.PSDLayer;
+import com.jfixby.psd.unpacker.api.PSDLayerSelector;
+import com.jfixby.psd.unpacker.api.PSDMemoryGovernor;
+import com.jfixby.psd.unpacker.api.PSDRaster;
+import com.jfixby.psd.unpacker.api.PSDRasterCache;
+import com.jfixby.psd.unpacker.api.PSDStructureReport;
+import com.jfixby.psd.unpacker.api.PSDUnpackMetrics;
 import com.jfixby.psd.unpacker.api.PSDUnpackerComponent;
 import com.jfixby.psd.unpacker.api.PSDUnpackingParameters;
+import com.jfixby.psd.unpacker.api.PSD_FORMAT_PROBLEM;
+import com.jfixby.psd.unpacker.api.PSD_UNPACK_PHASE;
+import com.jfixby.psd.unpacker.core.jfr.FileUnpackEvent;
+import com.jfixby.psd.unpacker.core.jfr.JFRSupport;
+import com.jfixby.psd.unpacker.core.legacy.ByteBufferInputStream;
 import com.jfixby.psd.unpacker.core.legacy.PSDReader;
+import com.jfixby.psd.unpacker.core.legacy.ReadAheadInputStream;
+import com.jfixby.psd.unpacker.core.legacy.Status;
+import com.jfixby.psd.unpacker.core.legacy.StructureReport;
+import com.jfixby.psd.unpacker.core.legacy.StructureScanner;
 import com.jfixby.scarabei.api.file.File;
 import com.jfixby.scarabei.api.log.L;
 
 public class RedPSDUnpacker implements PSDUnpackerComponent {
 
+    private final PSDContentCacheImpl content_cache = new PSDContentCacheImpl();
+    private final PSDMemoryGovernorImpl memory_governor = new PSDMemoryGovernorImpl();
+
     @Override
     public PSDUnpackingParameters newUnpackingSpecs() {
 	return new PSDUnpackingParametersImpl();
     }
 
     @Override
-    public PSDFileContent unpack(PSDUnpackingParameters params) throws IOException {
-	boolean crash_on_mask = params.getCrashOnMask();
+    public PSDLayerSelector newLayerSelector() {
+	return new PSDLayerSelectorImpl();
+    }
+
+    @Override
+    public PSDRasterCache newDiskRasterCache(java.io.File cache_folder, long max_size_in_bytes) {
+	return new DiskRasterCache(cache_folder, max_size_in_bytes);
+    }
 
+    @Override
+    public PSDContentCache getContentCache() {
+	return content_cache;
+    }
+
+    @Override
+    public PSDMemoryGovernor getMemoryGovernor() {
+	return memory_governor;
+    }
+
+    @Override
+    public PSDUnpackMetrics newMetrics() {
+	return new PSDUnpackMetricsImpl();
+    }
+
+    @Override
+    public PSDStructureReport scan(PSDUnpackingParameters params) throws IOException {
+	if (params.getPSDBuffer() != null) {
+	    return StructureScanner.scan(params.getPSDBuffer().slice());
+	}
 	File file = params.getPSDFile();
+	if (file == null) {
+	    throw new IOException("Only a file or a buffer can be scanned");
+	}
+	if (!file.exists()) {
+	    throw new IOException("File not found: " + file);
+	}
+	return StructureScanner.scan(ByteBuffer.wrap(file.readBytes().toArray()));
+    }
+
+    @Override
+    public PSDFileIndex openIndex(Path psd_file, boolean write_sidecar) throws IOException {
+	if (!Files.isRegularFile(psd_file)) {
+	    throw new IOException("File not found: " + psd_file);
+	}
+	return PSDFileIndexImpl.open(psd_file, write_sidecar);
+    }
+
+    @Override
+    public PSDRaster flatten(PSDLayer layer) {
+	return new LayerCompositor(null).flatten(layer);
+    }
+
+    @Override
+    public PSDFileContent unpack(PSDUnpackingParameters params) throws IOException {
+	Job job = new Job(params, null);
+	load(job);
+	return decode(job);
+    }
+
+    @Override
+    public CompletableFuture<PSDFileContent> unpackAsync(final PSDUnpackingParameters params) {
+	final CompletableFuture<PSDFileContent> future = new CompletableFuture<PSDFileContent>();
+	final Job job = new Job(params, future);
+	final Executor io = params.getIOExecutor() != null ? params.getIOExecutor() : UnpackExecutors.io();
+	final Executor decoder = params.getDecodeExecutor() != null ? params.getDecodeExecutor()
+		: UnpackExecutors.decode();
+	final Runnable decode = new Runnable() {
+	    @Override
+	    public void run() {
+		try {
+		    complete(future, decode(job));
+		} catch (Throwable e) {
+		    future.completeExceptionally(e);
+		}
+	    }
+	};
+	Runnable load = new Runnable() {
+	    @Override
+	    public void run() {
+		try {
+		    load(job);
+		    if (job.content != null) {
+			// taken from the content cache, nothing to decode
+			complete(future, decode(job));
+		    } else {
+			decoder.execute(decode);
+		    }
+		} catch (Throwable e) {
+		    job.releaseReservation();
+		    future.completeExceptionally(e);
+		}
+	    }
+	};
+	try {
+	    io.execute(load);
+	} catch (RejectedExecutionException e) {
+	    future.completeExceptionally(e);
+	}
+	return future;
+    }
+
+    private static void complete(CompletableFuture<PSDFileContent> future, PSDFileContent content) {
+	if (!future.complete(content)) {
+	    // cancelled meanwhile, nobody will close it
+	    content.close();
+	}
+    }
+
+    /** State of one unpack between reading the file and decoding it. */
+    static final class Job {
+	final PSDUnpackingParameters params;
+	/** null if the document comes from a stream, a channel or a buffer */
+	final File file;
+	final String name;
+	final Future<?> cancellation;
+	final PSDUnpackMetricsImpl metrics = new PSDUnpackMetricsImpl();
+	FileUnpackEvent event;
+	String cache_key;
+	PSDFileContentImpl content;
+	/** the whole document for the pre-scan, null for streams and channels */
+	ByteBuffer scan;
+	InputStream input;
+	/** memory of this unpack, null while the governor is disabled or for a cached content */
+	PSDMemoryGovernorImpl.Reservation reservation;
+	/** bytes of the document held in memory by this unpack */
+	long input_bytes;
+
+	Job(PSDUnpackingParameters params, Future<?> cancellation) {
+	    this.params = params;
+	    this.cancellation = cancellation;
+	    if (params.getPSDStream() != null) {
+		this.file = null;
+		this.name = "stream";
+	    } else if (params.getPSDChannel() != null) {
+		this.file = null;
+		this.name = "channel";
+	    } else if (params.getPSDBuffer() != null) {
+		this.file = null;
+		this.name = "buffer";
+	    } else {
+		this.file = params.getPSDFile();
+		this.name = this.file == null ? null : this.file.getName();
+	    }
+	}
+
+	Object source() {
+	    return file != null ? file : name;
+	}
+
+	void releaseReservation() {
+	    if (reservation != null) {
+		reservation.release();
+		reservation = null;
+	    }
+	}
+
+	void checkCancelled() {
+	    if (cancellation != null && cancellation.isCancelled()) {
+		throw new CancellationException("Unpacking is cancelled: " + source());
+	    }
+	}
+    }
+
+    /** Opens a stream, a channel or a buffer, nothing is read ahead of the decoding. */
+    private static void open(Job job) {
+	PSDUnpackingParameters params = job.params;
+	if (params.getPSDStream() != null) {
+	    job.input = new ReadAheadInputStream(params.getPSDStream(), ReadAheadInputStream.DEFAULT_WINDOW_SIZE);
+	} else if (params.getPSDChannel() != null) {
+	    job.input = new ReadAheadInputStream(params.getPSDChannel(), ReadAheadInputStream.DEFAULT_WINDOW_SIZE);
+	} else {
+	    job.scan = params.getPSDBuffer().slice();
+	    job.input = new ByteBufferInputStream(job.scan);
+	}
+    }
+
+    /** Checks the file, looks it up in the content cache and reads its bytes on a miss. Streams and channels are read by
+     * the decoding. */
+    private void load(Job job) throws IOException {
+	job.checkCancelled();
+	File file = job.file;
+	if (file == null) {
+	    if (job.name == null) {
+		throw new IOException("No PSD file, stream, channel or buffer is set");
+	    }
+	    L.d("unpacking", job.name);
+	    // the caller holds a buffer, streams and channels are read through a small window
+	    reserve(job, 0);
+	    open(job);
+	    if (JFRSupport.AVAILABLE) {
+		job.event = new FileUnpackEvent();
+		job.event.begin();
+	    }
+	    return;
+	}
 
 	L.d("unpacking", file);
 
@@ -33,15 +256,143 @@ public class RedPSDUnpacker implements PSDUnpackerComponent {
 	    throw new IOException("This is not a file: " + file);
 	}
 
+	if (JFRSupport.AVAILABLE) {
+	    job.event = new FileUnpackEvent();
+	    job.event.begin();
+	}
+	try {
+	    // filters may collect state while being called, a cached result would bypass them
+	    PSDUnpackingParameters params = job.params;
+	    if (params.getLayerFilter() == null && content_cache.getByteBudget() > 0) {
+		job.cache_key = PSDContentCacheImpl.keyOf(file, params.getCrashOnMask(), params.getPremultipliedAlpha(),
+			params.getDeduplicateLayers());
+		job.content = content_cache.get(job.cache_key);
+		if (job.content != null) {
+		    if (job.event != null) {
+			job.event.cacheHit = true;
+		    }
+		    return;
+		}
+	    }
+	    reserve(job, file.getSize());
+	    long t = System.nanoTime();
+	    byte[] bytes = file.readBytes().toArray();
+	    job.metrics.addNanos(PSD_UNPACK_PHASE.FILE_READ, System.nanoTime() - t);
+	    job.scan = ByteBuffer.wrap(bytes);
+	    job.input = new ByteArrayInputStream(bytes);
+	} catch (IOException | RuntimeException | Error e) {
+	    job.releaseReservation();
+	    if (job.event != null) {
+		commit(job.event, job, null);
+	    }
+	    throw e;
+	}
+    }
+
+    /** Waits until the memory governor admits the input of the job. */
+    private void reserve(Job job, long input_bytes) throws IOException {
+	if (!memory_governor.isEnabled()) {
+	    return;
+	}
+	job.reservation = memory_governor.reserve(input_bytes, job.cancellation);
+	if (job.reservation == null) {
+	    job.checkCancelled();
+	    throw new InterruptedIOException("Interrupted while waiting for memory: " + job.source());
+	}
+	job.input_bytes = input_bytes;
+    }
+
+    private PSDFileContentImpl decode(Job job) throws IOException {
+	PSDFileContentImpl content = null;
+	try {
+	    if (job.content != null) {
+		content = job.content;
+		return content;
+	    }
+	    job.checkCancelled();
+	    content = read(job);
+	    if (job.reservation != null) {
+		content.holdReservation(job.reservation);
+		job.reservation = null;
+	    }
+	    if (job.cache_key != null) {
+		content_cache.put(job.cache_key, content);
+	    }
+	    return content;
+	} finally {
+	    job.scan = null;
+	    job.input = null;
+	    job.releaseReservation();
+	    if (job.event != null) {
+		commit(job.event, job, content);
+	    }
+	}
+    }
+
+    private PSDFileContentImpl read(Job job) throws IOException {
+	PSDUnpackingParameters params = job.params;
+	PSDUnpackMetricsImpl metrics = job.metrics;
+	FileUnpackEvent event = job.event;
 	PSDReader unpacker = new PSDReader();
-	unpacker.setCrashOnMask(crash_on_mask);
+	unpacker.setCrashOnMask(params.getCrashOnMask());
+	unpacker.setLayerFilter(params.getLayerFilter());
+	unpacker.setRasterCache(params.getRasterCache());
+	unpacker.setPremultipliedAlpha(params.getPremultipliedAlpha());
+	unpacker.setDeduplicateLayers(params.getDeduplicateLayers());
+	unpacker.setCancellation(job.cancellation);
+	if (job.reservation != null) {
+	    unpacker.setReservation(job.reservation, job.input_bytes);
+	}
+	unpacker.setMetrics(metrics);
 
-	byte[] bytes = file.readBytes().toArray();
+	if (job.scan != null) {
+	    long now = System.nanoTime();
+	    // reject broken files before the reader allocates anything from their records
+	    StructureReport report = StructureScanner.scan(job.scan.duplicate());
+	    metrics.addNanos(PSD_UNPACK_PHASE.PRE_SCAN, System.nanoTime() - now);
+	    if (event != null) {
+		event.fileSize = job.scan.remaining();
+		event.width = report.getWidth();
+		event.height = report.getHeight();
+	    }
+	    report.check();
+	}
 
-	com.jfixby.psd.unpacker.core.legacy.FileContent result = unpacker.readFromStream(file.getName(),
-		new ByteArrayInputStream(bytes));
+	com.jfixby.psd.unpacker.core.legacy.FileContent result = unpacker.readFromStream(job.name, job.input);
 
-	return new PSDFileContentImpl(result);
+	Status status = unpacker.getStatus();
+	if (status != Status.STATUS_OK) {
+	    if (result != null) {
+		new PSDFileContentImpl(result, metrics).close();
+	    }
+	    if (status == Status.STATUS_CANCELLED) {
+		throw new CancellationException("Unpacking is cancelled: " + job.source());
+	    }
+	    PSD_FORMAT_PROBLEM problem = status == Status.STATUS_UNSUPPORTED ? PSD_FORMAT_PROBLEM.UNSUPPORTED_FORMAT
+		    : PSD_FORMAT_PROBLEM.MALFORMED_DATA;
+	    throw new PSDFormatException(problem, -1, status + " while reading " + job.source());
+	}
+
+	return new PSDFileContentImpl(result, metrics);
+    }
+
+    private static void commit(FileUnpackEvent event, Job job, PSDFileContentImpl content) {
+	event.end();
+	if (event.shouldCommit()) {
+	    event.fileName = job.name;
+	    if (event.cacheHit) {
+		event.fileSize = job.file.getSize();
+	    }
+	    event.failed = content == null;
+	    if (content != null) {
+		PSDUnpackMetrics metrics = content.getMetrics();
+		event.layers = metrics.getNumberOfLayers();
+		event.bytesRead = metrics.getBytesRead();
+		event.rasterLayers = content.getRasterLayers().size();
+		event.rasterBytes = content.getRasterBytes();
+	    }
+	    event.commit();
+	}
     }
 
 }
@@ -0,0 +1,66 @@
+package com.jfixby.psd.unpacker.core;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Default executors of {@link RedPSDUnpacker#unpackAsync}. File reads block, so they run on virtual threads where the
+ * runtime has them (Java 21+) and on a cached pool otherwise. Decoding is CPU bound and runs on a pool of one thread per
+ * core. Both are created on first use and hold daemon threads only. */
+public class UnpackExecutors {
+
+	private static Executor io;
+	private static boolean virtual;
+	private static Executor decode;
+
+	/** @return true if {@link #io()} runs on virtual threads */
+	public static synchronized boolean hasVirtualThreads () {
+		io();
+		return virtual;
+	}
+
+	public static synchronized Executor io () {
+		if (io == null) {
+			io = newVirtualThreadPerTaskExecutor();
+			virtual = io != null;
+			if (io == null) {
+				io = Executors.newCachedThreadPool(new Daemons("psd-io-"));
+			}
+		}
+		return io;
+	}
+
+	public static synchronized Executor decode () {
+		if (decode == null) {
+			decode = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new Daemons("psd-decode-"));
+		}
+		return decode;
+	}
+
+	/** The factory is Java 21 API and the module targets Java 11, so it is looked up by name. */
+	private static Executor newVirtualThreadPerTaskExecutor () {
+		try {
+			return (Executor)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (final Throwable e) {
+			return null;
+		}
+	}
+
+	static final class Daemons implements ThreadFactory {
+		private final String prefix;
+		private final AtomicInteger counter = new AtomicInteger();
+
+		Daemons (final String prefix) {
+			this.prefix = prefix;
+		}
+
+		@Override
+		public Thread newThread (final Runnable task) {
+			final Thread thread = new Thread(task, this.prefix + this.counter.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+
+}
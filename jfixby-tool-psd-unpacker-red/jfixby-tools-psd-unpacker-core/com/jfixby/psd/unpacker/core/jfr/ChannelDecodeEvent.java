@@ -0,0 +1,43 @@
+package com.jfixby.psd.unpacker.core.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("com.jfixby.psd.ChannelDecode")
+@Label("PSD Channel Decode")
+@Description("Unpacking one stored channel into a plane")
+@Category({"PSD Unpacker"})
+@StackTrace(false)
+public class ChannelDecodeEvent extends jdk.jfr.Event {
+
+	@Label("File Name")
+	public String fileName;
+
+	@Label("Layer Name")
+	public String layerName;
+
+	@Label("Channel")
+	public String channel;
+
+	@Label("Width")
+	public int width;
+
+	@Label("Height")
+	public int height;
+
+	@Label("Compression")
+	public String compression;
+
+	@Label("Stored Bytes")
+	@DataAmount
+	public long storedBytes;
+
+	@Label("Decoded Bytes")
+	@DataAmount
+	public long decodedBytes;
+
+}
@@ -0,0 +1,50 @@
+package com.jfixby.psd.unpacker.core.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("com.jfixby.psd.FileUnpack")
+@Label("PSD File Unpack")
+@Description("One PSDUnpacker.unpack() call, from reading the file to the finished layer tree")
+@Category({"PSD Unpacker"})
+@StackTrace(false)
+public class FileUnpackEvent extends jdk.jfr.Event {
+
+	@Label("File Name")
+	public String fileName;
+
+	@Label("File Size")
+	@DataAmount
+	public long fileSize;
+
+	@Label("Width")
+	public int width;
+
+	@Label("Height")
+	public int height;
+
+	@Label("Layers")
+	public int layers;
+
+	@Label("Raster Layers")
+	public int rasterLayers;
+
+	@Label("Bytes Read")
+	@DataAmount
+	public long bytesRead;
+
+	@Label("Raster Bytes")
+	@DataAmount
+	public long rasterBytes;
+
+	@Label("Content Cache Hit")
+	public boolean cacheHit;
+
+	@Label("Failed")
+	public boolean failed;
+
+}
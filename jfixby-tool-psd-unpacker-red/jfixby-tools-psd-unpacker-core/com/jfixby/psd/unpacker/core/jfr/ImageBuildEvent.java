@@ -0,0 +1,44 @@
+package com.jfixby.psd.unpacker.core.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("com.jfixby.psd.ImageBuild")
+@Label("PSD Image Build")
+@Description("Filling the ARGB raster of one layer, from its planes or from the raster cache")
+@Category({"PSD Unpacker"})
+@StackTrace(false)
+public class ImageBuildEvent extends jdk.jfr.Event {
+
+	@Label("File Name")
+	public String fileName;
+
+	@Label("Layer Name")
+	public String layerName;
+
+	@Label("Width")
+	public int width;
+
+	@Label("Height")
+	public int height;
+
+	@Label("Alpha")
+	@Description("The layer has an alpha channel")
+	public boolean alpha;
+
+	@Label("Raster Bytes")
+	@DataAmount
+	public long rasterBytes;
+
+	@Label("From Raster Cache")
+	public boolean cached;
+
+	@Label("Raster Cache Miss")
+	@Description("A raster cache lookup that found nothing, another event follows for building the raster from its planes")
+	public boolean cacheMiss;
+
+}
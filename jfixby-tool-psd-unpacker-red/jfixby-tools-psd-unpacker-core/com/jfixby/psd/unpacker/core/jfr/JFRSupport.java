@@ -0,0 +1,18 @@
+package com.jfixby.psd.unpacker.core.jfr;
+
+/** The events compile against jdk.jfr, so the core targets Java 11. A runtime image can still leave out the jdk.jfr module:
+ * the events are created behind {@link #AVAILABLE}, so such a runtime never loads them. */
+public class JFRSupport {
+
+	public static final boolean AVAILABLE = isAvailable();
+
+	private static boolean isAvailable () {
+		try {
+			Class.forName("jdk.jfr.Event");
+			return true;
+		} catch (final Throwable e) {
+			return false;
+		}
+	}
+
+}
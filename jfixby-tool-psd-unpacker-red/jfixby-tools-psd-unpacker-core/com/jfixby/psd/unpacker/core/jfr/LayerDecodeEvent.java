@@ -0,0 +1,47 @@
+package com.jfixby.psd.unpacker.core.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("com.jfixby.psd.LayerDecode")
+@Label("PSD Layer Decode")
+@Description("Turning the channel data of one layer into its raster")
+@Category({"PSD Unpacker"})
+@StackTrace(false)
+public class LayerDecodeEvent extends jdk.jfr.Event {
+
+	@Label("File Name")
+	public String fileName;
+
+	@Label("Layer Name")
+	public String layerName;
+
+	@Label("Width")
+	public int width;
+
+	@Label("Height")
+	public int height;
+
+	@Label("Compression")
+	public String compression;
+
+	@Label("Channels")
+	public int channels;
+
+	@Label("Channel Bytes")
+	@Description("Stored size of the channel data")
+	@DataAmount
+	public long channelBytes;
+
+	@Label("Raster Bytes")
+	@DataAmount
+	public long rasterBytes;
+
+	@Label("Raster Cache Hit")
+	public boolean cacheHit;
+
+}
@@ -0,0 +1,52 @@
+package com.jfixby.psd.unpacker.core.legacy;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/** Reads the remaining bytes of a buffer, heap, direct or mapped, without copying them first. The buffer is read through a
+ * duplicate, its position is left as it was. */
+public class ByteBufferInputStream extends InputStream {
+
+	private final ByteBuffer buffer;
+
+	public ByteBufferInputStream (final ByteBuffer buffer) {
+		this.buffer = buffer.duplicate();
+	}
+
+	@Override
+	public int read () {
+		if (!this.buffer.hasRemaining()) {
+			return -1;
+		}
+		return this.buffer.get() & 0xff;
+	}
+
+	@Override
+	public int read (final byte[] bytes, final int offset, final int length) {
+		if (length == 0) {
+			return 0;
+		}
+		if (!this.buffer.hasRemaining()) {
+			return -1;
+		}
+		final int n = Math.min(length, this.buffer.remaining());
+		this.buffer.get(bytes, offset, n);
+		return n;
+	}
+
+	@Override
+	public long skip (final long n) {
+		if (n <= 0) {
+			return 0;
+		}
+		final int k = (int)Math.min(n, this.buffer.remaining());
+		this.buffer.position(this.buffer.position() + k);
+		return k;
+	}
+
+	@Override
+	public int available () {
+		return this.buffer.remaining();
+	}
+
+}
@@ -0,0 +1,507 @@
+package com.jfixby.psd.unpacker.core.legacy;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import com.jfixby.psd.unpacker.api.PSDFormatException;
+import com.jfixby.psd.unpacker.api.PSDRasterCache;
+import com.jfixby.psd.unpacker.api.PSD_FORMAT_PROBLEM;
+import com.jfixby.scarabei.api.log.L;
+
+/** Header, image resources, layer tree and channel offsets of one PSD file. Built once from the records at the start of the
+ * file, after that any layer is decoded with a single positional read of its channel data.
+ * <p>
+ * The index can be stored in a sidecar file next to the PSD file. The sidecar remembers size and modification time of the
+ * PSD file and is ignored once either of them changes. */
+public class FileIndex {
+
+	static final int MAGIC = 0x50534458;
+	/** 2: groups carry the blend mode of their section divider setting */
+	static final int VERSION = 2;
+	static final String TEMP_EXTENSION = ".tmp";
+	/** sanity limit for counts read from a sidecar */
+	static final int MAX_COUNT = 1 << 24;
+
+	long file_size;
+	long last_modified;
+	int width;
+	int height;
+	int number_of_channels;
+	long image_resources_offset;
+	long image_resources_length;
+	long image_data_offset;
+	int resources_count;
+	int[] resource_ids = IndexedLayer.NO_INTS;
+	long[] resource_offsets = IndexedLayer.NO_LONGS;
+	long[] resource_lengths = IndexedLayer.NO_LONGS;
+	/** raster layers and groups in document order, every group followed by its content */
+	final ArrayList<IndexedLayer> layers = new ArrayList<IndexedLayer>();
+	private boolean from_sidecar;
+	private String file_name;
+	private FileChannel channel;
+
+	private FileIndex () {
+	}
+
+	/** Indexes the file. Only the header, the image resources, the layer records and the first two bytes of every channel
+	 * are read.
+	 *
+	 * @throws PSDFormatException if the file is rejected */
+	public static FileIndex build (final FileChannel channel, final String file_name, final long last_modified)
+		throws IOException {
+		final long size = channel.size();
+		if (size > Integer.MAX_VALUE) {
+			// PSD sections have 32 bit lengths, larger documents are PSB files
+			throw new PSDFormatException(PSD_FORMAT_PROBLEM.UNSUPPORTED_VERSION, 0, "file is " + size
+				+ " bytes, PSB files are not supported");
+		}
+		// the mapping is only paged in where the scanner and the channel headers touch it
+		final MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+		final StructureReport report = StructureScanner.scan(map);
+		report.check();
+
+		final FileIndex index = new FileIndex();
+		index.file_size = size;
+		index.last_modified = last_modified;
+		index.width = report.getWidth();
+		index.height = report.getHeight();
+		index.number_of_channels = report.getNumberOfChannels();
+		index.image_resources_offset = report.getImageResourcesOffset();
+		index.image_resources_length = report.getImageResourcesLength();
+		index.image_data_offset = report.getImageDataOffset();
+		index.indexResources(map);
+
+		final PSDReader reader = new PSDReader();
+		reader.setCrashOnMask(false);
+		channel.position(0);
+		final ArrayList<LayerInfo> records = reader.readRecords(file_name, java.nio.channels.Channels.newInputStream(channel));
+		if (records == null) {
+			throw new PSDFormatException(PSD_FORMAT_PROBLEM.MALFORMED_DATA, -1, reader.getStatus() + " while indexing "
+				+ file_name);
+		}
+		index.indexLayers(records, reader.position(), map);
+		index.open(channel, file_name);
+		return index;
+	}
+
+	private void indexResources (final ByteBuffer map) {
+		long pos = this.image_resources_offset;
+		final long end = pos + this.image_resources_length;
+		while (pos + 12 <= end && map.getInt((int)pos) == TaggedBlocks.SIGNATURE_8BIM) {
+			final int id = map.getShort((int)pos + 4) & 0xffff;
+			// pascal name padded to an even size together with its length byte
+			final int name_len = map.get((int)pos + 6) & 0xff;
+			final long size_pos = pos + 6 + ((name_len + 2) & ~1);
+			if (size_pos + 4 > end) {
+				break;
+			}
+			final long length = map.getInt((int)size_pos) & 0xffffffffL;
+			final long data = size_pos + 4;
+			if (data + length > end) {
+				break;
+			}
+			this.addResource(id, data, length);
+			pos = data + ((length + 1) & ~1L);
+		}
+	}
+
+	private void addResource (final int id, final long offset, final long length) {
+		if (this.resources_count == this.resource_ids.length) {
+			final int capacity = Math.max(8, this.resources_count * 2);
+			this.resource_ids = Arrays.copyOf(this.resource_ids, capacity);
+			this.resource_offsets = Arrays.copyOf(this.resource_offsets, capacity);
+			this.resource_lengths = Arrays.copyOf(this.resource_lengths, capacity);
+		}
+		this.resource_ids[this.resources_count] = id;
+		this.resource_offsets[this.resources_count] = offset;
+		this.resource_lengths[this.resources_count] = length;
+		this.resources_count++;
+	}
+
+	/** Rebuilds the group structure the same way the reader does, records are stored bottom-up. */
+	private void indexLayers (final ArrayList<LayerInfo> records, final long channel_data_offset, final ByteBuffer map)
+		throws PSDFormatException {
+		final IndexedLayer root = new IndexedLayer(this);
+		root.children = new ArrayList<IndexedLayer>();
+		final ArrayList<IndexedLayer> stack = new ArrayList<IndexedLayer>();
+		stack.add(root);
+		long pos = channel_data_offset;
+		for (int i = 0; i < records.size(); i++) {
+			final LayerInfo info = records.get(i);
+			final IndexedLayer current = stack.get(stack.size() - 1);
+			if (info.w > 0 && info.h > 0) {
+				final IndexedLayer layer = new IndexedLayer(this);
+				set(layer, info);
+				final int channels = info.getChannels().size();
+				layer.channel_ids = new int[channels];
+				layer.channel_offsets = new long[channels];
+				layer.channel_lengths = new int[channels];
+				layer.channel_compressions = new int[channels];
+				for (int j = 0; j < channels; j++) {
+					final ChannelInfo channel = info.getChannels().get(j);
+					layer.channel_ids[j] = channelID(channel.getChannelID());
+					layer.channel_offsets[j] = pos;
+					layer.channel_lengths[j] = channel.getSize();
+					layer.channel_compressions[j] = channel.getSize() < 2 ? -1 : map.getShort((int)pos);
+					pos = pos + channel.getSize();
+				}
+				current.children.add(layer);
+				continue;
+			}
+			pos = pos + channelDataSize(info);
+			if (info.isSectionDivider()) {
+				final IndexedLayer group = new IndexedLayer(this);
+				group.folder = true;
+				group.children = new ArrayList<IndexedLayer>();
+				current.children.add(group);
+				stack.add(group);
+			} else if (info.isGroupRecord()) {
+				if (stack.size() == 1) {
+					throw new PSDFormatException(PSD_FORMAT_PROBLEM.MALFORMED_DATA, -1, "group record without a section divider "
+						+ info.getName());
+				}
+				set(stack.remove(stack.size() - 1), info);
+			}
+			// else: an empty layer, not part of the group structure
+		}
+		if (stack.size() != 1) {
+			throw new PSDFormatException(PSD_FORMAT_PROBLEM.MALFORMED_DATA, -1, (stack.size() - 1) + " groups are not closed");
+		}
+		this.number(root, null);
+	}
+
+	private void number (final IndexedLayer folder, final IndexedLayer parent) {
+		for (int i = 0; i < folder.children.size(); i++) {
+			final IndexedLayer child = folder.children.get(i);
+			child.parent = parent;
+			child.number = this.layers.size();
+			this.layers.add(child);
+			if (child.folder) {
+				this.number(child, child);
+			}
+		}
+		folder.children = null;
+	}
+
+	private static void set (final IndexedLayer layer, final LayerInfo info) {
+		layer.name = info.getName();
+		layer.visible = info.isVisible();
+		layer.x = info.x;
+		layer.y = info.y;
+		layer.w = Math.max(info.w, 0);
+		layer.h = Math.max(info.h, 0);
+		layer.transparency = info.getLayerTransparency();
+		layer.blend_mode = info.isGroupRecord() ? info.getGroupBlendMode() : info.getBlendMode();
+		layer.layer_id = info.getLayerID();
+	}
+
+	private static long channelDataSize (final LayerInfo info) {
+		long size = 0;
+		for (int j = 0; j < info.getChannels().size(); j++) {
+			size = size + info.getChannels().get(j).getSize();
+		}
+		return size;
+	}
+
+	/** ChannelID folds -1 and 3 into ALPHA, the index keeps the id as stored */
+	private static int channelID (final ChannelID id) {
+		switch (id) {
+		case RED:
+			return 0;
+		case GREEN:
+			return 1;
+		case BLUE:
+			return 2;
+		case USER_MASK:
+			return -2;
+		case USER_LAYER_MASK:
+			return -3;
+		default:
+			return -1;
+		}
+	}
+
+	/** Attaches the index to the PSD file it describes, positional reads of the channel data go through this channel. */
+	public void open (final FileChannel channel, final String file_name) {
+		this.channel = channel;
+		this.file_name = file_name;
+	}
+
+	/** Reads a sidecar file.
+	 *
+	 * @return null if there is no sidecar, it is damaged, or it was written for a different version of the PSD file */
+	public static FileIndex read (final Path sidecar, final long file_size, final long last_modified) {
+		try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(sidecar)))) {
+			if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+				return null;
+			}
+			final FileIndex index = new FileIndex();
+			index.file_size = input.readLong();
+			index.last_modified = input.readLong();
+			if (index.file_size != file_size || index.last_modified != last_modified) {
+				L.d("stale sidecar index", sidecar);
+				return null;
+			}
+			index.width = input.readInt();
+			index.height = input.readInt();
+			index.number_of_channels = input.readInt();
+			index.image_resources_offset = input.readLong();
+			index.image_resources_length = input.readLong();
+			index.image_data_offset = input.readLong();
+			final int resources = count(input.readInt());
+			for (int i = 0; i < resources; i++) {
+				index.addResource(input.readInt(), input.readLong(), input.readLong());
+			}
+			final int layers = count(input.readInt());
+			for (int i = 0; i < layers; i++) {
+				index.layers.add(index.readLayer(input, i));
+			}
+			index.from_sidecar = true;
+			return index;
+		} catch (final NoSuchFileException e) {
+			return null;
+		} catch (final IOException e) {
+			L.e("damaged sidecar index " + sidecar, e);
+			return null;
+		}
+	}
+
+	private IndexedLayer readLayer (final DataInputStream input, final int number) throws IOException {
+		final IndexedLayer layer = new IndexedLayer(this);
+		layer.number = number;
+		final int parent = input.readInt();
+		if (parent >= number) {
+			throw new IOException("parent " + parent + " of layer " + number);
+		}
+		if (parent >= 0) {
+			layer.parent = this.layers.get(parent);
+		}
+		layer.name = input.readUTF();
+		final int flags = input.readByte();
+		layer.visible = (flags & 1) != 0;
+		layer.folder = (flags & 2) != 0;
+		layer.x = input.readInt();
+		layer.y = input.readInt();
+		layer.w = input.readInt();
+		layer.h = input.readInt();
+		// the reader allocates rasters of this size, limits as in the scan of the file
+		if (layer.w < 0 || layer.h < 0 || layer.w > StructureScanner.MAX_LAYER_SIZE || layer.h > StructureScanner.MAX_LAYER_SIZE
+			|| (long)layer.w * layer.h > StructureScanner.MAX_PLANE_SIZE) {
+			throw new IOException("layer " + number + " size " + layer.w + "x" + layer.h);
+		}
+		layer.transparency = input.readInt();
+		layer.blend_mode = input.readInt();
+		layer.layer_id = input.readInt();
+		final int channels = count(input.readInt());
+		layer.channel_ids = new int[channels];
+		layer.channel_offsets = new long[channels];
+		layer.channel_lengths = new int[channels];
+		layer.channel_compressions = new int[channels];
+		for (int j = 0; j < channels; j++) {
+			layer.channel_ids[j] = input.readInt();
+			layer.channel_offsets[j] = input.readLong();
+			layer.channel_lengths[j] = input.readInt();
+			layer.channel_compressions[j] = input.readInt();
+			if (layer.channel_offsets[j] < 0 || layer.channel_lengths[j] < 0
+				|| layer.channel_offsets[j] + layer.channel_lengths[j] > this.file_size) {
+				throw new IOException("channel " + j + " of layer " + number + " is out of the file");
+			}
+		}
+		return layer;
+	}
+
+	private static int count (final int count) throws IOException {
+		if (count < 0 || count > MAX_COUNT) {
+			throw new IOException("count " + count);
+		}
+		return count;
+	}
+
+	/** Writes the sidecar file. It is written to a temporary file first and renamed into place, a failure is only logged. */
+	public void write (final Path sidecar) {
+		Path temp = null;
+		try {
+			final Path folder = sidecar.toAbsolutePath().getParent();
+			temp = Files.createTempFile(folder, sidecar.getFileName().toString(), TEMP_EXTENSION);
+			try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+				this.write(output);
+			}
+			try {
+				Files.move(temp, sidecar, StandardCopyOption.ATOMIC_MOVE);
+			} catch (final AtomicMoveNotSupportedException e) {
+				Files.move(temp, sidecar, StandardCopyOption.REPLACE_EXISTING);
+			}
+			temp = null;
+		} catch (final IOException e) {
+			L.e("failed to write sidecar index " + sidecar, e);
+		} finally {
+			if (temp != null) {
+				try {
+					Files.deleteIfExists(temp);
+				} catch (final IOException e) {
+				}
+			}
+		}
+	}
+
+	private void write (final DataOutputStream output) throws IOException {
+		output.writeInt(MAGIC);
+		output.writeInt(VERSION);
+		output.writeLong(this.file_size);
+		output.writeLong(this.last_modified);
+		output.writeInt(this.width);
+		output.writeInt(this.height);
+		output.writeInt(this.number_of_channels);
+		output.writeLong(this.image_resources_offset);
+		output.writeLong(this.image_resources_length);
+		output.writeLong(this.image_data_offset);
+		output.writeInt(this.resources_count);
+		for (int i = 0; i < this.resources_count; i++) {
+			output.writeInt(this.resource_ids[i]);
+			output.writeLong(this.resource_offsets[i]);
+			output.writeLong(this.resource_lengths[i]);
+		}
+		output.writeInt(this.layers.size());
+		for (int i = 0; i < this.layers.size(); i++) {
+			final IndexedLayer layer = this.layers.get(i);
+			output.writeInt(layer.parent == null ? -1 : layer.parent.number);
+			output.writeUTF(layer.name == null ? "" : layer.name);
+			output.writeByte((layer.visible ? 1 : 0) | (layer.folder ? 2 : 0));
+			output.writeInt(layer.x);
+			output.writeInt(layer.y);
+			output.writeInt(layer.w);
+			output.writeInt(layer.h);
+			output.writeInt(layer.transparency);
+			output.writeInt(layer.blend_mode);
+			output.writeInt(layer.layer_id);
+			output.writeInt(layer.channel_ids.length);
+			for (int j = 0; j < layer.channel_ids.length; j++) {
+				output.writeInt(layer.channel_ids[j]);
+				output.writeLong(layer.channel_offsets[j]);
+				output.writeInt(layer.channel_lengths[j]);
+				output.writeInt(layer.channel_compressions[j]);
+			}
+		}
+	}
+
+	/** @return channel data of the layer as stored in the file, all channels in record order, in a pooled array */
+	byte[] readChannelData (final IndexedLayer layer) throws IOException {
+		final int channels = layer.channel_ids.length;
+		if (channels == 0) {
+			return new byte[0];
+		}
+		// channels of one layer are stored back to back
+		final long start = layer.channel_offsets[0];
+		final long end = layer.channel_offsets[channels - 1] + layer.channel_lengths[channels - 1];
+		final int size = (int)(end - start);
+		final byte[] data = PlaneBufferPool.SHARED.obtainBytes(size);
+		final ByteBuffer buffer = ByteBuffer.wrap(data, 0, size);
+		while (buffer.hasRemaining()) {
+			if (this.channel.read(buffer, start + buffer.position()) < 0) {
+				PlaneBufferPool.SHARED.release(data);
+				throw new PSDFormatException(PSD_FORMAT_PROBLEM.TRUNCATED, start + buffer.position(), "channel data of layer "
+					+ layer.getName());
+			}
+		}
+		return data;
+	}
+
+	/** Decodes the pixels of one raster layer, nothing else of the file is read. */
+	public BufferedImage decode (final IndexedLayer layer, final PSDRasterCache raster_cache) throws IOException {
+		if (layer.index != this || layer.folder) {
+			throw new IllegalArgumentException("not a raster layer of " + this.file_name + ": " + layer);
+		}
+		final byte[] channel_data = this.readChannelData(layer);
+		final PSDReader reader = new PSDReader();
+		reader.setRasterCache(raster_cache);
+		try {
+			final BufferedImage image = reader.decodeLayer(this.file_name, layer.toLayerInfo(), channel_data);
+			if (image == null) {
+				final PSD_FORMAT_PROBLEM problem = reader.getStatus() == Status.STATUS_UNSUPPORTED
+					? PSD_FORMAT_PROBLEM.UNSUPPORTED_COMPRESSION : PSD_FORMAT_PROBLEM.MALFORMED_DATA;
+				throw new PSDFormatException(problem, layer.channel_offsets[0], reader.getStatus() + " while decoding "
+					+ layer.getPath());
+			}
+			return image;
+		} finally {
+			PlaneBufferPool.SHARED.release(channel_data);
+		}
+	}
+
+	public boolean isFromSidecar () {
+		return this.from_sidecar;
+	}
+
+	public long getFileSize () {
+		return this.file_size;
+	}
+
+	public long getLastModified () {
+		return this.last_modified;
+	}
+
+	public int getWidth () {
+		return this.width;
+	}
+
+	public int getHeight () {
+		return this.height;
+	}
+
+	public int getNumberOfChannels () {
+		return this.number_of_channels;
+	}
+
+	public long getImageResourcesOffset () {
+		return this.image_resources_offset;
+	}
+
+	public long getImageResourcesLength () {
+		return this.image_resources_length;
+	}
+
+	public long getImageDataOffset () {
+		return this.image_data_offset;
+	}
+
+	public int getNumberOfResources () {
+		return this.resources_count;
+	}
+
+	public int getResourceID (final int i) {
+		return this.resource_ids[i];
+	}
+
+	public long getResourceOffset (final int i) {
+		return this.resource_offsets[i];
+	}
+
+	public long getResourceLength (final int i) {
+		return this.resource_lengths[i];
+	}
+
+	public ArrayList<IndexedLayer> getLayers () {
+		return this.layers;
+	}
+
+	@Override
+	public String toString () {
+		return "FileIndex [file=" + this.file_name + ", size=" + this.file_size + ", layers=" + this.layers.size()
+			+ ", resources=" + this.resources_count + ", from_sidecar=" + this.from_sidecar + "]";
+	}
+
+}
@@ -0,0 +1,185 @@
+package com.jfixby.psd.unpacker.core.legacy;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import com.jfixby.psd.unpacker.api.PSDLayerRecord;
+import com.jfixby.scarabei.api.err.Err;
+
+/** Layer of a {@link FileIndex}: the part of the layer record needed to place the layer in the tree, and where each of its
+ * channels is stored in the file. Groups have no channels. */
+public class IndexedLayer implements PSDLayerRecord {
+
+	static final int[] NO_INTS = new int[0];
+	static final long[] NO_LONGS = new long[0];
+
+	final FileIndex index;
+	/** position in document order */
+	int number = -1;
+	IndexedLayer parent;
+	String name;
+	boolean visible;
+	boolean folder;
+	int x, y, w, h;
+	int transparency = 255;
+	int blend_mode;
+	int layer_id = -1;
+	int[] channel_ids = NO_INTS;
+	long[] channel_offsets = NO_LONGS;
+	int[] channel_lengths = NO_INTS;
+	int[] channel_compressions = NO_INTS;
+	/** only while the index is being built */
+	ArrayList<IndexedLayer> children;
+	private String path;
+	private String fingerprint;
+
+	IndexedLayer (final FileIndex index) {
+		this.index = index;
+	}
+
+	@Override
+	public String toString () {
+		return "IndexedLayer [name=" + this.name + ", number=" + this.number + ", folder=" + this.folder + ", x=" + this.x
+			+ ", y=" + this.y + ", w=" + this.w + ", h=" + this.h + ", channels=" + this.channel_ids.length + "]";
+	}
+
+	public FileIndex getIndex () {
+		return this.index;
+	}
+
+	public int getNumber () {
+		return this.number;
+	}
+
+	/** @return the enclosing group, null for top level layers */
+	public IndexedLayer getParent () {
+		return this.parent;
+	}
+
+	@Override
+	public String getName () {
+		return this.name;
+	}
+
+	@Override
+	public String getPath () {
+		if (this.path == null) {
+			if (this.parent == null) {
+				this.path = this.name;
+			} else {
+				this.path = this.parent.getPath() + "/" + this.name;
+			}
+		}
+		return this.path;
+	}
+
+	public boolean isFolder () {
+		return this.folder;
+	}
+
+	@Override
+	public boolean isVisible () {
+		return this.visible;
+	}
+
+	@Override
+	public boolean isVisibleInTree () {
+		for (IndexedLayer i = this; i != null; i = i.parent) {
+			if (!i.visible) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public int getX () {
+		return this.x;
+	}
+
+	@Override
+	public int getY () {
+		return this.y;
+	}
+
+	@Override
+	public int getWidth () {
+		return this.w;
+	}
+
+	@Override
+	public int getHeight () {
+		return this.h;
+	}
+
+	public double getOpacity () {
+		return this.transparency / 255f;
+	}
+
+	public int getBlendMode () {
+		return this.blend_mode;
+	}
+
+	@Override
+	public int getLayerID () {
+		return this.layer_id;
+	}
+
+	public int getNumberOfChannels () {
+		return this.channel_ids.length;
+	}
+
+	public int getChannelID (final int j) {
+		return this.channel_ids[j];
+	}
+
+	/** @return absolute file offset of the channel, its compression code comes first */
+	public long getChannelOffset (final int j) {
+		return this.channel_offsets[j];
+	}
+
+	public int getChannelLength (final int j) {
+		return this.channel_lengths[j];
+	}
+
+	/** @return compression code of the channel, -1 if the channel is too short to have one */
+	public int getChannelCompression (final int j) {
+		return this.channel_compressions[j];
+	}
+
+	/** Reads the channel data of the layer to hash it, nothing is decoded. Same value as the reader computes. */
+	@Override
+	public String getFingerprint () {
+		if (this.fingerprint == null) {
+			try {
+				final byte[] channel_data = this.index.readChannelData(this);
+				this.fingerprint = LayerFingerprint.of(this.toLayerInfo(), channel_data);
+				PlaneBufferPool.SHARED.release(channel_data);
+			} catch (final IOException e) {
+				Err.reportError(e);
+			}
+		}
+		return this.fingerprint;
+	}
+
+	/** @return record the reader can decode the channel data of this layer with */
+	LayerInfo toLayerInfo () {
+		final LayerInfo info = new LayerInfo(this.number);
+		info.x = this.x;
+		info.y = this.y;
+		info.w = this.w;
+		info.h = this.h;
+		info.visible = this.visible;
+		info.setName(this.name);
+		info.setLayerTransparency(this.transparency);
+		info.setBlendMode(this.blend_mode);
+		for (int j = 0; j < this.channel_ids.length; j++) {
+			final ChannelInfo channel = new ChannelInfo();
+			channel.setChannelID(ChannelID.valueOfInt(this.channel_ids[j]));
+			channel.setSize(this.channel_lengths[j]);
+			info.getChannels().add(channel);
+		}
+		return info;
+	}
+
+}
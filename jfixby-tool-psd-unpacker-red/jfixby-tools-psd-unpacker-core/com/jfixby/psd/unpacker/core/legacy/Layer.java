@@ -6,6 +6,7 @@ public abstract class Layer {
 	boolean visible = true;
 	private int blend_mode;
 	double opacity = 1d;
+	private int layer_id = -1;
 
 	public String getName () {
 		return this.name;
@@ -40,4 +41,12 @@ public abstract class Layer {
 	public double getOpacity () {
 		return this.opacity;
 	}
+
+	public int getLayerID () {
+		return this.layer_id;
+	}
+
+	public void setLayerID (final int layer_id) {
+		this.layer_id = layer_id;
+	}
 }
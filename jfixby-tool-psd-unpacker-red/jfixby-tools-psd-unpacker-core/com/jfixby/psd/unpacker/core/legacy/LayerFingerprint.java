@@ -0,0 +1,55 @@
+
+package com.jfixby.psd.unpacker.core.legacy;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import com.jfixby.scarabei.api.err.Err;
+
+/** Content hash of a layer computed from its compressed channel data, without decoding it. */
+public class LayerFingerprint {
+
+	static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	public static String of (final LayerInfo info, final byte[] channel_data) {
+		final MessageDigest digest = newDigest();
+		updateInt(digest, info.w);
+		updateInt(digest, info.h);
+		int size = 0;
+		for (int j = 0; j < info.getChannels().size(); j++) {
+			final ChannelInfo channel = info.getChannels().get(j);
+			updateInt(digest, channel.getChannelID().ordinal());
+			updateInt(digest, channel.getSize());
+			size = size + channel.getSize();
+		}
+		// channel_data may be a longer pooled array
+		digest.update(channel_data, 0, size);
+		return toHex(digest.digest());
+	}
+
+	private static MessageDigest newDigest () {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (final NoSuchAlgorithmException e) {
+			Err.reportError(e);
+			return null;
+		}
+	}
+
+	private static void updateInt (final MessageDigest digest, final int value) {
+		digest.update((byte)(value >>> 24));
+		digest.update((byte)(value >>> 16));
+		digest.update((byte)(value >>> 8));
+		digest.update((byte)value);
+	}
+
+	static String toHex (final byte[] bytes) {
+		final char[] chars = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			chars[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+			chars[i * 2 + 1] = HEX[bytes[i] & 0xf];
+		}
+		return new String(chars);
+	}
+
+}
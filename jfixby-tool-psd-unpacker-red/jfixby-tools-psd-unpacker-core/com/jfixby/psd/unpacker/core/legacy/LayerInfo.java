@@ -1,10 +1,20 @@
 
 package com.jfixby.psd.unpacker.core.legacy;
 
-public class LayerInfo {
+import com.jfixby.psd.unpacker.api.PSDLayerRecord;
+
+public class LayerInfo implements PSDLayerRecord {
 	int x, y, w, h;
 	boolean visible;
 	private final int index;
+	/** Record of the enclosing group, null for top level layers. */
+	LayerInfo parent;
+	private String path;
+	/** Set while the record is offered to a layer filter, stream is positioned at the channel data of the layer then. */
+	PSDReader reader;
+	private byte[] channel_data;
+	private String fingerprint;
+	private TaggedBlocks tagged_blocks;
 
 	public LayerInfo (final int i) {
 		this.index = i;
@@ -12,13 +22,14 @@ public class LayerInfo {
 
 	@Override
 	public String toString () {
-		return "LayerInfo [name=" + this.name + ", x=" + this.x + ", y=" + this.y + ", w=" + this.w + ", h=" + this.h + ", visible="
+		return "LayerInfo [name=" + this.getName() + ", x=" + this.x + ", y=" + this.y + ", w=" + this.w + ", h=" + this.h + ", visible="
 			+ this.visible + ", index=" + this.index + ", channels=" + this.channels + ", layerTransparency="
 			+ this.layerTransparency + ", mask_data=" + this.mask_data + ", blending_ranges_data=" + this.blending_ranges_data + "]";
 	}
 
 	final Channels channels = new Channels();
 
+	@Override
 	public int getX () {
 		return this.x;
 	}
@@ -27,6 +38,7 @@ public class LayerInfo {
 		this.x = x;
 	}
 
+	@Override
 	public int getY () {
 		return this.y;
 	}
@@ -47,10 +59,74 @@ public class LayerInfo {
 		return this.h;
 	}
 
+	@Override
+	public int getWidth () {
+		return this.w;
+	}
+
+	@Override
+	public int getHeight () {
+		return this.h;
+	}
+
+	public LayerInfo getParent () {
+		return this.parent;
+	}
+
+	@Override
+	public boolean isVisibleInTree () {
+		for (LayerInfo i = this; i != null; i = i.parent) {
+			if (!i.visible) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public String getFingerprint () {
+		if (this.fingerprint == null && this.reader != null) {
+			this.channel_data = this.reader.readChannelData(this);
+			if (this.channel_data == null) {
+				// broken lengths, the reader stops at this layer
+				return "";
+			}
+			this.fingerprint = LayerFingerprint.of(this, this.channel_data);
+		}
+		return this.fingerprint;
+	}
+
+	String getFingerprint (final byte[] channel_data) {
+		if (this.fingerprint == null) {
+			this.fingerprint = LayerFingerprint.of(this, channel_data);
+		}
+		return this.fingerprint;
+	}
+
+	/** @return channel data read on behalf of {@link #getFingerprint()}, or null if it is still in the stream */
+	byte[] takeChannelData () {
+		final byte[] data = this.channel_data;
+		this.channel_data = null;
+		return data;
+	}
+
+	@Override
+	public String getPath () {
+		if (this.path == null) {
+			if (this.parent == null) {
+				this.path = this.getName();
+			} else {
+				this.path = this.parent.getPath() + "/" + this.getName();
+			}
+		}
+		return this.path;
+	}
+
 	public void setH (final int h) {
 		this.h = h;
 	}
 
+	@Override
 	public boolean isVisible () {
 		return this.visible;
 	}
@@ -67,7 +143,13 @@ public class LayerInfo {
 		this.layerTransparency = layerTransparency;
 	}
 
+	@Override
 	public String getName () {
+		if (this.name == null) {
+			// the pascal name is cut at 31 chars and only knows one code page
+			final String unicode_name = this.tagged_blocks == null ? null : this.tagged_blocks.getUnicodeName();
+			this.name = unicode_name != null ? unicode_name : this.pascal_name;
+		}
 		return this.name;
 	}
 
@@ -75,6 +157,11 @@ public class LayerInfo {
 		this.name = name;
 	}
 
+	/** The name from the record itself, used when the tagged blocks carry no unicode name. */
+	public void setPascalName (final String pascal_name) {
+		this.pascal_name = pascal_name;
+	}
+
 	public Channels getChannels () {
 		return this.channels;
 	}
@@ -82,6 +169,7 @@ public class LayerInfo {
 	private int layerTransparency;
 
 	private String name;
+	private String pascal_name;
 	private MaskData mask_data;
 	private BlendingRanges blending_ranges_data;
 	private int blend_mode;
@@ -113,4 +201,46 @@ public class LayerInfo {
 	public void setBlendMode (final int blend_mode) {
 		this.blend_mode = blend_mode;
 	}
+
+	/** @return the blend mode of the group this record closes, taken from the section divider setting when it has one */
+	public int getGroupBlendMode () {
+		final int section_mode = this.tagged_blocks == null ? 0 : this.tagged_blocks.getSectionBlendMode();
+		return section_mode != 0 ? section_mode : this.blend_mode;
+	}
+
+	public TaggedBlocks getTaggedBlocks () {
+		return this.tagged_blocks;
+	}
+
+	public void setTaggedBlocks (final TaggedBlocks tagged_blocks) {
+		this.tagged_blocks = tagged_blocks;
+	}
+
+	@Override
+	public int getLayerID () {
+		return this.tagged_blocks == null ? -1 : this.tagged_blocks.getLayerID();
+	}
+
+	/** @return true for the hidden record that opens a group, the group record itself comes after the content */
+	public boolean isSectionDivider () {
+		final int section = this.sectionType();
+		if (section >= 0) {
+			return section == TaggedBlocks.SECTION_DIVIDER;
+		}
+		// files without section settings, the divider name is not localised
+		return (this.w <= 0 || this.h <= 0) && PSDReader.SECTION_DIVIDER_NAME.equalsIgnoreCase(this.getName());
+	}
+
+	/** @return true for the record that closes a group and carries its name and settings */
+	public boolean isGroupRecord () {
+		final int section = this.sectionType();
+		if (section >= 0) {
+			return section == TaggedBlocks.SECTION_OPEN_FOLDER || section == TaggedBlocks.SECTION_CLOSED_FOLDER;
+		}
+		return (this.w <= 0 || this.h <= 0) && !PSDReader.SECTION_DIVIDER_NAME.equalsIgnoreCase(this.getName());
+	}
+
+	private int sectionType () {
+		return this.tagged_blocks == null ? -1 : this.tagged_blocks.getSectionType();
+	}
 }
@@ -1,8 +1,14 @@
 
 package com.jfixby.psd.unpacker.core.legacy;
 
+import java.awt.color.ColorSpace;
 import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
 import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
 import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.File;
@@ -10,13 +16,26 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.Future;
 
+import com.jfixby.psd.unpacker.api.PSDLayerFilter;
+import com.jfixby.psd.unpacker.api.PSDRasterCache;
 import com.jfixby.psd.unpacker.api.PSD_BLEND_MODE;
+import com.jfixby.psd.unpacker.api.PSD_COMPRESSION;
+import com.jfixby.psd.unpacker.api.PSD_UNPACK_PHASE;
 import com.jfixby.psd.unpacker.core.PSDLayerImpl;
+import com.jfixby.psd.unpacker.core.PSDMemoryGovernorImpl;
+import com.jfixby.psd.unpacker.core.PSDUnpackMetricsImpl;
+import com.jfixby.psd.unpacker.core.jfr.ChannelDecodeEvent;
+import com.jfixby.psd.unpacker.core.jfr.ImageBuildEvent;
+import com.jfixby.psd.unpacker.core.jfr.JFRSupport;
+import com.jfixby.psd.unpacker.core.jfr.LayerDecodeEvent;
 import com.jfixby.scarabei.api.err.Err;
 import com.jfixby.scarabei.api.log.L;
-import com.jfixby.scarabei.api.sys.Sys;
 
 /**
  * Class PSDReader - Decodes a PhotoShop (.psd) file into one or more frames.
@@ -64,17 +83,36 @@ public class PSDReader {
 	// protected int nLayers;
 
 	protected int layerMaskSectionLen;
+	/** stream position where the layer info section ends, channel data must not cross it */
+	private long layer_info_end;
 
 	protected boolean hasLayers;
 
-	protected short[] lineLengths;
-
-	protected int lineIndex;
-
-	protected boolean rleEncoded;
-
 	private boolean crash_on_mask;
 
+	private PSDLayerFilter layer_filter;
+
+	private PSDRasterCache raster_cache;
+	private boolean premultiplied;
+	private boolean deduplicate;
+	private Future<?> cancellation;
+	private PSDMemoryGovernorImpl.Reservation reservation;
+	// rasters of the layers the filter accepted so far, the reservation grows with them
+	private long accepted_raster_bytes;
+	private long accepted_plane_bytes;
+	private long input_bytes;
+
+	protected final PlaneBufferPool pool = PlaneBufferPool.SHARED;
+
+	private PSDUnpackMetricsImpl metrics = new PSDUnpackMetricsImpl();
+	// per byte counters, flushed into the metrics once the file is done
+	private long bytes_read;
+	private long bytes_skipped;
+	private int plane_compression;
+	private boolean image_from_cache;
+	private String file_name;
+	private byte[] scratch = new byte[256];
+
 	/** Gets the number of layers read from file.
 	 *
 	 * @return frame count */
@@ -100,8 +138,8 @@ public class PSDReader {
 		this.status = statusOpenError;
 		// Log.d("setStatus", this.status);
 		if (this.status.printStack()) {
-			new Error(this.status + "").printStackTrace();
-			Sys.exit();
+			// the caller checks the status, a failed file must not take the whole process down
+			L.e("PSDReader", this.status);
 		}
 
 	}
@@ -110,12 +148,38 @@ public class PSDReader {
 		this.status = statusOpenError;
 		// Log.d("setStatus", this.status);
 		if (this.status.printStack()) {
+			L.e("PSDReader", this.status);
 			e.printStackTrace();
-			Sys.exit();
 		}
 
 	}
 
+	public Status getStatus () {
+		return this.status;
+	}
+
+	public void setMetrics (final PSDUnpackMetricsImpl metrics) {
+		this.metrics = metrics;
+	}
+
+	public PSDUnpackMetricsImpl getMetrics () {
+		return this.metrics;
+	}
+
+	/** @return bytes consumed from the stream so far */
+	public long position () {
+		return this.bytes_read + this.bytes_skipped;
+	}
+
+	/** Books the time since the given moment to the phase.
+	 *
+	 * @return now */
+	private long phase (final PSD_UNPACK_PHASE phase, final long since) {
+		final long now = System.nanoTime();
+		this.metrics.addNanos(phase, now - since);
+		return now;
+	}
+
 	protected void setInput (String name) {
 		// open input file
 		this.init();
@@ -139,7 +203,8 @@ public class PSDReader {
 		}
 	}
 
-	protected void setStream (final ByteArrayInputStream name) {
+	/** Reads from the stream as it is, unlike {@link #setInput(InputStream)} it is not wrapped into another buffer. */
+	protected void setStream (final InputStream name) {
 		// open input file
 		this.init();
 		// try {
@@ -180,6 +245,7 @@ public class PSDReader {
 	public FileContent read (final String name) {
 		final File f = new File(name);
 		final String filename = f.getName();
+		this.file_name = filename;
 		this.setInput(name);
 		this.process();
 		try {
@@ -189,14 +255,19 @@ public class PSDReader {
 			e.printStackTrace();
 		}
 		final FileContent result = this.content;
-		result.setFileName(filename);
+		if (result != null) {
+			result.setFileName(filename);
+		}
 		this.content = null;
 		return result;
 	}
 
-	public FileContent readFromStream (final String filename, final ByteArrayInputStream stream) {
+	/** Decodes the document in one forward pass. The stream should be buffered already, a {@link ByteArrayInputStream}, a
+	 * {@link ByteBufferInputStream} or a {@link ReadAheadInputStream}. It is closed when done. */
+	public FileContent readFromStream (final String filename, final InputStream stream) {
 		// File f = new File(name);
 		// String filename = f.getName();
+		this.file_name = filename;
 		this.setStream(stream);
 		this.process();
 		try {
@@ -206,11 +277,51 @@ public class PSDReader {
 			e.printStackTrace();
 		}
 		final FileContent result = this.content;
-		result.setFileName(filename);
+		if (result != null) {
+			result.setFileName(filename);
+		}
 		this.content = null;
 		return result;
 	}
 
+	/** Reads the header, the image resources and the layer records, but none of the channel data that follows the records.
+	 * The stream is left open, {@link #position()} is where the channel data starts.
+	 *
+	 * @return the records in file order, bottom-up, or null on failure, see {@link #getStatus()} */
+	public ArrayList<LayerInfo> readRecords (final String filename, final InputStream stream) {
+		this.file_name = filename;
+		this.bytes_read = 0;
+		this.bytes_skipped = 0;
+		this.setInput(stream);
+		if (this.err()) {
+			return null;
+		}
+		this.readHeader();
+		if (this.err()) {
+			return null;
+		}
+		final ArrayList<LayerInfo> layers = new ArrayList<>();
+		this.readLayerInfo(layers);
+		if (this.err()) {
+			return null;
+		}
+		return layers;
+	}
+
+	/** Decodes the pixels of one layer from its channel data as stored in the file, see {@link #readChannelData(LayerInfo)}.
+	 * The raster cache is used, the layer filter is not.
+	 *
+	 * @return null on failure, see {@link #getStatus()} */
+	public BufferedImage decodeLayer (final String filename, final LayerInfo info, final byte[] channel_data) {
+		this.file_name = filename;
+		this.setStatus(Status.STATUS_OK);
+		final BufferedImage im = this.readImage(info, channel_data);
+		if (this.err()) {
+			return null;
+		}
+		return im;
+	}
+
 	/** Closes input stream and discards contents of all frames. */
 	// public void reset() {
 	// init();
@@ -230,18 +341,6 @@ public class PSDReader {
 		return this.status != Status.STATUS_OK;
 	}
 
-	protected byte[] fillBytes (final int size, final int value) {
-		// create byte array filled with given value
-		final byte[] b = new byte[size];
-		if (value != 0) {
-			final byte v = (byte)value;
-			for (int i = 0; i < size; i++) {
-				b[i] = v;
-			}
-		}
-		return b;
-	}
-
 	protected void init () {
 		this.close();
 
@@ -286,26 +385,123 @@ public class PSDReader {
 
 	protected BufferedImage makeImage (final int w, final int h, final byte[] r, final byte[] g, final byte[] b, final byte[] a) {
 		// create image from given plane data
-		final BufferedImage im = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
-		final int[] data = ((DataBufferInt)im.getRaster().getDataBuffer()).getData();
+		final BufferedImage im = this.newImage(w, h);
+		this.interleave(dataOf(im), w * h, r, g, b, a);
+		return im;
+	}
+
+	protected BufferedImage newImage (final int w, final int h) {
+		if (ImageType != BufferedImage.TYPE_INT_ARGB) {
+			return new BufferedImage(w, h, ImageType);
+		}
+		// same as new BufferedImage(w, h, TYPE_INT_ARGB) but backed by a pooled array
 		final int n = w * h;
-		int j = 0;
-		while (j < n) {
-			try {
+		this.metrics.addRasterBytes(n * 4L);
+		final DataBufferInt buffer = new DataBufferInt(this.pool.obtainInts(n), n);
+		final WritableRaster raster = Raster.createPackedRaster(buffer, w, h, w, ARGB_MASKS, null);
+		if (this.premultiplied) {
+			return new BufferedImage(ARGB_PRE_MODEL, raster, true, null);
+		}
+		return new BufferedImage(ColorModel.getRGBdefault(), raster, false, null);
+	}
+
+	/** @return type of the images this reader makes */
+	int imageType () {
+		if (this.premultiplied && ImageType == BufferedImage.TYPE_INT_ARGB) {
+			return BufferedImage.TYPE_INT_ARGB_PRE;
+		}
+		return ImageType;
+	}
+
+	static final int[] ARGB_MASKS = new int[]{0x00ff0000, 0x0000ff00, 0x000000ff, 0xff000000};
+	/** the color model of TYPE_INT_ARGB_PRE */
+	static final ColorModel ARGB_PRE_MODEL = new DirectColorModel(ColorSpace.getInstance(ColorSpace.CS_sRGB), 32, ARGB_MASKS[0],
+		ARGB_MASKS[1], ARGB_MASKS[2], ARGB_MASKS[3], true, DataBuffer.TYPE_INT);
+	/** PREMULTIPLY[alpha << 8 | color] is color * alpha / 255, rounded */
+	static final byte[] PREMULTIPLY = new byte[256 * 256];
+	static {
+		for (int alpha = 0; alpha < 256; alpha++) {
+			for (int color = 0; color < 256; color++) {
+				PREMULTIPLY[alpha << 8 | color] = (byte)((color * alpha + 127) / 255);
+			}
+		}
+	}
+
+	static int[] dataOf (final BufferedImage im) {
+		return ((DataBufferInt)im.getRaster().getDataBuffer()).getData();
+	}
+
+	/** Packs planes into ARGB pixels, premultiplied if this reader is set so. A missing color plane reads as 0, a missing
+	 * alpha plane as 255. */
+	protected void interleave (final int[] data, final int n, final byte[] r, final byte[] g, final byte[] b, final byte[] a) {
+		if (this.premultiplied && a != null && ImageType == BufferedImage.TYPE_INT_ARGB) {
+			// without alpha every pixel is opaque, premultiplying would not change it
+			interleavePremultiplied(data, n, r, g, b, a);
+			return;
+		}
+		if (r != null && g != null && b != null) {
+			if (a != null) {
+				for (int j = 0; j < n; j++) {
+					data[j] = ((a[j] & 0xff) << 24) | ((r[j] & 0xff) << 16) | ((g[j] & 0xff) << 8) | (b[j] & 0xff);
+				}
+			} else {
+				for (int j = 0; j < n; j++) {
+					data[j] = 0xff000000 | ((r[j] & 0xff) << 16) | ((g[j] & 0xff) << 8) | (b[j] & 0xff);
+				}
+			}
+			return;
+		}
+		for (int j = 0; j < n; j++) {
+			final int ac = a == null ? 0xff : a[j] & 0xff;
+			final int rc = r == null ? 0 : r[j] & 0xff;
+			final int gc = g == null ? 0 : g[j] & 0xff;
+			final int bc = b == null ? 0 : b[j] & 0xff;
+			data[j] = (ac << 24) | (rc << 16) | (gc << 8) | bc;
+		}
+	}
+
+	private static void interleavePremultiplied (final int[] data, final int n, final byte[] r, final byte[] g, final byte[] b,
+		final byte[] a) {
+		final byte[] table = PREMULTIPLY;
+		if (r != null && g != null && b != null) {
+			for (int j = 0; j < n; j++) {
 				final int ac = a[j] & 0xff;
-				final int rc = r[j] & 0xff;
-				final int gc = g[j] & 0xff;
-				final int bc = b[j] & 0xff;
-				data[j] = (((((ac << 8) | rc) << 8) | gc) << 8) | bc;
-			} catch (final Exception e) {
-				e.printStackTrace();
+				final int row = ac << 8;
+				data[j] = (ac << 24) | ((table[row | (r[j] & 0xff)] & 0xff) << 16) | ((table[row | (g[j] & 0xff)] & 0xff) << 8)
+					| (table[row | (b[j] & 0xff)] & 0xff);
 			}
-			j++;
+			return;
+		}
+		for (int j = 0; j < n; j++) {
+			final int ac = a[j] & 0xff;
+			final int row = ac << 8;
+			final int rc = r == null ? 0 : table[row | (r[j] & 0xff)] & 0xff;
+			final int gc = g == null ? 0 : table[row | (g[j] & 0xff)] & 0xff;
+			final int bc = b == null ? 0 : table[row | (b[j] & 0xff)] & 0xff;
+			data[j] = (ac << 24) | (rc << 16) | (gc << 8) | bc;
 		}
-		return im;
+	}
+
+	private void releasePlanes (final byte[] r, final byte[] g, final byte[] b, final byte[] a) {
+		this.pool.release(r);
+		this.pool.release(g);
+		this.pool.release(b);
+		this.pool.release(a);
 	}
 
 	protected void process () {
+		this.metrics.addFile();
+		this.bytes_read = 0;
+		this.bytes_skipped = 0;
+		try {
+			this.processLayers();
+		} finally {
+			this.metrics.addBytesRead(this.bytes_read);
+			this.metrics.addBytesSkipped(this.bytes_skipped);
+		}
+	}
+
+	private void processLayers () {
 		// decode PSD file
 		if (this.err()) {
 			return;
@@ -316,7 +512,10 @@ public class PSDReader {
 		}
 
 		final ArrayList<LayerInfo> layers = new ArrayList<>();
+		final long t = System.nanoTime();
 		this.readLayerInfo(layers);
+		this.phase(PSD_UNPACK_PHASE.LAYER_RECORDS, t);
+		this.metrics.addLayers(layers.size());
 
 		// JUtils.newList(layers).print("found");
 
@@ -330,7 +529,21 @@ public class PSDReader {
 				return;
 			}
 		}
+		if (!this.admit(layers)) {
+			this.setStatus(Status.STATUS_CANCELLED);
+			return;
+		}
+		final long decoding = this.decodingNanos();
+		final long started = System.nanoTime();
 		this.readLayers(layers);
+		// whatever readLayers spent outside of reading and decoding the pixels
+		this.metrics.addNanos(PSD_UNPACK_PHASE.TREE_BUILD, System.nanoTime() - started - (this.decodingNanos() - decoding));
+	}
+
+	private long decodingNanos () {
+		return this.metrics.getNanos(PSD_UNPACK_PHASE.CHANNEL_READ)
+			+ this.metrics.getNanos(PSD_UNPACK_PHASE.RASTER_CACHE_LOAD) + this.metrics.getNanos(PSD_UNPACK_PHASE.RLE_DECODE)
+			+ this.metrics.getNanos(PSD_UNPACK_PHASE.INTERLEAVE);
 	}
 
 	protected int readByte () {
@@ -338,6 +551,9 @@ public class PSDReader {
 		int curByte = 0;
 		try {
 			curByte = this.input.read();
+			if (curByte >= 0) {
+				this.bytes_read++;
+			}
 		} catch (final IOException e) {
 			e.printStackTrace();
 			this.setStatus(Status.STATUS_FORMAT_ERROR);
@@ -346,13 +562,24 @@ public class PSDReader {
 	}
 
 	protected int readBytes (final byte[] bytes, final int n) {
+		return this.readBytes(bytes, 0, n);
+	}
+
+	protected int readBytes (final byte[] bytes, final int off, final int n) {
 		// read multiple bytes from input
 		if (bytes == null) {
 			return 0;
 		}
 		int r = 0;
 		try {
-			r = this.input.read(bytes, 0, n);
+			while (r < n) {
+				final int k = this.input.read(bytes, off + r, n - r);
+				if (k < 0) {
+					break;
+				}
+				r = r + k;
+			}
+			this.bytes_read = this.bytes_read + r;
 		} catch (final IOException e) {
 			e.printStackTrace();
 			this.setStatus(Status.STATUS_FORMAT_ERROR);
@@ -369,6 +596,7 @@ public class PSDReader {
 
 	protected void readHeader () {
 		// read PSD header info
+		long t = System.nanoTime();
 		final String sig = this.readString(4);
 		final int ver = this.readShort();
 
@@ -392,9 +620,11 @@ public class PSDReader {
 		final int color_data_len = this.readInt();
 		// Log.d("color_data_len", color_data_len);
 		this.skipBytes(color_data_len);
+		t = this.phase(PSD_UNPACK_PHASE.HEADER, t);
 		final int imagre_resources_len = this.readInt();
 		// Log.d("imagre_resources_len", imagre_resources_len);
 		this.readImageResourcesSection(imagre_resources_len);
+		this.phase(PSD_UNPACK_PHASE.IMAGE_RESOURCES, t);
 
 		// require 8-bit RGB data
 		if ((!sig.equals("8BPS")) || (ver != 1)) {
@@ -418,6 +648,10 @@ public class PSDReader {
 	}
 
 	private void readImageResourcesSection (final int imagre_resources_len) {
+		if (imagre_resources_len < 6) {
+			this.skip(imagre_resources_len);
+			return;
+		}
 		int rest = imagre_resources_len;
 		final String signature = this.readString(4);
 		rest = rest - 4;
@@ -456,6 +690,10 @@ public class PSDReader {
 			return; // no layers, only base image
 		}
 		final int layerInfoLen = this.readInt();
+		if (layerInfoLen == 0) {
+			return;
+		}
+		this.layer_info_end = this.position() + (layerInfoLen & 0xffffffffL);
 		// L.d("layerInfoLen", layerInfoLen);
 		// L.d("header", header);
 
@@ -485,15 +723,35 @@ public class PSDReader {
 	}
 
 	private void read_layers_info_positive (final int nLayers, final ArrayList<LayerInfo> layers) {
-		// TODO Auto-generated method stub
+		// the tagged blocks of all records share one buffer, every record indexes its own range of it
+		byte[] block_data = new byte[Math.max(256, nLayers * 64)];
+		int block_fill = 0;
+		final int[] block_starts = new int[nLayers];
+		final int[] block_ends = new int[nLayers];
+		final long[] block_offsets = new long[nLayers];
+		final int first = layers.size();
 		for (int i = 0; i < nLayers; i++) {
 			final LayerInfo info = new LayerInfo(i);
 			layers.add(info);
 			info.y = this.readInt();
 			info.x = this.readInt();
-			info.h = this.readInt() - info.y;
-			info.w = this.readInt() - info.x;
+			// streams are not pre-scanned, so the record is checked here before anything is sized from it
+			final long h = (long)this.readInt() - info.y;
+			final long w = (long)this.readInt() - info.x;
+			if (w < 0 || h < 0 || w > StructureScanner.MAX_LAYER_SIZE || h > StructureScanner.MAX_LAYER_SIZE
+				|| w * h > StructureScanner.MAX_PLANE_SIZE) {
+				L.e("PSDReader", "layer record " + i + " has size " + w + "x" + h);
+				this.setStatus(Status.STATUS_FORMAT_ERROR);
+				return;
+			}
+			info.h = (int)h;
+			info.w = (int)w;
 			final short number_of_channels = this.readShort();
+			if (number_of_channels < 0 || number_of_channels > StructureScanner.MAX_CHANNELS) {
+				L.e("PSDReader", "layer record " + i + " has " + number_of_channels + " channels");
+				this.setStatus(Status.STATUS_FORMAT_ERROR);
+				return;
+			}
 
 			for (int j = 0; j < number_of_channels; j++) {
 				final int id = this.readShort();
@@ -506,6 +764,11 @@ public class PSDReader {
 				}
 				channelInfo.setChannelID(channel_id);
 				final int size = this.readInt();
+				if (size < 0 || size > this.layer_info_end - this.position()) {
+					L.e("PSDReader", "layer record " + i + " channel length " + size + " does not fit its section");
+					this.setStatus(Status.STATUS_FORMAT_ERROR);
+					return;
+				}
 				channelInfo.setSize(size);
 				info.getChannels().add(channelInfo);
 
@@ -564,19 +827,39 @@ public class PSDReader {
 			// Log.d("layer_name_string_len", layer_name_string_len);
 			extraSize = extraSize - 1;
 
-			final String layer_name_string = this.readString(extraSize).substring(0, layer_name_string_len);// MAX
-			// 32
-			// CHARS!!!!
+			// the pascal name is padded to 4 bytes together with its length byte, tagged blocks follow it
+			final long extra_offset = this.position();
+			if (extraSize < 0 || extra_offset + extraSize > this.layer_info_end) {
+				L.e("PSDReader", "layer record " + i + " does not fit its section: " + extraSize);
+				this.setStatus(Status.STATUS_FORMAT_ERROR);
+				return;
+			}
+			if (block_data.length - block_fill < extraSize) {
+				block_data = Arrays.copyOf(block_data, Math.max(block_fill + extraSize, block_data.length * 2));
+			}
+			this.readBytes(block_data, block_fill, extraSize);
+			final String layer_name_string = decodeCp1251(block_data, block_fill, Math.min(layer_name_string_len, extraSize));
+			final int blocks = Math.min(((layer_name_string_len + 4) & ~3) - 1, extraSize);
+			block_starts[i] = block_fill + blocks;
+			block_ends[i] = block_fill + extraSize;
+			block_offsets[i] = extra_offset + blocks;
+			block_fill = block_fill + extraSize;
 
 			// if (layer_name_string.contains("animation=")) {
 			// L.d("name", layer_name_string);
 			// }
-			info.setName(layer_name_string);
+			info.setPascalName(layer_name_string);
 
 			;
 			// L.d("layer read ", info);
 
 		}
+		// slices share the array, the unicode name and the other blocks are decoded only when asked for
+		final ByteBuffer shared = ByteBuffer.wrap(block_data);
+		for (int i = 0; i < nLayers; i++) {
+			shared.limit(block_ends[i]).position(block_starts[i]);
+			layers.get(first + i).setTaggedBlocks(new TaggedBlocks(shared.slice(), block_offsets[i]));
+		}
 
 	}
 
@@ -642,8 +925,57 @@ public class PSDReader {
 	}
 
 	private void skip (final int skip) {
-		for (int i = 0; i < skip; i++) {
-			this.readByte();
+		this.skipBytes(skip);
+	}
+
+	private void skipChannels (final LayerInfo info) {
+		long size = 0;
+		for (int j = 0; j < info.getChannels().size(); j++) {
+			size = size + info.getChannels().get(j).getSize();
+		}
+		final long t = System.nanoTime();
+		this.skipBytes(size);
+		this.phase(PSD_UNPACK_PHASE.CHANNEL_READ, t);
+	}
+
+	static final String SECTION_DIVIDER_NAME = "</Layer group>";
+
+	private boolean isSectionDivider (final LayerInfo info) {
+		return info.isSectionDivider();
+	}
+
+	/** Links every record to the record of its enclosing group. Records are stored bottom-up, so a group record comes after
+	 * its content and the section divider that opens it. */
+	private void resolveParents (final ArrayList<LayerInfo> layers) {
+		final LayerInfo[] group_of_divider = new LayerInfo[layers.size()];
+		final ArrayList<Integer> dividers = new ArrayList<>();
+		for (int i = 0; i < layers.size(); i++) {
+			final LayerInfo info = layers.get(i);
+			if (this.layer_is_ok(info)) {
+				continue;
+			}
+			if (this.isSectionDivider(info)) {
+				dividers.add(i);
+			} else if (info.isGroupRecord() && dividers.size() > 0) {
+				group_of_divider[dividers.remove(dividers.size() - 1)] = info;
+			}
+		}
+
+		final ArrayList<LayerInfo> groups = new ArrayList<>();
+		for (int i = 0; i < layers.size(); i++) {
+			final LayerInfo info = layers.get(i);
+			final LayerInfo current = groups.size() > 0 ? groups.get(groups.size() - 1) : null;
+			if (this.layer_is_ok(info)) {
+				info.parent = current;
+			} else if (this.isSectionDivider(info)) {
+				final LayerInfo group = group_of_divider[i];
+				if (group != null) {
+					group.parent = current;
+				}
+				groups.add(group);
+			} else if (info.isGroupRecord() && groups.size() > 0) {
+				groups.remove(groups.size() - 1);
+			}
 		}
 	}
 
@@ -656,66 +988,87 @@ public class PSDReader {
 		final LayerGroup root_layer_group = this.content.layers_structure.getRoot();
 		layer_group_stack.add(root_layer_group);
 
+		if (this.layer_filter != null) {
+			this.resolveParents(layers);
+		}
+
+		// images by fingerprint of their channel data, copies of a layer get the image of the first one
+		HashMap<String, BufferedImage> decoded = null;
+		if (this.deduplicate) {
+			decoded = new HashMap<>();
+		}
+
 		// frames = new BufferedImage[this.layers.size()];
 		for (int i = 0; i < layers.size(); i++) {
+			if (this.isCancelled()) {
+				this.setStatus(Status.STATUS_CANCELLED);
+				break;
+			}
 			final LayerInfo info = layers.get(i);
-			// L.d("processing", info);
-			// L.d("layer", info);
-
-			// L.d(" blend", info.getBlendingRanges());
-			byte[] r = null, g = null, b = null, a = null;
-			for (int j = 0; j < info.getChannels().size(); j++) {
-				final ChannelInfo channel_info = info.getChannels().get(j);
-				// L.d(" ", channel_info);
-				switch (channel_info.getChannelID()) {
-				case RED:
-					r = this.readPlane(info.w, info.h, channel_info);
-					break;
-				case GREEN:
-					g = this.readPlane(info.w, info.h, channel_info);
-					break;
-				case BLUE:
-					b = this.readPlane(info.w, info.h, channel_info);
-					break;
-				case ALPHA: {
-					a = this.readPlane(info.w, info.h, channel_info);
+			if (this.layer_filter != null && this.layer_is_ok(info)) {
+				info.reader = this;
+				final boolean selected = this.layer_filter.accept(info);
+				info.reader = null;
+				if (this.err()) {
 					break;
 				}
-				case USER_MASK: {
-					final MaskData mask = info.getMaskData();
-					// L.d(" ", mask);
-					this.readPlane(mask.w, mask.h, channel_info);
+				if (selected && !this.admit(info)) {
+					this.setStatus(Status.STATUS_CANCELLED);
 					break;
 				}
-				default:
-					L.d("processing", info);
-					L.d("       ", channel_info);
-					Err.throwNotImplementedYet();
+				if (!selected) {
+					this.metrics.addFilteredLayer();
+					// step over the pixel data without decoding it
+					final byte[] channel_data = info.takeChannelData();
+					if (channel_data == null) {
+						this.skipChannels(info);
+					} else {
+						this.pool.release(channel_data);
+					}
+					continue;
 				}
-				if (this.err()) {
+			}
+			// L.d("processing", info);
+			// L.d("layer", info);
 
-					L.d("LayerInfo", info);
-					break;
-				}
+			// L.d(" blend", info.getBlendingRanges());
+			byte[] channel_data = info.takeChannelData();
+			if (channel_data == null) {
+				channel_data = this.readChannelData(info);
 			}
 			if (this.err()) {
+				L.d("LayerInfo", info);
 				break;
 			}
-			final int n = info.w * info.h;
-			if (r == null) {
-				r = this.fillBytes(n, 0);
-			}
-			if (g == null) {
-				g = this.fillBytes(n, 0);
-			}
-			if (b == null) {
-				b = this.fillBytes(n, 0);
-			}
-			if (a == null) {
-				a = this.fillBytes(n, 255);
-			}
 			if (this.layer_is_ok(info)) {
-				final BufferedImage im = this.makeImage(info.w, info.h, r, g, b, a);
+				LayerDecodeEvent event = null;
+				if (JFRSupport.AVAILABLE) {
+					event = new LayerDecodeEvent();
+					event.begin();
+				}
+				BufferedImage im = null;
+				String fingerprint = null;
+				if (decoded != null) {
+					fingerprint = info.getFingerprint(channel_data);
+					im = decoded.get(fingerprint);
+				}
+				if (im != null) {
+					// nothing decoded, so no event either
+					this.metrics.addSharedLayer();
+				} else {
+					im = this.readImage(info, channel_data);
+					if (fingerprint != null && !this.err()) {
+						decoded.put(fingerprint, im);
+					}
+					if (event != null) {
+						this.commit(event, info);
+					}
+				}
+				this.pool.release(channel_data);
+				if (this.err()) {
+					L.d("LayerInfo", info);
+					break;
+				}
 				// frames[i] = im;
 
 				// begin raster;
@@ -724,6 +1077,7 @@ public class PSDReader {
 				final String name = info.getName();
 // L.d("layer", name);
 				raster_layer.setName(name);
+				raster_layer.setLayerID(info.getLayerID());
 				final double offset_x = info.getX();
 				final double offset_y = info.getY();
 				raster_layer.getOffset().setX(offset_x);
@@ -748,10 +1102,11 @@ public class PSDReader {
 
 			} else {
 				// L.d("info", info);
+				this.pool.release(channel_data);
 				final String layer_name = info.getName();
 				final int prefix = layer_group_stack.size();
 				// L.d(prefix(prefix) + "layer_name", layer_name);
-				if (layer_name.toLowerCase().equals("</Layer group>".toLowerCase())) {
+				if (this.isSectionDivider(info)) {
 					// begin group;
 					final LayerGroup next = new LayerGroup();
 					next.setName(layer_name);
@@ -762,13 +1117,20 @@ public class PSDReader {
 					// L.d(prefix(prefix + 1) + "step down", next.getName());
 					layer_group_stack.add(0, next);
 // layer_group_stack.insertElementAt(next, 0);
-				} else {
+				} else if (info.isGroupRecord()) {
 					// end group;
+					if (layer_group_stack.size() == 1) {
+						L.e("group record without a section divider", info);
+						this.setStatus(Status.STATUS_FORMAT_ERROR);
+						break;
+					}
 					final LayerGroup current = layer_group_stack.remove(0);
 					current.setName(layer_name);
+					current.setLayerID(info.getLayerID());
 					current.setVisible(info.isVisible());
 					final float opacity = info.getLayerTransparency() / 255f;
 					current.setOpacity(opacity);
+					current.setMode(info.getGroupBlendMode());
 
 					// L.d(prefix(prefix) + "closing group",
 					// current.getName());
@@ -776,17 +1138,17 @@ public class PSDReader {
 					final LayerGroup parent = layer_group_stack.get(0);
 					// L.d(prefix(prefix - 1) + "current]", parent.getName());
 				}
+				// else: an empty layer, not part of the group structure
 			}
 		}
-		this.lineLengths = null;
 		if ((this.layerMaskSectionLen > 0) && !this.err()) {
 			final int n = this.readInt(); // global layer mask info len
 			this.skipBytes(n);
 		}
 
-		if (layer_group_stack.get(0) != root_layer_group) {
-			Err.reportError("Stack Corrupted! " + layer_group_stack);
-
+		if (!this.err() && layer_group_stack.get(0) != root_layer_group) {
+			L.e("Stack Corrupted!", layer_group_stack);
+			this.setStatus(Status.STATUS_FORMAT_ERROR);
 		}
 
 	}
@@ -800,97 +1162,276 @@ public class PSDReader {
 		return result;
 	}
 
-	protected byte[] readPlane (final int w, final int h, final ChannelInfo channel_info) {
-		// read a single color plane
-		byte[] b = null;
-		final int size = w * h;
+	/** Reads the channel data of the layer as it is stored in the file: for every channel the compression code followed by
+	 * the (possibly RLE-compressed) plane. */
+	protected byte[] readChannelData (final LayerInfo info) {
+		long size = 0;
+		for (int j = 0; j < info.getChannels().size(); j++) {
+			size = size + info.getChannels().get(j).getSize();
+		}
+		if (size < 0 || size > Integer.MAX_VALUE || this.position() + size > this.layer_info_end) {
+			// nothing is allocated for lengths the layer info section can not hold
+			L.e("channel data of " + info.getName(), size + " bytes at " + this.position() + ", section ends at "
+				+ this.layer_info_end);
+			this.setStatus(Status.STATUS_FORMAT_ERROR);
+			return null;
+		}
+		final long t = System.nanoTime();
+		final byte[] data = this.pool.obtainBytes((int)size);
+		this.readBytes(data, (int)size);
+		this.phase(PSD_UNPACK_PHASE.CHANNEL_READ, t);
+		return data;
+	}
 
-		final int channel_size = channel_info.getSize();
-		int skip = 0;
-		int compression = 888;
-		// Log.d("hasLayers", hasLayers);
-		if (this.hasLayers) {
-			compression = this.readShort();
-			// get RLE compression info for channel
-			this.rleEncoded = compression == 1;
-			if (this.rleEncoded) {
-				final int nLines = h;
-				// list of encoded line lengths
-				// L.d("RLE lines", nLines);
-				this.lineLengths = new short[nLines];
-				for (int i = 0; i < nLines; i++) {
-					this.lineLengths[i] = this.readShort();
-					// L.d(" [" + i + "]", lineLengths[i]);
+	protected BufferedImage readImage (final LayerInfo info, final byte[] channel_data) {
+		final int w = info.w;
+		final int h = info.h;
+		String cache_key = null;
+		BufferedImage im = null;
+		this.plane_compression = -1;
+		this.image_from_cache = false;
+		if (this.raster_cache != null) {
+			cache_key = info.getFingerprint(channel_data) + "-" + this.imageType();
+			ImageBuildEvent event = null;
+			if (JFRSupport.AVAILABLE) {
+				event = new ImageBuildEvent();
+				event.begin();
+			}
+			final long t = System.nanoTime();
+			im = this.newImage(w, h);
+			final boolean loaded = this.raster_cache.load(cache_key, w, h, dataOf(im));
+			// a disk read, not decoding
+			this.phase(PSD_UNPACK_PHASE.RASTER_CACHE_LOAD, t);
+			if (loaded) {
+				this.image_from_cache = true;
+				if (event != null) {
+					this.commit(event, info, true);
 				}
-				skip = nLines * 2;
-				this.lineIndex = 0;
+				this.metrics.addCachedLayer();
+				return im;
+			}
+			if (event != null) {
+				event.cacheMiss = true;
+				this.commit(event, info, false);
 			}
 		}
 
-		if (this.rleEncoded) {
-			// L.d("W x H", size);
-			// L.d("channel_size ", channel_size - 2 - skip);
-
-			// int len_bytes = -1;
-			b = this.readPlaneCompressed(w, h);
-			// L.d("channel_data_size ", channel_size - 2 - skip - len_bytes);
+		byte[] r = null, g = null, b = null, a = null;
+		int offset = 0;
+		for (int j = 0; j < info.getChannels().size(); j++) {
+			final ChannelInfo channel_info = info.getChannels().get(j);
+			final int length = channel_info.getSize();
+			// L.d(" ", channel_info);
+			switch (channel_info.getChannelID()) {
+			case RED:
+				r = this.decodeChannel(info, channel_info, channel_data, offset);
+				break;
+			case GREEN:
+				g = this.decodeChannel(info, channel_info, channel_data, offset);
+				break;
+			case BLUE:
+				b = this.decodeChannel(info, channel_info, channel_data, offset);
+				break;
+			case ALPHA: {
+				a = this.decodeChannel(info, channel_info, channel_data, offset);
+				break;
+			}
+			case USER_MASK: {
+				// mask plane is not applied
+				break;
+			}
+			default:
+				L.d("processing", info);
+				L.d("       ", channel_info);
+				Err.throwNotImplementedYet();
+			}
+			if (this.err()) {
+				this.releasePlanes(r, g, b, a);
+				if (im != null && ImageType == BufferedImage.TYPE_INT_ARGB) {
+					// taken from the pool for the raster cache, never handed out
+					this.pool.release(dataOf(im));
+				}
+				return null;
+			}
+			offset = offset + length;
+		}
+		ImageBuildEvent event = null;
+		if (JFRSupport.AVAILABLE) {
+			event = new ImageBuildEvent();
+			event.begin();
+		}
+		final long t = System.nanoTime();
+		if (im == null) {
+			im = this.makeImage(w, h, r, g, b, a);
 		} else {
-			//
-			b = new byte[size];
-			this.readBytes(b, size);
+			this.interleave(dataOf(im), w * h, r, g, b, a);
+			this.raster_cache.store(cache_key, w, h, dataOf(im));
+		}
+		this.phase(PSD_UNPACK_PHASE.INTERLEAVE, t);
+		if (event != null) {
+			event.alpha = a != null;
+			this.commit(event, info, false);
 		}
+		this.releasePlanes(r, g, b, a);
+		this.metrics.addDecodedLayer(PSDUnpackMetricsImpl.compressionOf(this.plane_compression));
+		return im;
+	}
 
-		return b;
+	private byte[] decodeChannel (final LayerInfo info, final ChannelInfo channel_info, final byte[] channel_data,
+		final int offset) {
+		final int length = channel_info.getSize();
+		if (!JFRSupport.AVAILABLE) {
+			return this.readPlane(channel_data, offset, length, info.w, info.h);
+		}
+		final ChannelDecodeEvent event = new ChannelDecodeEvent();
+		event.begin();
+		final byte[] plane = this.readPlane(channel_data, offset, length, info.w, info.h);
+		event.end();
+		if (event.shouldCommit()) {
+			event.fileName = this.file_name;
+			event.layerName = info.getName();
+			event.channel = channel_info.getChannelID().toString();
+			event.width = info.w;
+			event.height = info.h;
+			event.compression = compressionName(this.plane_compression);
+			event.storedBytes = length;
+			event.decodedBytes = plane == null ? 0 : (long)info.w * info.h;
+			event.commit();
+		}
+		return plane;
+	}
+
+	private void commit (final ImageBuildEvent event, final LayerInfo info, final boolean cached) {
+		event.end();
+		if (event.shouldCommit()) {
+			event.fileName = this.file_name;
+			event.layerName = info.getName();
+			event.width = info.w;
+			event.height = info.h;
+			event.rasterBytes = (long)info.w * info.h * 4;
+			event.cached = cached;
+			event.commit();
+		}
+	}
 
+	private void commit (final LayerDecodeEvent event, final LayerInfo info) {
+		event.end();
+		if (event.shouldCommit()) {
+			long channel_bytes = 0;
+			for (int j = 0; j < info.getChannels().size(); j++) {
+				channel_bytes = channel_bytes + info.getChannels().get(j).getSize();
+			}
+			event.fileName = this.file_name;
+			event.layerName = info.getName();
+			event.width = info.w;
+			event.height = info.h;
+			event.compression = this.image_from_cache ? "CACHED" : compressionName(this.plane_compression);
+			event.channels = info.getChannels().size();
+			event.channelBytes = channel_bytes;
+			event.rasterBytes = (long)info.w * info.h * 4;
+			event.cacheHit = this.image_from_cache;
+			event.commit();
+		}
 	}
 
-	protected byte[] readPlaneCompressed (final int w, final int h) {
-		final byte[] result = new byte[w * h];
-		final byte[] temp = new byte[w * 2];
-		int pos = 0;
+	private static String compressionName (final int compression) {
+		final PSD_COMPRESSION name = PSDUnpackMetricsImpl.compressionOf(compression);
+		return name == null ? "" + compression : name.toString();
+	}
+
+	protected byte[] readPlane (final byte[] data, final int offset, final int length, final int w, final int h) {
+		// read a single color plane
+		if (length < 2) {
+			this.setStatus(Status.STATUS_FORMAT_ERROR);
+			return null;
+		}
+		final int compression = ((data[offset] & 0xff) << 8) | (data[offset + 1] & 0xff);
+		this.plane_compression = compression;
+		this.metrics.addChannel(PSDUnpackMetricsImpl.compressionOf(compression));
+		if (compression == 1) {
+			final long t = System.nanoTime();
+			final byte[] plane = this.readPlaneCompressed(data, offset + 2, length - 2, w, h);
+			this.phase(PSD_UNPACK_PHASE.RLE_DECODE, t);
+			return plane;
+		}
+		if (compression != 0) {
+			L.e("unsupported channel compression", compression);
+			this.setStatus(Status.STATUS_UNSUPPORTED);
+			return null;
+		}
+		final int size = w * h;
+		if (length - 2 < size) {
+			this.setStatus(Status.STATUS_FORMAT_ERROR);
+			return null;
+		}
+		final long t = System.nanoTime();
+		final byte[] b = this.pool.obtainBytes(size);
+		this.metrics.addPlaneBytes(size);
+		System.arraycopy(data, offset + 2, b, 0, size);
+		this.phase(PSD_UNPACK_PHASE.CHANNEL_READ, t);
+		return b;
+	}
 
+	protected byte[] readPlaneCompressed (final byte[] data, final int offset, final int length, final int w, final int h) {
+		// list of encoded line lengths goes first
+		final int end = offset + length;
+		int pos = offset + h * 2;
+		if (pos > end) {
+			this.setStatus(Status.STATUS_FORMAT_ERROR);
+			return null;
+		}
+		final byte[] result = this.pool.obtainBytes(w * h);
+		this.metrics.addPlaneBytes((long)w * h);
 		for (int i = 0; i < h; i++) {
-			if (this.lineIndex >= this.lineLengths.length) {
+			final int len = ((data[offset + i * 2] & 0xff) << 8) | (data[offset + i * 2 + 1] & 0xff);
+			final int decoded = pos + len > end ? -1 : this.decodeRLE(data, pos, len, result, i * w, w);
+			if (decoded < 0) {
+				this.pool.release(result);
 				this.setStatus(Status.STATUS_FORMAT_ERROR);
 				return null;
 			}
-			final int len = this.lineLengths[this.lineIndex++];
-			this.readBytes(temp, len);
-			this.decodeRLE(temp, len, result, pos);
-			pos = pos + w;
+			if (decoded < w) {
+				// short line, pooled buffer may hold anything
+				Arrays.fill(result, i * w + decoded, i * w + w, (byte)0);
+			}
+			pos = pos + len;
 		}
 		return result;
 	}
 
-	protected int decodeRLE (final byte[] input, final int input_len, final byte[] output, int putput_pos) {
-
-		int len_bytes = 0;
-		final int max = input_len;
-		int input_i = 0;
+	/** Unpacks one PackBits-encoded line.
+	 *
+	 * @return number of bytes written, or -1 if the line does not fit into output_len bytes */
+	protected int decodeRLE (final byte[] input, final int input_pos, final int input_len, final byte[] output,
+		final int output_pos, final int output_len) {
+		final int max = input_pos + input_len;
+		final int output_max = output_pos + output_len;
+		int input_i = input_pos;
+		int output_i = output_pos;
 		while (input_i < max) {
-
-			byte readByte = input[input_i++];
-
-			int len = readByte;
-			len_bytes++;
-
+			int len = input[input_i++];
 			if (len < 0) {
 				// dup next byte 1-n times
 				len = 1 - len;
-				readByte = input[input_i++];
+				if (input_i >= max || output_i + len > output_max) {
+					return -1;
+				}
+				final byte value = input[input_i++];
 				for (int i = 0; i < len; i++) {
-					output[putput_pos++] = readByte;
+					output[output_i++] = value;
 				}
 			} else {
 				// copy next n+1 bytes
 				len = len + 1;
-				System.arraycopy(input, input_i, output, putput_pos, len);
-				putput_pos += len;
+				if (input_i + len > max || output_i + len > output_max) {
+					return -1;
+				}
+				System.arraycopy(input, input_i, output, output_i, len);
+				output_i += len;
 				input_i += len;
 			}
 		}
-		// L.d("len_bytes", len_bytes);
-		return len_bytes;
+		return output_i - output_pos;
 	}
 
 	protected short readShort () {
@@ -900,32 +1441,50 @@ public class PSDReader {
 
 	protected String readString (final int len) {
 		// read string of specified length
-		final StringBuilder sb = new StringBuilder(len);
-		for (int i = 0; i < len; i++) {
-
-			final byte[] bytes = new byte[]{(byte)this.readByte()};
-			decodeCp1251(bytes, sb);
+		final byte[] bytes = this.scratch(len);
+		final int n = this.readBytes(bytes, len);
+		return decodeCp1251(bytes, 0, n);
+	}
 
+	/** @return a reusable buffer of at least the given size, only valid until the next call */
+	private byte[] scratch (final int len) {
+		if (this.scratch.length < len) {
+			this.scratch = new byte[Math.max(len, this.scratch.length * 2)];
 		}
-		return sb.toString();
+		return this.scratch;
 	}
 
-	protected void skipBytes (final int n) {
+	protected void skipBytes (final long n) {
 		// skip over n input bytes
-		for (int i = 0; i < n; i++) {
-			this.readByte();
+		long rest = n;
+		try {
+			while (rest > 0) {
+				final long skipped = this.input.skip(rest);
+				if (skipped > 0) {
+					rest = rest - skipped;
+					this.bytes_skipped = this.bytes_skipped + skipped;
+				} else if (this.input.read() >= 0) {
+					rest--;
+					this.bytes_skipped++;
+				} else {
+					return;
+				}
+			}
+		} catch (final IOException e) {
+			e.printStackTrace();
+			this.setStatus(Status.STATUS_FORMAT_ERROR);
 		}
 	}
 
-	static void decodeCp1251 (final byte[] data, final StringBuilder sb) {
+	static String decodeCp1251 (final byte[] data, final int offset, final int len) {
 		if (data == null) {
 			throw new IllegalArgumentException("Null argument");
 		}
-
-		for (int i = 0; i < data.length; i++) {
-			sb.append(cp1251Map[data[i] & 0xFF]);
+		final char[] chars = new char[len];
+		for (int i = 0; i < len; i++) {
+			chars[i] = cp1251Map[data[offset + i] & 0xFF];
 		}
-
+		return new String(chars);
 	}
 
 	static char[] cp1251Map = new char[]{'\u0000', '\u0001', '\u0002', '\u0003', '\u0004', '\u0005', '\u0006', '\u0007', '\u0008',
@@ -955,4 +1514,69 @@ public class PSDReader {
 		this.crash_on_mask = crash_on_mask;
 	}
 
+	public void setLayerFilter (final PSDLayerFilter layer_filter) {
+		this.layer_filter = layer_filter;
+	}
+
+	public void setRasterCache (final PSDRasterCache raster_cache) {
+		this.raster_cache = raster_cache;
+	}
+
+	public void setPremultipliedAlpha (final boolean premultiplied) {
+		this.premultiplied = premultiplied;
+	}
+
+	public void setDeduplicateLayers (final boolean deduplicate) {
+		this.deduplicate = deduplicate;
+	}
+
+	/** The reader stops with {@link Status#STATUS_CANCELLED} before the next layer once the task is cancelled. */
+	public void setCancellation (final Future<?> cancellation) {
+		this.cancellation = cancellation;
+	}
+
+	/** Once the layer records are read, the reader waits until the reservation admits the rasters and buffers they need,
+	 * before any pixel data is decoded. With a layer filter only the layers it accepts are reserved, one at a time before
+	 * each is decoded.
+	 *
+	 * @param input_bytes size of the input held in memory while reading, already part of the reservation */
+	public void setReservation (final PSDMemoryGovernorImpl.Reservation reservation, final long input_bytes) {
+		this.reservation = reservation;
+		this.input_bytes = input_bytes;
+	}
+
+	private boolean admit (final ArrayList<LayerInfo> layers) {
+		if (this.reservation == null || this.layer_filter != null) {
+			return true;
+		}
+		long raster_bytes = 0;
+		long largest_plane_bytes = 0;
+		for (int i = 0; i < layers.size(); i++) {
+			final LayerInfo info = layers.get(i);
+			if (this.layer_is_ok(info)) {
+				final long plane = (long)info.w * info.h;
+				raster_bytes = raster_bytes + plane * 4;
+				largest_plane_bytes = Math.max(largest_plane_bytes, plane);
+			}
+		}
+		return this.reservation.admit(PSDMemoryGovernorImpl.estimate(this.input_bytes, raster_bytes, largest_plane_bytes),
+			this.cancellation);
+	}
+
+	private boolean admit (final LayerInfo info) {
+		if (this.reservation == null) {
+			return true;
+		}
+		final long plane = (long)info.w * info.h;
+		this.accepted_raster_bytes = this.accepted_raster_bytes + plane * 4;
+		this.accepted_plane_bytes = Math.max(this.accepted_plane_bytes, plane);
+		return this.reservation.admit(
+			PSDMemoryGovernorImpl.estimate(this.input_bytes, this.accepted_raster_bytes, this.accepted_plane_bytes),
+			this.cancellation);
+	}
+
+	private boolean isCancelled () {
+		return this.cancellation != null && this.cancellation.isCancelled();
+	}
+
 }
@@ -0,0 +1,136 @@
+
+package com.jfixby.psd.unpacker.core.legacy;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+/** Recycles the byte and int arrays used for channel data, decoded planes and raster pixels.
+ * <p>
+ * Arrays are bucketed by size in quarter steps between powers of two, so an array obtained for n elements is at most 25%
+ * longer than n. Arrays returned while the pool already retains its limit are left to the garbage collector. Small arrays
+ * are not pooled at all. */
+public class PlaneBufferPool {
+
+	public static final PlaneBufferPool SHARED = new PlaneBufferPool(256L * 1024 * 1024);
+
+	static final int MIN_POOLED_SIZE = 4096;
+	static final int MAX_POOLED_SIZE = 1 << 30;
+	static final int STEPS = 4;
+
+	private final ArrayList<ArrayDeque<byte[]>> bytes = new ArrayList<ArrayDeque<byte[]>>();
+	private final ArrayList<ArrayDeque<int[]>> ints = new ArrayList<ArrayDeque<int[]>>();
+	private long max_retained_bytes;
+	private long retained_bytes = 0;
+
+	public PlaneBufferPool (final long max_retained_bytes) {
+		this.max_retained_bytes = max_retained_bytes;
+		for (int i = 0; i < 32 * STEPS; i++) {
+			this.bytes.add(new ArrayDeque<byte[]>());
+			this.ints.add(new ArrayDeque<int[]>());
+		}
+	}
+
+	public synchronized void setMaxRetainedBytes (final long max_retained_bytes) {
+		this.max_retained_bytes = max_retained_bytes;
+		if (this.retained_bytes > max_retained_bytes) {
+			this.clear();
+		}
+	}
+
+	public synchronized long getRetainedBytes () {
+		return this.retained_bytes;
+	}
+
+	public synchronized void clear () {
+		for (int i = 0; i < this.bytes.size(); i++) {
+			this.bytes.get(i).clear();
+			this.ints.get(i).clear();
+		}
+		this.retained_bytes = 0;
+	}
+
+	/** @return array of at least size elements, content is undefined */
+	public byte[] obtainBytes (final int size) {
+		if (size < MIN_POOLED_SIZE || size > MAX_POOLED_SIZE) {
+			return new byte[size];
+		}
+		final int bucket = ceilBucket(size);
+		synchronized (this) {
+			final byte[] array = this.bytes.get(bucket).pollLast();
+			if (array != null) {
+				this.retained_bytes = this.retained_bytes - array.length;
+				return array;
+			}
+		}
+		return new byte[bucketSize(bucket)];
+	}
+
+	/** @return array of at least size elements, content is undefined */
+	public int[] obtainInts (final int size) {
+		if (size < MIN_POOLED_SIZE || size > MAX_POOLED_SIZE) {
+			return new int[size];
+		}
+		final int bucket = ceilBucket(size);
+		synchronized (this) {
+			final int[] array = this.ints.get(bucket).pollLast();
+			if (array != null) {
+				this.retained_bytes = this.retained_bytes - 4L * array.length;
+				return array;
+			}
+		}
+		return new int[bucketSize(bucket)];
+	}
+
+	public void release (final byte[] array) {
+		if (array == null || array.length < MIN_POOLED_SIZE || array.length > MAX_POOLED_SIZE) {
+			return;
+		}
+		final int bucket = floorBucket(array.length);
+		synchronized (this) {
+			if (this.retained_bytes + array.length <= this.max_retained_bytes) {
+				this.bytes.get(bucket).addLast(array);
+				this.retained_bytes = this.retained_bytes + array.length;
+			}
+		}
+	}
+
+	public void release (final int[] array) {
+		if (array == null || array.length < MIN_POOLED_SIZE || array.length > MAX_POOLED_SIZE) {
+			return;
+		}
+		final int bucket = floorBucket(array.length);
+		synchronized (this) {
+			if (this.retained_bytes + 4L * array.length <= this.max_retained_bytes) {
+				this.ints.get(bucket).addLast(array);
+				this.retained_bytes = this.retained_bytes + 4L * array.length;
+			}
+		}
+	}
+
+	static int bucketSize (final int bucket) {
+		final int k = bucket / STEPS;
+		final int q = bucket % STEPS;
+		return (1 << k) + q * (1 << (k - 2));
+	}
+
+	/** @return index of the smallest bucket holding arrays of at least size elements */
+	static int ceilBucket (final int size) {
+		final int k = 31 - Integer.numberOfLeadingZeros(size);
+		final int step = 1 << (k - 2);
+		final int q = (size - (1 << k) + step - 1) / step;
+		return k * STEPS + q;
+	}
+
+	/** @return index of the largest bucket whose size does not exceed length */
+	static int floorBucket (final int length) {
+		final int k = 31 - Integer.numberOfLeadingZeros(length);
+		final int q = (length - (1 << k)) / (1 << (k - 2));
+		return k * STEPS + q;
+	}
+
+	@Override
+	public synchronized String toString () {
+		return "PlaneBufferPool [retained_bytes=" + this.retained_bytes + ", max_retained_bytes=" + this.max_retained_bytes + "]";
+	}
+
+}
@@ -0,0 +1,143 @@
+package com.jfixby.psd.unpacker.core.legacy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.SelectableChannel;
+
+/** Reads a stream or a channel forward through a window of fixed size, so a document is decoded in one pass without being
+ * copied as a whole. Reads as large as the window go straight into the caller's array. Skips seek when the source can,
+ * and read through the window otherwise.
+ * <p>
+ * Closing this stream leaves the source open, it belongs to the caller. */
+public class ReadAheadInputStream extends InputStream {
+
+	public static final int DEFAULT_WINDOW_SIZE = 64 * 1024;
+
+	private final InputStream stream;
+	private final ReadableByteChannel channel;
+	private final byte[] window;
+	private final ByteBuffer window_buffer;
+	private int position;
+	private int limit;
+
+	public ReadAheadInputStream (final InputStream stream, final int window_size) {
+		this(stream, null, window_size);
+	}
+
+	public ReadAheadInputStream (final ReadableByteChannel channel, final int window_size) {
+		this(null, channel, window_size);
+	}
+
+	private ReadAheadInputStream (final InputStream stream, final ReadableByteChannel channel, final int window_size) {
+		if (stream == null && channel == null) {
+			throw new IllegalArgumentException("Null argument");
+		}
+		if (window_size <= 0) {
+			throw new IllegalArgumentException("Window size must be positive: " + window_size);
+		}
+		if (channel instanceof SelectableChannel && !((SelectableChannel)channel).isBlocking()) {
+			// a read returning 0 would be asked again at once, spinning until data arrives
+			throw new IllegalArgumentException("Channel must be in blocking mode: " + channel);
+		}
+		this.stream = stream;
+		this.channel = channel;
+		this.window = new byte[window_size];
+		this.window_buffer = ByteBuffer.wrap(this.window);
+	}
+
+	/** @return bytes read into the window, -1 at the end of the source */
+	private int fill () throws IOException {
+		this.position = 0;
+		this.limit = 0;
+		final int n = this.readSource(this.window, 0, this.window.length);
+		if (n > 0) {
+			this.limit = n;
+		}
+		return n;
+	}
+
+	/** A blocking channel may still return 0 bytes without being at its end, it is asked again then. */
+	private int readSource (final byte[] bytes, final int offset, final int length) throws IOException {
+		if (this.stream != null) {
+			return this.stream.read(bytes, offset, length);
+		}
+		final ByteBuffer target = bytes == this.window ? this.window_buffer : ByteBuffer.wrap(bytes);
+		target.limit(offset + length);
+		target.position(offset);
+		int n = 0;
+		while (n == 0) {
+			n = this.channel.read(target);
+		}
+		return n;
+	}
+
+	@Override
+	public int read () throws IOException {
+		if (this.position >= this.limit && this.fill() <= 0) {
+			return -1;
+		}
+		return this.window[this.position++] & 0xff;
+	}
+
+	@Override
+	public int read (final byte[] bytes, final int offset, final int length) throws IOException {
+		if (length == 0) {
+			return 0;
+		}
+		final int buffered = this.limit - this.position;
+		if (buffered > 0) {
+			final int n = Math.min(buffered, length);
+			System.arraycopy(this.window, this.position, bytes, offset, n);
+			this.position = this.position + n;
+			return n;
+		}
+		if (length >= this.window.length) {
+			return this.readSource(bytes, offset, length);
+		}
+		if (this.fill() <= 0) {
+			return -1;
+		}
+		return this.read(bytes, offset, length);
+	}
+
+	@Override
+	public long skip (final long n) throws IOException {
+		if (n <= 0) {
+			return 0;
+		}
+		final int buffered = this.limit - this.position;
+		if (buffered > 0) {
+			final int k = (int)Math.min(buffered, n);
+			this.position = this.position + k;
+			return k;
+		}
+		if (this.stream != null) {
+			return this.stream.skip(n);
+		}
+		if (this.channel instanceof SeekableByteChannel) {
+			final SeekableByteChannel seekable = (SeekableByteChannel)this.channel;
+			final long k = Math.min(n, Math.max(0, seekable.size() - seekable.position()));
+			seekable.position(seekable.position() + k);
+			return k;
+		}
+		if (this.fill() <= 0) {
+			return 0;
+		}
+		return this.skip(n);
+	}
+
+	@Override
+	public int available () throws IOException {
+		return this.limit - this.position;
+	}
+
+	@Override
+	public void close () {
+		this.position = 0;
+		this.limit = 0;
+	}
+
+}
@@ -2,7 +2,7 @@ package com.jfixby.psd.unpacker.core.legacy;
 
 public enum Status {
 	STATUS_OK(false), STATUS_FORMAT_ERROR(true), STATUS_OPEN_ERROR(true), STATUS_UNSUPPORTED(
-			true), NEW(false);
+			true), NEW(false), STATUS_CANCELLED(false);
 
 	private boolean print_stack;
 
@@ -0,0 +1,153 @@
+package com.jfixby.psd.unpacker.core.legacy;
+
+import com.jfixby.psd.unpacker.api.PSDFormatException;
+import com.jfixby.psd.unpacker.api.PSDStructureReport;
+import com.jfixby.psd.unpacker.api.PSD_FORMAT_PROBLEM;
+
+public class StructureReport implements PSDStructureReport {
+
+	PSD_FORMAT_PROBLEM problem = PSD_FORMAT_PROBLEM.NONE;
+	long problem_offset = -1;
+	String problem_description = "";
+
+	long file_size;
+	int width;
+	int height;
+	int number_of_channels;
+	long image_resources_offset;
+	long image_resources_length;
+	long layer_and_mask_offset;
+	long layer_and_mask_length;
+	long image_data_offset;
+	int number_of_layers;
+	int number_of_raster_layers;
+	int number_of_raw_channels;
+	int number_of_rle_channels;
+	long channel_data_bytes;
+	long decoded_raster_bytes;
+	long largest_plane_bytes;
+
+	void fail (final PSD_FORMAT_PROBLEM problem, final long offset, final String description) {
+		this.problem = problem;
+		this.problem_offset = offset;
+		this.problem_description = description;
+	}
+
+	@Override
+	public boolean isValid () {
+		return this.problem == PSD_FORMAT_PROBLEM.NONE;
+	}
+
+	@Override
+	public PSD_FORMAT_PROBLEM getProblem () {
+		return this.problem;
+	}
+
+	@Override
+	public long getProblemOffset () {
+		return this.problem_offset;
+	}
+
+	@Override
+	public String getProblemDescription () {
+		return this.problem_description;
+	}
+
+	@Override
+	public void check () throws PSDFormatException {
+		if (!this.isValid()) {
+			throw new PSDFormatException(this.problem, this.problem_offset, this.problem_description);
+		}
+	}
+
+	@Override
+	public long getFileSize () {
+		return this.file_size;
+	}
+
+	@Override
+	public int getWidth () {
+		return this.width;
+	}
+
+	@Override
+	public int getHeight () {
+		return this.height;
+	}
+
+	@Override
+	public int getNumberOfChannels () {
+		return this.number_of_channels;
+	}
+
+	@Override
+	public long getImageResourcesOffset () {
+		return this.image_resources_offset;
+	}
+
+	@Override
+	public long getImageResourcesLength () {
+		return this.image_resources_length;
+	}
+
+	@Override
+	public long getLayerAndMaskOffset () {
+		return this.layer_and_mask_offset;
+	}
+
+	@Override
+	public long getLayerAndMaskLength () {
+		return this.layer_and_mask_length;
+	}
+
+	@Override
+	public long getImageDataOffset () {
+		return this.image_data_offset;
+	}
+
+	@Override
+	public int getNumberOfLayers () {
+		return this.number_of_layers;
+	}
+
+	@Override
+	public int getNumberOfRasterLayers () {
+		return this.number_of_raster_layers;
+	}
+
+	@Override
+	public int getNumberOfRawChannels () {
+		return this.number_of_raw_channels;
+	}
+
+	@Override
+	public int getNumberOfRLEChannels () {
+		return this.number_of_rle_channels;
+	}
+
+	@Override
+	public long getChannelDataBytes () {
+		return this.channel_data_bytes;
+	}
+
+	@Override
+	public long getDecodedRasterBytes () {
+		return this.decoded_raster_bytes;
+	}
+
+	@Override
+	public long getLargestPlaneBytes () {
+		return this.largest_plane_bytes;
+	}
+
+	@Override
+	public String toString () {
+		if (!this.isValid()) {
+			return "StructureReport [" + this.problem + " at " + this.problem_offset + ": " + this.problem_description + "]";
+		}
+		return "StructureReport [size=" + this.file_size + ", " + this.width + "x" + this.height + ", layers="
+			+ this.number_of_layers + ", raster_layers=" + this.number_of_raster_layers + ", channel_data="
+			+ this.channel_data_bytes + ", decoded=" + this.decoded_raster_bytes + "]";
+	}
+
+}
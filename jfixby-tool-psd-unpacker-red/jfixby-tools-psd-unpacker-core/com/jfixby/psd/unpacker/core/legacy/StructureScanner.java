@@ -0,0 +1,406 @@
+package com.jfixby.psd.unpacker.core.legacy;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import com.jfixby.psd.unpacker.api.PSD_FORMAT_PROBLEM;
+
+/** Walks the section, layer record and channel lengths of a PSD file and checks them against the file size and each other
+ * before anything is decoded. Only reads a few bytes per record, no pixel data is touched or allocated. */
+public class StructureScanner {
+
+	static final int HEADER_SIZE = 26;
+	static final int MAX_CHANNELS = 56;
+	static final int MAX_DOCUMENT_SIZE = 30000;
+	/** layers may stick out of the canvas, PSB limit */
+	static final int MAX_LAYER_SIZE = 300000;
+	/** planes are indexed by int */
+	static final long MAX_PLANE_SIZE = Integer.MAX_VALUE - 8;
+
+	private final ByteBuffer buffer;
+	private final long size;
+	private final StructureReport report = new StructureReport();
+
+	// per channel record: owning layer, channel id, stored length
+	private int channels_count;
+	private int[] channel_layer = new int[64];
+	private int[] channel_id = new int[64];
+	private int[] channel_length = new int[64];
+	private int[] layer_w;
+	private int[] layer_h;
+	private int group_depth;
+
+	/** Scans the bytes between position 0 and the limit of the buffer. The buffer itself is left untouched. */
+	public static StructureReport scan (final ByteBuffer buffer) {
+		final StructureScanner scanner = new StructureScanner(buffer);
+		scanner.scan();
+		return scanner.report;
+	}
+
+	private StructureScanner (final ByteBuffer buffer) {
+		this.buffer = buffer.duplicate();
+		this.buffer.order(ByteOrder.BIG_ENDIAN);
+		this.size = this.buffer.limit();
+		this.report.file_size = this.size;
+	}
+
+	private void scan () {
+		if (!this.scanHeader()) {
+			return;
+		}
+		long pos = HEADER_SIZE;
+
+		// color mode data
+		if (!this.fits(pos, 4, "color mode data length")) {
+			return;
+		}
+		final long color_data_len = this.uint(pos);
+		pos = pos + 4;
+		if (!this.fits(pos, color_data_len, "color mode data")) {
+			return;
+		}
+		pos = pos + color_data_len;
+
+		// image resources
+		if (!this.fits(pos, 4, "image resources length")) {
+			return;
+		}
+		this.report.image_resources_length = this.uint(pos);
+		pos = pos + 4;
+		this.report.image_resources_offset = pos;
+		if (!this.fits(pos, this.report.image_resources_length, "image resources")) {
+			return;
+		}
+		pos = pos + this.report.image_resources_length;
+
+		// layer and mask information
+		if (!this.fits(pos, 4, "layer and mask information length")) {
+			return;
+		}
+		this.report.layer_and_mask_length = this.uint(pos);
+		pos = pos + 4;
+		this.report.layer_and_mask_offset = pos;
+		if (!this.fits(pos, this.report.layer_and_mask_length, "layer and mask information")) {
+			return;
+		}
+		if (this.report.layer_and_mask_length > 0 && !this.scanLayerInfo(pos, pos + this.report.layer_and_mask_length)) {
+			return;
+		}
+		pos = pos + this.report.layer_and_mask_length;
+
+		this.report.image_data_offset = pos;
+		this.scanImageData(pos);
+	}
+
+	private boolean scanHeader () {
+		if (this.size < HEADER_SIZE) {
+			return this.fail(PSD_FORMAT_PROBLEM.TRUNCATED, 0, "file is " + this.size + " bytes, header needs " + HEADER_SIZE);
+		}
+		if (this.buffer.getInt(0) != 0x38425053) {
+			return this.fail(PSD_FORMAT_PROBLEM.BAD_SIGNATURE, 0, "not a PSD file");
+		}
+		final int version = this.buffer.getShort(4);
+		if (version != 1) {
+			return this.fail(PSD_FORMAT_PROBLEM.UNSUPPORTED_VERSION, 4, version == 2 ? "PSB files are not supported"
+				: "version " + version);
+		}
+		final int channels = this.buffer.getShort(12);
+		final int height = this.buffer.getInt(14);
+		final int width = this.buffer.getInt(18);
+		this.report.number_of_channels = channels;
+		this.report.width = width;
+		this.report.height = height;
+		if (channels < 1 || channels > MAX_CHANNELS) {
+			return this.fail(PSD_FORMAT_PROBLEM.BAD_DIMENSIONS, 12, "number of channels " + channels);
+		}
+		if (height < 1 || height > MAX_DOCUMENT_SIZE || width < 1 || width > MAX_DOCUMENT_SIZE) {
+			return this.fail(PSD_FORMAT_PROBLEM.BAD_DIMENSIONS, 14, "document size " + width + "x" + height);
+		}
+		final int depth = this.buffer.getShort(22);
+		final int mode = this.buffer.getShort(24);
+		if (depth != 8 || mode != 3) {
+			return this.fail(PSD_FORMAT_PROBLEM.UNSUPPORTED_FORMAT, 22, "only 8-bit RGB is supported, depth:" + depth
+				+ " mode:" + mode);
+		}
+		return true;
+	}
+
+	private boolean scanLayerInfo (final long start, final long end) {
+		if (!this.fits(start, 4, end, "layer info length")) {
+			return false;
+		}
+		final long layer_info_len = this.uint(start);
+		long pos = start + 4;
+		final long info_end = pos + layer_info_len;
+		if (!this.fits(pos, layer_info_len, end, "layer info")) {
+			return false;
+		}
+		if (layer_info_len == 0) {
+			return true;
+		}
+		if (!this.fits(pos, 2, info_end, "layer count")) {
+			return false;
+		}
+		final int count = Math.abs(this.buffer.getShort((int)pos));
+		pos = pos + 2;
+		this.report.number_of_layers = count;
+		this.layer_w = new int[count];
+		this.layer_h = new int[count];
+
+		for (int i = 0; i < count; i++) {
+			pos = this.scanLayerRecord(i, pos, info_end);
+			if (pos < 0) {
+				return false;
+			}
+		}
+		if (this.group_depth != 0) {
+			return this.fail(PSD_FORMAT_PROBLEM.MALFORMED_DATA, start, this.group_depth + " groups are not closed");
+		}
+
+		// channel data follows the records in the same order
+		for (int k = 0; k < this.channels_count; k++) {
+			final int length = this.channel_length[k];
+			if (!this.fits(pos, length, info_end, "channel data of layer " + this.channel_layer[k])) {
+				return false;
+			}
+			if (!this.scanChannel(k, pos, length)) {
+				return false;
+			}
+			this.report.channel_data_bytes = this.report.channel_data_bytes + length;
+			pos = pos + length;
+		}
+		return true;
+	}
+
+	/** @return position after the record, -1 on failure */
+	private long scanLayerRecord (final int layer, long pos, final long end) {
+		final long record = pos;
+		if (!this.fits(pos, 18, end, "layer record " + layer)) {
+			return -1;
+		}
+		final long top = this.buffer.getInt((int)pos);
+		final long left = this.buffer.getInt((int)pos + 4);
+		final long h = this.buffer.getInt((int)pos + 8) - top;
+		final long w = this.buffer.getInt((int)pos + 12) - left;
+		final int channels = this.buffer.getShort((int)pos + 16);
+		pos = pos + 18;
+		if (w < 0 || h < 0 || w > MAX_LAYER_SIZE || h > MAX_LAYER_SIZE || w * h > MAX_PLANE_SIZE) {
+			this.fail(PSD_FORMAT_PROBLEM.BAD_DIMENSIONS, record, "layer " + layer + " size " + w + "x" + h);
+			return -1;
+		}
+		if (channels < 0 || channels > MAX_CHANNELS) {
+			this.fail(PSD_FORMAT_PROBLEM.BAD_LAYER_RECORD, record + 16, "layer " + layer + " has " + channels + " channels");
+			return -1;
+		}
+		this.layer_w[layer] = (int)w;
+		this.layer_h[layer] = (int)h;
+		if (w > 0 && h > 0) {
+			this.report.number_of_raster_layers++;
+			this.report.decoded_raster_bytes = this.report.decoded_raster_bytes + w * h * 4;
+			this.report.largest_plane_bytes = Math.max(this.report.largest_plane_bytes, w * h);
+		}
+
+		if (!this.fits(pos, channels * 6L, end, "channel records of layer " + layer)) {
+			return -1;
+		}
+		for (int j = 0; j < channels; j++) {
+			final int id = this.buffer.getShort((int)pos);
+			final int length = this.buffer.getInt((int)pos + 2);
+			if (id < -3 || id > 3) {
+				this.fail(PSD_FORMAT_PROBLEM.BAD_LAYER_RECORD, pos, "layer " + layer + " channel id " + id);
+				return -1;
+			}
+			if (length < 0) {
+				this.fail(PSD_FORMAT_PROBLEM.SECTION_OVERFLOW, pos + 2, "layer " + layer + " channel length " + length);
+				return -1;
+			}
+			this.addChannel(layer, id, length);
+			pos = pos + 6;
+		}
+
+		if (!this.fits(pos, 16, end, "blending of layer " + layer)) {
+			return -1;
+		}
+		if (this.buffer.getInt((int)pos) != 0x3842494D) {
+			this.fail(PSD_FORMAT_PROBLEM.BAD_LAYER_RECORD, pos, "layer " + layer + " blend mode signature");
+			return -1;
+		}
+		final long extra_len = this.uint(pos + 12);
+		pos = pos + 16;
+		if (!this.fits(pos, extra_len, end, "extra data of layer " + layer)) {
+			return -1;
+		}
+		final long extra_end = pos + extra_len;
+
+		// mask, blending ranges and the pascal name must fit into the extra data
+		if (!this.fits(pos, 4, extra_end, "mask data length of layer " + layer)) {
+			return -1;
+		}
+		final long mask_len = this.uint(pos);
+		pos = pos + 4;
+		if (!this.fits(pos, mask_len, extra_end, "mask data of layer " + layer)) {
+			return -1;
+		}
+		pos = pos + mask_len;
+		if (!this.fits(pos, 4, extra_end, "blending ranges length of layer " + layer)) {
+			return -1;
+		}
+		final long ranges_len = this.uint(pos);
+		pos = pos + 4;
+		if (!this.fits(pos, ranges_len, extra_end, "blending ranges of layer " + layer)) {
+			return -1;
+		}
+		pos = pos + ranges_len;
+		if (!this.fits(pos, 1, extra_end, "name of layer " + layer)) {
+			return -1;
+		}
+		final int name_len = this.buffer.get((int)pos) & 0xff;
+		if (!this.fits(pos + 1, name_len, extra_end, "name of layer " + layer)) {
+			return -1;
+		}
+		if (w == 0 || h == 0) {
+			// empty records open and close groups, bottom-up
+			final long blocks = Math.min(pos + ((name_len + 4) & ~3), extra_end);
+			final int section = this.sectionType(blocks, extra_end);
+			final boolean divider;
+			final boolean group;
+			if (section >= 0) {
+				divider = section == TaggedBlocks.SECTION_DIVIDER;
+				group = section == TaggedBlocks.SECTION_OPEN_FOLDER || section == TaggedBlocks.SECTION_CLOSED_FOLDER;
+			} else {
+				divider = this.isSectionDivider(pos + 1, name_len);
+				group = !divider;
+			}
+			if (divider) {
+				this.group_depth++;
+			} else if (group && this.group_depth == 0) {
+				this.fail(PSD_FORMAT_PROBLEM.MALFORMED_DATA, record, "layer " + layer + " closes a group that was not opened");
+				return -1;
+			} else if (group) {
+				this.group_depth--;
+			}
+		}
+		return extra_end;
+	}
+
+	private boolean scanChannel (final int k, final long pos, final int length) {
+		final int layer = this.channel_layer[k];
+		final int id = this.channel_id[k];
+		final long w = this.layer_w[layer];
+		final long h = this.layer_h[layer];
+		if (w == 0 || h == 0) {
+			// empty layers are skipped by the reader
+			return true;
+		}
+		if (id == -3) {
+			return this.fail(PSD_FORMAT_PROBLEM.UNSUPPORTED_FORMAT, pos, "layer " + layer + " has a real user mask");
+		}
+		if (id == -2) {
+			// mask planes are not decoded
+			return true;
+		}
+		if (length < 2) {
+			return this.fail(PSD_FORMAT_PROBLEM.TRUNCATED, pos, "layer " + layer + " channel has no compression code");
+		}
+		final int compression = this.buffer.getShort((int)pos);
+		if (compression == 0) {
+			this.report.number_of_raw_channels++;
+			if (length - 2 < w * h) {
+				return this.fail(PSD_FORMAT_PROBLEM.TRUNCATED, pos, "layer " + layer + " raw channel is " + (length - 2)
+					+ " bytes, needs " + w * h);
+			}
+			return true;
+		}
+		if (compression == 1) {
+			this.report.number_of_rle_channels++;
+			if (length - 2 < h * 2) {
+				return this.fail(PSD_FORMAT_PROBLEM.TRUNCATED, pos, "layer " + layer + " RLE line table does not fit");
+			}
+			return true;
+		}
+		if (compression == 2 || compression == 3) {
+			return this.fail(PSD_FORMAT_PROBLEM.UNSUPPORTED_COMPRESSION, pos, "layer " + layer + " ZIP compression");
+		}
+		return this.fail(PSD_FORMAT_PROBLEM.MALFORMED_DATA, pos, "layer " + layer + " compression " + compression);
+	}
+
+	private void scanImageData (final long pos) {
+		if (!this.fits(pos, 2, "image data compression")) {
+			return;
+		}
+		final int compression = this.buffer.getShort((int)pos);
+		final long planes = this.report.number_of_channels;
+		final long h = this.report.height;
+		final long w = this.report.width;
+		if (compression == 0) {
+			this.fits(pos + 2, planes * w * h, "image data");
+		} else if (compression == 1) {
+			if (!this.fits(pos + 2, planes * h * 2, "image data line table")) {
+				return;
+			}
+			long total = 0;
+			for (long i = 0; i < planes * h; i++) {
+				total = total + (this.buffer.getShort((int)(pos + 2 + i * 2)) & 0xffff);
+			}
+			this.fits(pos + 2 + planes * h * 2, total, "image data");
+		}
+		// ZIP compressed image data is not read by the reader
+	}
+
+	private int sectionType (final long start, final long end) {
+		final ByteBuffer blocks = this.buffer.duplicate();
+		blocks.limit((int)end);
+		blocks.position((int)start);
+		return new TaggedBlocks(blocks.slice(), start).getSectionType();
+	}
+
+	private boolean isSectionDivider (final long pos, final int len) {
+		final String divider = PSDReader.SECTION_DIVIDER_NAME;
+		if (len != divider.length()) {
+			return false;
+		}
+		for (int i = 0; i < len; i++) {
+			final char c = (char)(this.buffer.get((int)pos + i) & 0xff);
+			if (Character.toLowerCase(c) != Character.toLowerCase(divider.charAt(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void addChannel (final int layer, final int id, final int length) {
+		if (this.channels_count == this.channel_id.length) {
+			final int capacity = this.channels_count * 2;
+			this.channel_layer = Arrays.copyOf(this.channel_layer, capacity);
+			this.channel_id = Arrays.copyOf(this.channel_id, capacity);
+			this.channel_length = Arrays.copyOf(this.channel_length, capacity);
+		}
+		this.channel_layer[this.channels_count] = layer;
+		this.channel_id[this.channels_count] = id;
+		this.channel_length[this.channels_count] = length;
+		this.channels_count++;
+	}
+
+	private long uint (final long pos) {
+		return this.buffer.getInt((int)pos) & 0xffffffffL;
+	}
+
+	private boolean fits (final long pos, final long length, final String what) {
+		return this.fits(pos, length, this.size, what);
+	}
+
+	private boolean fits (final long pos, final long length, final long end, final String what) {
+		if (pos + length <= end) {
+			return true;
+		}
+		final PSD_FORMAT_PROBLEM problem = end == this.size ? PSD_FORMAT_PROBLEM.TRUNCATED : PSD_FORMAT_PROBLEM.SECTION_OVERFLOW;
+		return this.fail(problem, pos, what + " needs " + length + " bytes, " + Math.max(0, end - pos) + " left");
+	}
+
+	private boolean fail (final PSD_FORMAT_PROBLEM problem, final long offset, final String description) {
+		this.report.fail(problem, offset, description);
+		return false;
+	}
+
+}
@@ -0,0 +1,182 @@
+package com.jfixby.psd.unpacker.core.legacy;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/** Index of the additional layer information blocks that follow the name of a layer record. Only the key, position and
+ * length of every block are recorded while reading, the blocks themselves are decoded on request. */
+public class TaggedBlocks {
+
+	static final int SIGNATURE_8BIM = 0x3842494D;
+	static final int SIGNATURE_8B64 = 0x38423634;
+
+	public static final int KEY_LUNI = 0x6C756E69;
+	public static final int KEY_LSCT = 0x6C736374;
+	public static final int KEY_LSDK = 0x6C73646B;
+	public static final int KEY_LYID = 0x6C796964;
+
+	public static final int SECTION_OTHER = 0;
+	public static final int SECTION_OPEN_FOLDER = 1;
+	public static final int SECTION_CLOSED_FOLDER = 2;
+	public static final int SECTION_DIVIDER = 3;
+
+	static final int NOT_DECODED = -2;
+
+	private final ByteBuffer data;
+	private final long file_offset;
+	private int count;
+	private int[] keys = new int[4];
+	private int[] offsets = new int[4];
+	private int[] lengths = new int[4];
+
+	private int section_type = NOT_DECODED;
+	private int layer_id = NOT_DECODED;
+	private String unicode_name;
+	private boolean unicode_name_decoded;
+
+	/** Indexes the blocks between position 0 and the limit of the buffer. Stops at the first block that is not well formed.
+	 *
+	 * @param file_offset where the buffer starts in the file */
+	public TaggedBlocks (final ByteBuffer data, final long file_offset) {
+		this.data = data;
+		this.file_offset = file_offset;
+		final int end = data.limit();
+		int pos = 0;
+		while (pos + 12 <= end) {
+			final int signature = data.getInt(pos);
+			if (signature != SIGNATURE_8BIM && signature != SIGNATURE_8B64) {
+				break;
+			}
+			final int key = data.getInt(pos + 4);
+			final int length = data.getInt(pos + 8);
+			pos = pos + 12;
+			if (length < 0 || length > end - pos) {
+				break;
+			}
+			this.add(key, pos, length);
+			pos = pos + length;
+		}
+	}
+
+	private void add (final int key, final int offset, final int length) {
+		if (this.count == this.keys.length) {
+			this.keys = Arrays.copyOf(this.keys, this.count * 2);
+			this.offsets = Arrays.copyOf(this.offsets, this.count * 2);
+			this.lengths = Arrays.copyOf(this.lengths, this.count * 2);
+		}
+		this.keys[this.count] = key;
+		this.offsets[this.count] = offset;
+		this.lengths[this.count] = length;
+		this.count++;
+	}
+
+	public int size () {
+		return this.count;
+	}
+
+	public int getKey (final int i) {
+		return this.keys[i];
+	}
+
+	/** @return file offset of the data of the block */
+	public long getOffset (final int i) {
+		return this.file_offset + this.offsets[i];
+	}
+
+	public int getLength (final int i) {
+		return this.lengths[i];
+	}
+
+	/** @return position of the first block with the given key, -1 if there is none */
+	public int indexOf (final int key) {
+		for (int i = 0; i < this.count; i++) {
+			if (this.keys[i] == key) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/** @return type from the section divider setting, -1 if the record has none */
+	public int getSectionType () {
+		if (this.section_type == NOT_DECODED) {
+			int i = this.indexOf(KEY_LSCT);
+			if (i < 0) {
+				// written instead of lsct by some versions for nested groups
+				i = this.indexOf(KEY_LSDK);
+			}
+			this.section_type = i >= 0 && this.lengths[i] >= 4 ? this.data.getInt(this.offsets[i]) : -1;
+		}
+		return this.section_type;
+	}
+
+	/** @return blend mode key of the group from the section divider setting, 0 if the setting has none. Groups set to pass
+	 *         through keep "norm" in the layer record and "pass" only here. */
+	public int getSectionBlendMode () {
+		int i = this.indexOf(KEY_LSCT);
+		if (i < 0) {
+			i = this.indexOf(KEY_LSDK);
+		}
+		if (i < 0 || this.lengths[i] < 12 || this.data.getInt(this.offsets[i] + 4) != SIGNATURE_8BIM) {
+			return 0;
+		}
+		return this.data.getInt(this.offsets[i] + 8);
+	}
+
+	/** @return the layer ID Photoshop keeps stable across edits, -1 if the record has none */
+	public int getLayerID () {
+		if (this.layer_id == NOT_DECODED) {
+			final int i = this.indexOf(KEY_LYID);
+			this.layer_id = i >= 0 && this.lengths[i] >= 4 ? this.data.getInt(this.offsets[i]) : -1;
+		}
+		return this.layer_id;
+	}
+
+	/** @return the UTF-16 layer name, null if the record has none */
+	public String getUnicodeName () {
+		if (!this.unicode_name_decoded) {
+			this.unicode_name_decoded = true;
+			this.unicode_name = this.decodeUnicodeName();
+		}
+		return this.unicode_name;
+	}
+
+	private String decodeUnicodeName () {
+		final int i = this.indexOf(KEY_LUNI);
+		if (i < 0 || this.lengths[i] < 4) {
+			return null;
+		}
+		final int pos = this.offsets[i];
+		final int chars = this.data.getInt(pos);
+		if (chars < 0 || chars > (this.lengths[i] - 4) / 2) {
+			return null;
+		}
+		final char[] name = new char[chars];
+		for (int c = 0; c < chars; c++) {
+			name[c] = this.data.getChar(pos + 4 + c * 2);
+		}
+		int n = chars;
+		while (n > 0 && name[n - 1] == 0) {
+			n--;
+		}
+		return new String(name, 0, n);
+	}
+
+	public static String keyName (final int key) {
+		return new String(new char[]{(char)((key >>> 24) & 0xff), (char)((key >>> 16) & 0xff), (char)((key >>> 8) & 0xff),
+			(char)(key & 0xff)});
+	}
+
+	@Override
+	public String toString () {
+		final StringBuilder b = new StringBuilder("TaggedBlocks [");
+		for (int i = 0; i < this.count; i++) {
+			if (i > 0) {
+				b.append(", ");
+			}
+			b.append(keyName(this.keys[i])).append("@").append(this.getOffset(i)).append("+").append(this.lengths[i]);
+		}
+		return b.append("]").toString();
+	}
+
+}
@@ -0,0 +1,305 @@
+package com.jfixby.psd.unpacker.run;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.jfixby.psd.unpacker.api.PSDFileContent;
+import com.jfixby.psd.unpacker.api.PSDLayer;
+import com.jfixby.psd.unpacker.api.PSDRaster;
+import com.jfixby.psd.unpacker.core.RasterPixels;
+import com.jfixby.psd.unpacker.run.AtlasPacker.Page;
+import com.jfixby.psd.unpacker.run.AtlasPacker.Rect;
+import com.jfixby.scarabei.api.file.File;
+import com.jfixby.scarabei.api.log.L;
+
+/** Packs the visible raster layers of a document, or of one group in it, into atlas pages. Every page is written as a PNG
+ * file, the regions of all pages go into one JSON descriptor next to them. Pages are blitted and encoded in parallel. */
+public class AtlasExport {
+
+	public static final int DEFAULT_MAX_PAGE_SIZE = 2048;
+	public static final int DEFAULT_PADDING = 2;
+
+	private int max_page_size = DEFAULT_MAX_PAGE_SIZE;
+	private int padding = DEFAULT_PADDING;
+	private boolean trim = false;
+	private String group_path;
+	private RasterEncoder encoder = new PngEncoder();
+
+	/** A raster layer and the part of it that goes into the atlas. */
+	static class Source {
+		final String path;
+		final PSDLayer layer;
+		final BufferedImage image;
+		int trim_x;
+		int trim_y;
+		int width;
+		int height;
+
+		Source (String path, PSDLayer layer) {
+			this.path = path;
+			this.layer = layer;
+			this.image = layer.getRaster().getBufferedImage();
+			this.width = image.getWidth();
+			this.height = image.getHeight();
+		}
+	}
+
+	public void setMaxPageSize (int max_page_size) {
+		this.max_page_size = max_page_size;
+	}
+
+	public void setPadding (int padding) {
+		this.padding = padding;
+	}
+
+	/** Cuts fully transparent rows and columns off the borders of every layer. */
+	public void setTrim (boolean trim) {
+		this.trim = trim;
+	}
+
+	/** Only the layers inside this group are packed, e.g. "ui/buttons". All layers of the document if null. */
+	public void setGroupPath (String group_path) {
+		this.group_path = group_path;
+	}
+
+	/** Format of the pages, PNG by default. */
+	public void setEncoder (RasterEncoder encoder) {
+		this.encoder = encoder;
+	}
+
+	public static String descriptorFileName (String psd_name) {
+		return psd_name + ".atlas.json";
+	}
+
+	public static String pageFileName (String psd_name, int page, String extension) {
+		return psd_name + ".atlas" + page + "." + extension;
+	}
+
+	public void export (String psd_name, PSDFileContent content, File output_folder) throws IOException {
+		PSDLayer folder = content.getRootlayer();
+		String prefix = "";
+		if (group_path != null) {
+			folder = content.findByPath(group_path);
+			if (folder == null || !folder.isFolder()) {
+				L.e("group not found", psd_name + ": " + group_path);
+				return;
+			}
+			prefix = group_path + "/";
+		}
+		ArrayList<Source> sources = new ArrayList<Source>();
+		collect(folder, prefix, sources);
+
+		ArrayList<Rect> rects = new ArrayList<Rect>();
+		for (int i = 0; i < sources.size(); i++) {
+			Source source = sources.get(i);
+			if (trim) {
+				trim(source);
+			}
+			if (source.width > 0 && source.height > 0) {
+				rects.add(new Rect(i, source.width, source.height));
+			}
+		}
+		List<Page> pages = new AtlasPacker(max_page_size, padding).pack(rects);
+		L.d("atlas", psd_name + ": " + rects.size() + " regions on " + pages.size() + " pages");
+
+		writePages(psd_name, pages, sources, output_folder);
+		writeDescriptor(psd_name, pages, sources, output_folder);
+	}
+
+	private static void collect (PSDLayer folder, String prefix, ArrayList<Source> sources) {
+		for (int i = 0; i < folder.numberOfChildren(); i++) {
+			PSDLayer child = folder.getChild(i);
+			if (!child.isVisible()) {
+				continue;
+			}
+			if (child.isFolder()) {
+				collect(child, prefix + child.getName() + "/", sources);
+			} else {
+				sources.add(new Source(prefix + child.getName(), child));
+			}
+		}
+	}
+
+	private static void trim (Source source) {
+		BufferedImage image = source.image;
+		int w = image.getWidth();
+		int h = image.getHeight();
+		int[] row = new int[w];
+		int top = h;
+		int bottom = -1;
+		int left = w;
+		int right = -1;
+		for (int y = 0; y < h; y++) {
+			image.getRGB(0, y, w, 1, row, 0, w);
+			for (int x = 0; x < w; x++) {
+				if ((row[x] >>> 24) != 0) {
+					top = Math.min(top, y);
+					bottom = y;
+					left = Math.min(left, x);
+					right = Math.max(right, x);
+				}
+			}
+		}
+		if (bottom < 0) {
+			// fully transparent, nothing to pack
+			source.width = 0;
+			source.height = 0;
+			return;
+		}
+		source.trim_x = left;
+		source.trim_y = top;
+		source.width = right - left + 1;
+		source.height = bottom - top + 1;
+	}
+
+	private void writePages (final String psd_name, List<Page> pages, final ArrayList<Source> sources,
+		final File output_folder) throws IOException {
+		int threads = Math.max(1, Math.min(pages.size(), Runtime.getRuntime().availableProcessors()));
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			ArrayList<Future<Void>> results = new ArrayList<Future<Void>>();
+			for (int i = 0; i < pages.size(); i++) {
+				final int number = i;
+				final Page page = pages.get(i);
+				results.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call () throws IOException {
+						BufferedImage image = blit(page, sources);
+						String output_name = pageFileName(psd_name, number, encoder.getFileExtension());
+						L.d("writing", output_folder.child(output_name));
+						OutputStream java_stream = UnpackAll.openOutput(output_folder, output_name);
+						try {
+							RasterEncoders.write(encoder, image, java_stream);
+							UnpackAll.commitOutput(java_stream);
+						} finally {
+							java_stream.close();
+						}
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> result : results) {
+				result.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted while writing atlas of " + psd_name, e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException)e.getCause();
+			}
+			throw new IOException("failed to write atlas of " + psd_name, e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	static BufferedImage blit (Page page, ArrayList<Source> sources) {
+		// the layers of one document are all premultiplied or none is, the page keeps their pixels as they are
+		boolean premultiplied = !page.rects.isEmpty() && RasterPixels.isPremultiplied(sources.get(page.rects.get(0).id).image);
+		BufferedImage image = new BufferedImage(page.width, page.height,
+			premultiplied ? BufferedImage.TYPE_INT_ARGB_PRE : BufferedImage.TYPE_INT_ARGB);
+		int[] target = ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+		for (Rect rect : page.rects) {
+			Source source = sources.get(rect.id);
+			int[] pixels = RasterPixels.pixelsOf(source.image);
+			if (pixels != null) {
+				int stride = source.image.getWidth();
+				for (int y = 0; y < rect.height; y++) {
+					System.arraycopy(pixels, (source.trim_y + y) * stride + source.trim_x, target, (rect.y + y) * page.width
+						+ rect.x, rect.width);
+				}
+			} else {
+				int[] row = new int[rect.width];
+				for (int y = 0; y < rect.height; y++) {
+					RasterPixels.getPixels(source.image, source.trim_x, source.trim_y + y, rect.width, 1, row);
+					System.arraycopy(row, 0, target, (rect.y + y) * page.width + rect.x, rect.width);
+				}
+			}
+		}
+		return image;
+	}
+
+	private void writeDescriptor (String psd_name, List<Page> pages, ArrayList<Source> sources, File output_folder)
+		throws IOException {
+		StringBuilder json = new StringBuilder();
+		json.append("{\n");
+		json.append("  \"source\": ").append(string(psd_name)).append(",\n");
+		json.append("  \"group\": ").append(group_path == null ? "null" : string(group_path)).append(",\n");
+		json.append("  \"padding\": ").append(padding).append(",\n");
+		json.append("  \"pages\": [");
+		for (int i = 0; i < pages.size(); i++) {
+			Page page = pages.get(i);
+			json.append(i == 0 ? "\n" : ",\n");
+			json.append("    {\n");
+			json.append("      \"file\": ").append(string(pageFileName(psd_name, i, encoder.getFileExtension()))).append(",\n");
+			json.append("      \"width\": ").append(page.width).append(",\n");
+			json.append("      \"height\": ").append(page.height).append(",\n");
+			json.append("      \"regions\": [");
+			for (int j = 0; j < page.rects.size(); j++) {
+				Rect rect = page.rects.get(j);
+				Source source = sources.get(rect.id);
+				PSDRaster raster = source.layer.getRaster();
+				json.append(j == 0 ? "\n" : ",\n");
+				json.append("        {\"name\": ").append(string(source.layer.getName()));
+				json.append(", \"path\": ").append(string(source.path));
+				json.append(", \"x\": ").append(rect.getX());
+				json.append(", \"y\": ").append(rect.getY());
+				json.append(", \"width\": ").append(rect.width);
+				json.append(", \"height\": ").append(rect.height);
+				// where the region sits in the document
+				json.append(", \"left\": ").append((int)raster.getPosition().getX() + source.trim_x);
+				json.append(", \"top\": ").append((int)raster.getPosition().getY() + source.trim_y);
+				json.append(", \"trimX\": ").append(source.trim_x);
+				json.append(", \"trimY\": ").append(source.trim_y);
+				json.append(", \"sourceWidth\": ").append(source.image.getWidth());
+				json.append(", \"sourceHeight\": ").append(source.image.getHeight());
+				json.append(", \"opacity\": ").append(source.layer.getOpacity());
+				json.append("}");
+			}
+			json.append(page.rects.size() == 0 ? "]\n" : "\n      ]\n");
+			json.append("    }");
+		}
+		json.append(pages.size() == 0 ? "]\n" : "\n  ]\n");
+		json.append("}\n");
+
+		String output_name = descriptorFileName(psd_name);
+		L.d("writing", output_folder.child(output_name));
+		OutputStream java_stream = UnpackAll.openOutput(output_folder, output_name);
+		try {
+			java_stream.write(json.toString().getBytes(StandardCharsets.UTF_8));
+			UnpackAll.commitOutput(java_stream);
+		} finally {
+			java_stream.close();
+		}
+	}
+
+	private static String string (String value) {
+		if (value == null) {
+			return "null";
+		}
+		StringBuilder result = new StringBuilder("\"");
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\') {
+				result.append('\\').append(c);
+			} else if (c < 0x20) {
+				result.append(String.format("\\u%04x", (int)c));
+			} else {
+				result.append(c);
+			}
+		}
+		return result.append('"').toString();
+	}
+
+}
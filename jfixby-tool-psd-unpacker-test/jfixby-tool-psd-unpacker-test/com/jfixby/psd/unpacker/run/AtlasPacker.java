@@ -0,0 +1,234 @@
+package com.jfixby.psd.unpacker.run;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/** MaxRects packer with the best short side fit rule. Pages are powers of two, at most max_page_size on each side. Every page
+ * is first tried square, grown while the remaining rectangles do not fit, and finally cut down to the smallest power of two
+ * that holds its content. A rectangle larger than max_page_size gets a page of its own. */
+public class AtlasPacker {
+
+	public static class Rect {
+		public final int id;
+		public final int width;
+		public final int height;
+		int x;
+		int y;
+
+		public Rect (int id, int width, int height) {
+			this.id = id;
+			this.width = width;
+			this.height = height;
+		}
+
+		public int getX () {
+			return x;
+		}
+
+		public int getY () {
+			return y;
+		}
+
+		@Override
+		public String toString () {
+			return "Rect[" + id + " " + width + "x" + height + " at " + x + "," + y + "]";
+		}
+	}
+
+	public static class Page {
+		public final int width;
+		public final int height;
+		public final List<Rect> rects;
+
+		Page (int width, int height, List<Rect> rects) {
+			this.width = width;
+			this.height = height;
+			this.rects = rects;
+		}
+
+		@Override
+		public String toString () {
+			return "Page[" + width + "x" + height + " rects=" + rects.size() + "]";
+		}
+	}
+
+	private static final Comparator<Rect> LARGEST_FIRST = new Comparator<Rect>() {
+		@Override
+		public int compare (Rect a, Rect b) {
+			int side = Math.max(b.width, b.height) - Math.max(a.width, a.height);
+			if (side != 0) {
+				return side;
+			}
+			long area = (long)b.width * b.height - (long)a.width * a.height;
+			if (area != 0) {
+				return area > 0 ? 1 : -1;
+			}
+			return a.id - b.id;
+		}
+	};
+
+	private final int max_page_size;
+	private final int padding;
+
+	/** @param padding empty pixels kept between rectangles */
+	public AtlasPacker (int max_page_size, int padding) {
+		this.max_page_size = Integer.highestOneBit(max_page_size);
+		this.padding = padding;
+	}
+
+	public List<Page> pack (List<Rect> input) {
+		ArrayList<Rect> remaining = new ArrayList<Rect>(input);
+		Collections.sort(remaining, LARGEST_FIRST);
+		ArrayList<Page> pages = new ArrayList<Page>();
+
+		for (int i = remaining.size() - 1; i >= 0; i--) {
+			Rect rect = remaining.get(i);
+			if (rect.width > max_page_size || rect.height > max_page_size) {
+				remaining.remove(i);
+				rect.x = 0;
+				rect.y = 0;
+				ArrayList<Rect> single = new ArrayList<Rect>();
+				single.add(rect);
+				pages.add(new Page(powerOfTwo(rect.width), powerOfTwo(rect.height), single));
+			}
+		}
+
+		while (remaining.size() > 0) {
+			long area = 0;
+			int largest = 0;
+			for (int i = 0; i < remaining.size(); i++) {
+				Rect rect = remaining.get(i);
+				area = area + (long)(rect.width + padding) * (rect.height + padding);
+				largest = Math.max(largest, Math.max(rect.width, rect.height) + padding);
+			}
+			int size = Math.min(max_page_size, powerOfTwo(Math.max(largest, (int)Math.ceil(Math.sqrt(area)))));
+			while (true) {
+				Bin bin = new Bin(size, padding);
+				ArrayList<Rect> placed = new ArrayList<Rect>();
+				for (int i = 0; i < remaining.size(); i++) {
+					if (bin.insert(remaining.get(i))) {
+						placed.add(remaining.get(i));
+					}
+				}
+				// an empty page of the largest size holds any of the remaining rectangles, so this always progresses
+				if (placed.size() == remaining.size() || size >= max_page_size) {
+					pages.add(new Page(powerOfTwo(bin.used_width), powerOfTwo(bin.used_height), placed));
+					remaining.removeAll(placed);
+					break;
+				}
+				size = size * 2;
+			}
+		}
+		return pages;
+	}
+
+	static int powerOfTwo (int value) {
+		if (value <= 1) {
+			return 1;
+		}
+		return Integer.highestOneBit(value - 1) << 1;
+	}
+
+	/** Free space of one page as a list of maximal free rectangles, which may overlap. */
+	static class Bin {
+		final int size;
+		final int padding;
+		final ArrayList<int[]> free = new ArrayList<int[]>();
+		int used_width;
+		int used_height;
+
+		Bin (int size, int padding) {
+			this.size = size;
+			this.padding = padding;
+			// the padding after the last column and row may stick out of the page
+			free.add(new int[] {0, 0, size + padding, size + padding});
+		}
+
+		boolean insert (Rect rect) {
+			int w = rect.width + padding;
+			int h = rect.height + padding;
+			int best = -1;
+			int best_short = Integer.MAX_VALUE;
+			int best_long = Integer.MAX_VALUE;
+			for (int i = 0; i < free.size(); i++) {
+				int[] f = free.get(i);
+				if (w <= f[2] && h <= f[3]) {
+					int dw = f[2] - w;
+					int dh = f[3] - h;
+					int short_side = Math.min(dw, dh);
+					int long_side = Math.max(dw, dh);
+					if (short_side < best_short || (short_side == best_short && long_side < best_long)) {
+						best = i;
+						best_short = short_side;
+						best_long = long_side;
+					}
+				}
+			}
+			if (best < 0) {
+				return false;
+			}
+			int[] f = free.get(best);
+			rect.x = f[0];
+			rect.y = f[1];
+			used_width = Math.max(used_width, rect.x + rect.width);
+			used_height = Math.max(used_height, rect.y + rect.height);
+			split(rect.x, rect.y, w, h);
+			return true;
+		}
+
+		/** Cuts the used area out of every free rectangle it overlaps, then drops the new rectangles that are contained in
+		 * others. Rectangles that were free before are already maximal among themselves. */
+		private void split (int x, int y, int w, int h) {
+			ArrayList<int[]> added = new ArrayList<int[]>();
+			for (int i = free.size() - 1; i >= 0; i--) {
+				int[] f = free.get(i);
+				if (x >= f[0] + f[2] || x + w <= f[0] || y >= f[1] + f[3] || y + h <= f[1]) {
+					continue;
+				}
+				// up to four maximal rectangles around the used area
+				if (x > f[0]) {
+					added.add(new int[] {f[0], f[1], x - f[0], f[3]});
+				}
+				if (x + w < f[0] + f[2]) {
+					added.add(new int[] {x + w, f[1], f[0] + f[2] - x - w, f[3]});
+				}
+				if (y > f[1]) {
+					added.add(new int[] {f[0], f[1], f[2], y - f[1]});
+				}
+				if (y + h < f[1] + f[3]) {
+					added.add(new int[] {f[0], y + h, f[2], f[1] + f[3] - y - h});
+				}
+				free.set(i, free.get(free.size() - 1));
+				free.remove(free.size() - 1);
+			}
+			for (int i = 0; i < added.size(); i++) {
+				int[] a = added.get(i);
+				boolean contained = false;
+				for (int j = 0; j < added.size() && !contained; j++) {
+					int[] b = added.get(j);
+					// of two equal rectangles the first one stays
+					contained = j != i && b != null && a != null && contains(b, a) && (!contains(a, b) || j < i);
+				}
+				for (int j = 0; j < free.size() && !contained; j++) {
+					contained = contains(free.get(j), a);
+				}
+				if (contained) {
+					added.set(i, null);
+				}
+			}
+			for (int i = 0; i < added.size(); i++) {
+				if (added.get(i) != null) {
+					free.add(added.get(i));
+				}
+			}
+		}
+
+		private static boolean contains (int[] outer, int[] inner) {
+			return inner[0] >= outer[0] && inner[1] >= outer[1] && inner[0] + inner[2] <= outer[0] + outer[2]
+				&& inner[1] + inner[3] <= outer[1] + outer[3];
+		}
+	}
+
+}
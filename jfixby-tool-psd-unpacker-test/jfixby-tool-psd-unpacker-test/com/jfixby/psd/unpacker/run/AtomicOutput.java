@@ -0,0 +1,94 @@
+package com.jfixby.psd.unpacker.run;
+
+import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/** Writes a file next to its target and moves it into place on {@link Stream#commit()}, so a reader watching the folder
+ * sees either the old or the new file, never a partial one. Closing a stream that was not committed, e.g. after the encoder
+ * failed, deletes the written part and keeps the old file. */
+public class AtomicOutput {
+
+	public static final String PART_SUFFIX = ".part";
+
+	/** The output of one file, closed in a finally block after {@link #commit()}. */
+	public static class Stream extends FilterOutputStream {
+		private final Path part;
+		private final Path target;
+		private boolean committed;
+		private boolean closed;
+
+		Stream (OutputStream out, Path part, Path target) {
+			super(out);
+			this.part = part;
+			this.target = target;
+		}
+
+		@Override
+		public void write (byte[] bytes, int offset, int length) throws IOException {
+			out.write(bytes, offset, length);
+		}
+
+		/** Moves the written file onto the target and closes the stream. */
+		public void commit () throws IOException {
+			committed = true;
+			close();
+		}
+
+		@Override
+		public void close () throws IOException {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			try {
+				out.close();
+				if (committed) {
+					move(part, target);
+				}
+			} finally {
+				Files.deleteIfExists(part);
+			}
+		}
+	}
+
+	public static Stream open (Path target) throws IOException {
+		Path folder = target.toAbsolutePath().getParent();
+		Path part = Files.createTempFile(folder, "." + target.getFileName(), PART_SUFFIX);
+		OutputStream stream;
+		try {
+			stream = new BufferedOutputStream(Files.newOutputStream(part), 64 * 1024);
+		} catch (IOException e) {
+			Files.deleteIfExists(part);
+			throw e;
+		}
+		return new Stream(stream, part, target);
+	}
+
+	static void move (Path part, Path target) throws IOException {
+		try {
+			Files.move(part, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(part, target, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/** Deletes the files of writes that never got closed, e.g. of a killed process. */
+	public static void deleteLeftovers (Path folder) throws IOException {
+		DirectoryStream<Path> parts = Files.newDirectoryStream(folder, ".*" + PART_SUFFIX);
+		try {
+			for (Path part : parts) {
+				Files.deleteIfExists(part);
+			}
+		} finally {
+			parts.close();
+		}
+	}
+
+}
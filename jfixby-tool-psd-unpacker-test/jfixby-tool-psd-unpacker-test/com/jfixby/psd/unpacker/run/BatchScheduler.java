@@ -0,0 +1,284 @@
+package com.jfixby.psd.unpacker.run;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import com.jfixby.psd.unpacker.api.PSDFileIndex;
+import com.jfixby.psd.unpacker.api.PSDFormatException;
+import com.jfixby.psd.unpacker.api.PSDLayerRecord;
+import com.jfixby.psd.unpacker.api.PSDRaster;
+import com.jfixby.psd.unpacker.api.PSDUnpacker;
+import com.jfixby.scarabei.api.file.File;
+import com.jfixby.scarabei.api.log.L;
+
+/** Runs a batch of PSD files on one work-stealing pool.
+ * <p>
+ * Every file is sized first from its index, which reads just the header and the layer records: the cost of a file is the
+ * size of the rasters of its visible layers. Files are submitted largest first. A file of at least
+ * {@link #DEFAULT_SPLIT_BYTES} is split into one task per layer, decoded from the index, so its layers spread over the
+ * pool and interleave with the other files instead of keeping one worker busy until the end of the batch. Smaller files
+ * and files that can not be split are handed whole to the {@link FileHandler}. */
+public class BatchScheduler {
+
+	public static final long DEFAULT_SPLIT_BYTES = 16L * 1024 * 1024;
+
+	public interface FileHandler {
+
+		void unpack (File psd_file) throws IOException;
+
+	}
+
+	/** One file of the batch. */
+	static class Job {
+		final File file;
+		long cost;
+		/** open while the file waits for its layer tasks, null if it is handled whole */
+		PSDFileIndex index;
+
+		Job (File file) {
+			this.file = file;
+		}
+	}
+
+	private static final Comparator<Job> LARGEST_FIRST = new Comparator<Job>() {
+		@Override
+		public int compare (Job a, Job b) {
+			return Long.compare(b.cost, a.cost);
+		}
+	};
+
+	private static final Comparator<PSDLayerRecord> LARGEST_LAYER_FIRST = new Comparator<PSDLayerRecord>() {
+		@Override
+		public int compare (PSDLayerRecord a, PSDLayerRecord b) {
+			return Long.compare(cost(b), cost(a));
+		}
+	};
+
+	private final Path input_path;
+	private final File output_folder;
+	private final RasterEncoder encoder;
+	private final FileHandler handler;
+	private int parallelism = Runtime.getRuntime().availableProcessors();
+	private long split_bytes = DEFAULT_SPLIT_BYTES;
+	private boolean split = true;
+
+	/** @param input_path folder of the files as a path, the index is opened through it */
+	public BatchScheduler (Path input_path, File output_folder, RasterEncoder encoder, FileHandler handler) {
+		this.input_path = input_path;
+		this.output_folder = output_folder;
+		this.encoder = encoder;
+		this.handler = handler;
+	}
+
+	public void setParallelism (int parallelism) {
+		this.parallelism = Math.max(1, parallelism);
+	}
+
+	public void setSplitBytes (long split_bytes) {
+		this.split_bytes = split_bytes;
+	}
+
+	/** With false every file goes to the handler whole, e.g. when the handler also keeps a manifest or packs an atlas. */
+	public void setSplit (boolean split) {
+		this.split = split;
+	}
+
+	static long cost (PSDLayerRecord layer) {
+		return 4L * layer.getWidth() * layer.getHeight();
+	}
+
+	public void run (List<File> psd_files) throws IOException {
+		ArrayList<Job> jobs = new ArrayList<Job>();
+		for (File psd_file : psd_files) {
+			jobs.add(size(psd_file));
+		}
+		Collections.sort(jobs, LARGEST_FIRST);
+
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try {
+			ArrayList<ForkJoinTask<?>> tasks = new ArrayList<ForkJoinTask<?>>();
+			// external submissions are taken in order, so the largest files start first
+			for (Job job : jobs) {
+				tasks.add(pool.submit(new FileTask(job)));
+			}
+			for (ForkJoinTask<?> task : tasks) {
+				try {
+					task.get();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("interrupted while unpacking", e);
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof UncheckedIOException) {
+						throw ((UncheckedIOException)e.getCause()).getCause();
+					}
+					throw new IOException(e.getCause());
+				}
+			}
+		} finally {
+			pool.shutdown();
+			for (Job job : jobs) {
+				closeIndex(job);
+			}
+		}
+	}
+
+	private Job size (File psd_file) {
+		Job job = new Job(psd_file);
+		PSDFileIndex index;
+		try {
+			index = PSDUnpacker.openIndex(input_path.resolve(psd_file.getName()), false);
+		} catch (IOException e) {
+			// the handler reads the file again and reports the problem
+			return job;
+		}
+		int layers = 0;
+		for (PSDLayerRecord layer : index.getLayers()) {
+			if (!index.isFolder(layer) && layer.isVisibleInTree()) {
+				job.cost = job.cost + cost(layer);
+				layers++;
+			}
+		}
+		if (split && layers > 1 && job.cost >= split_bytes) {
+			job.index = index;
+		} else {
+			closeIndex(index);
+		}
+		return job;
+	}
+
+	private static void closeIndex (Job job) {
+		PSDFileIndex index;
+		synchronized (job) {
+			index = job.index;
+			job.index = null;
+		}
+		closeIndex(index);
+	}
+
+	private static void closeIndex (PSDFileIndex index) {
+		if (index == null) {
+			return;
+		}
+		try {
+			index.close();
+		} catch (IOException e) {
+			L.e("can not close index", e.getMessage());
+		}
+	}
+
+	class FileTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		final Job job;
+
+		FileTask (Job job) {
+			this.job = job;
+		}
+
+		@Override
+		protected void compute () {
+			try {
+				if (job.index == null) {
+					handler.unpack(job.file);
+					return;
+				}
+				L.d("unpacking", job.file + " in layers");
+				try {
+					invokeAll(layerTasks());
+				} catch (UncheckedIOException e) {
+					// a broken layer rejects the file as a whole-file unpack would
+					PSDFormatException format = formatExceptionOf(e);
+					if (format != null) {
+						throw format;
+					}
+					throw e;
+				}
+			} catch (PSDFormatException e) {
+				// a broken file must not stop the batch, its previous outputs are kept
+				L.e("rejected " + job.file, e.getMessage());
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			} finally {
+				closeIndex(job);
+			}
+		}
+
+		/** @return the format problem a layer task failed with, null if it is another one. The pool may rethrow a copy of the
+		 *         exception of the task that wraps the original. */
+		private PSDFormatException formatExceptionOf (UncheckedIOException e) {
+			for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+				if (cause instanceof PSDFormatException) {
+					return (PSDFormatException)cause;
+				}
+			}
+			return null;
+		}
+
+		private List<LayerTask> layerTasks () {
+			String psd_name = job.file.nameWithoutExtension();
+			// layers with the same name write the same file, the last one in document order wins as in a sequential export
+			LinkedHashMap<String, PSDLayerRecord> outputs = new LinkedHashMap<String, PSDLayerRecord>();
+			for (PSDLayerRecord layer : job.index.getLayers()) {
+				if (!job.index.isFolder(layer) && layer.isVisibleInTree()) {
+					String output_name = UnpackAll.outputFileName(psd_name, layer.getName(), encoder);
+					outputs.remove(output_name);
+					outputs.put(output_name, layer);
+				}
+			}
+			ArrayList<PSDLayerRecord> layers = new ArrayList<PSDLayerRecord>(outputs.values());
+			Collections.sort(layers, LARGEST_LAYER_FIRST);
+			ArrayList<LayerTask> tasks = new ArrayList<LayerTask>();
+			for (PSDLayerRecord layer : layers) {
+				tasks.add(new LayerTask(job.index, layer, UnpackAll.outputFileName(psd_name, layer.getName(), encoder)));
+			}
+			return tasks;
+		}
+	}
+
+	class LayerTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		final PSDFileIndex index;
+		final PSDLayerRecord layer;
+		final String output_name;
+
+		LayerTask (PSDFileIndex index, PSDLayerRecord layer, String output_name) {
+			this.index = index;
+			this.layer = layer;
+			this.output_name = output_name;
+		}
+
+		@Override
+		protected void compute () {
+			try {
+				PSDRaster raster = index.readRaster(layer);
+				try {
+					L.d("writing", output_folder.child(output_name));
+					OutputStream java_stream = UnpackAll.openOutput(output_folder, output_name);
+					try {
+						RasterEncoders.write(encoder, raster.getBufferedImage(), java_stream);
+						UnpackAll.commitOutput(java_stream);
+					} finally {
+						java_stream.close();
+					}
+				} finally {
+					raster.release();
+				}
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,69 @@
+package com.jfixby.psd.unpacker.run;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import com.jfixby.scarabei.api.file.File;
+import com.jfixby.scarabei.api.file.FileOutputStream;
+
+/** Layer fingerprints of the previous export: PSD file name -> output file name -> fingerprint, followed by the options
+ * that change the written pixels, see {@link UnpackAll#outputOptions()}. Stored as tab separated lines. The watch mode updates it from several workers, one PSD file each. */
+public class ExportManifest {
+
+	private final HashMap<String, HashMap<String, String>> psd_files = new HashMap<String, HashMap<String, String>>();
+
+	public static ExportManifest read (File file) throws IOException {
+		ExportManifest manifest = new ExportManifest();
+		if (!file.exists()) {
+			return manifest;
+		}
+		String text = new String(file.readBytes().toArray(), StandardCharsets.UTF_8);
+		for (String line : text.split("\n")) {
+			String[] fields = line.split("\t");
+			if (fields.length == 3) {
+				manifest.layersOf(fields[0]).put(fields[1], fields[2]);
+			}
+		}
+		return manifest;
+	}
+
+	public synchronized HashMap<String, String> layersOf (String psd_file_name) {
+		HashMap<String, String> layers = psd_files.get(psd_file_name);
+		if (layers == null) {
+			layers = new HashMap<String, String>();
+			psd_files.put(psd_file_name, layers);
+		}
+		return layers;
+	}
+
+	public synchronized void setLayers (String psd_file_name, HashMap<String, String> layers) {
+		psd_files.put(psd_file_name, layers);
+	}
+
+	public synchronized Set<String> psdFiles () {
+		return new HashSet<String>(psd_files.keySet());
+	}
+
+	public synchronized void remove (String psd_file_name) {
+		psd_files.remove(psd_file_name);
+	}
+
+	public synchronized void write (File file) throws IOException {
+		StringBuilder text = new StringBuilder();
+		for (Map.Entry<String, HashMap<String, String>> psd : psd_files.entrySet()) {
+			for (Map.Entry<String, String> layer : psd.getValue().entrySet()) {
+				text.append(psd.getKey()).append('\t').append(layer.getKey()).append('\t').append(layer.getValue()).append('\n');
+			}
+		}
+		FileOutputStream os = file.newOutputStream();
+		OutputStream java_stream = os.toJavaOutputStream();
+		java_stream.write(text.toString().getBytes(StandardCharsets.UTF_8));
+		java_stream.close();
+	}
+
+}
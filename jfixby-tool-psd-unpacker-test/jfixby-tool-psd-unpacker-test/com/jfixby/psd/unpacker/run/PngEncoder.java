@@ -0,0 +1,356 @@
+package com.jfixby.psd.unpacker.run;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/** PNG writer working on ARGB pixel arrays. Rows are filtered and deflated in blocks on several threads: every block is an
+ * independent raw deflate stream primed with the last 32 KB of the block before it and ended with a sync flush, so the
+ * concatenation is one valid zlib stream (the way pigz does it). The Adler-32 checksums of the blocks are combined at the
+ * end. Fully opaque images are written as RGB. */
+public class PngEncoder implements RasterEncoder {
+
+	public enum Filter {
+		NONE, SUB, UP, AVERAGE, PAETH,
+		/** per row the filter with the smallest sum of absolute differences, like ImageIO */
+		ADAPTIVE
+	}
+
+	/** same as the PNG writer of the JDK, most of the size gain of level 6 at a third of the time */
+	public static final int DEFAULT_LEVEL = 4;
+	/** uncompressed bytes per block */
+	static final int BLOCK_SIZE = 256 * 1024;
+	static final int DICTIONARY_SIZE = 32 * 1024;
+	static final byte[] SIGNATURE = new byte[] {(byte)0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+	static final int COLOR_TYPE_RGB = 2;
+	static final int COLOR_TYPE_RGBA = 6;
+
+	private int level = DEFAULT_LEVEL;
+	private Filter filter = Filter.ADAPTIVE;
+	private ExecutorService executor;
+
+	/** @param level deflate level 0-9 */
+	public void setLevel (int level) {
+		if (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+			throw new IllegalArgumentException("level " + level);
+		}
+		this.level = level;
+	}
+
+	public void setFilter (Filter filter) {
+		this.filter = filter;
+	}
+
+	/** Blocks are filtered and deflated on this executor, the common fork-join pool if null. */
+	public void setExecutor (ExecutorService executor) {
+		this.executor = executor;
+	}
+
+	@Override
+	public String getName () {
+		return RasterEncoders.PNG;
+	}
+
+	@Override
+	public String getFileExtension () {
+		return RasterEncoders.PNG;
+	}
+
+	@Override
+	public void write (final int[] argb, final int width, final int height, OutputStream out) throws IOException {
+		if (width < 1 || height < 1 || (long)width * height > argb.length) {
+			throw new IllegalArgumentException("size " + width + "x" + height + " for " + argb.length + " pixels");
+		}
+		final int bpp = isOpaque(argb, width * height) ? 3 : 4;
+		final int row_bytes = 1 + width * bpp;
+		final int rows_per_block = Math.max(1, BLOCK_SIZE / row_bytes);
+		final int blocks = (height + rows_per_block - 1) / rows_per_block;
+
+		// filtering needs only the pixels, so all blocks go at once
+		ArrayList<Callable<byte[]>> filtering = new ArrayList<Callable<byte[]>>();
+		for (int i = 0; i < blocks; i++) {
+			final int first = i * rows_per_block;
+			final int last = Math.min(height, first + rows_per_block);
+			filtering.add(new Callable<byte[]>() {
+				@Override
+				public byte[] call () {
+					return filterRows(argb, width, bpp, first, last);
+				}
+			});
+		}
+		final List<byte[]> filtered = run(filtering);
+
+		// deflating needs the block before as dictionary, which is filtered by now
+		ArrayList<Callable<byte[]>> deflating = new ArrayList<Callable<byte[]>>();
+		final long[] adlers = new long[blocks];
+		for (int i = 0; i < blocks; i++) {
+			final int index = i;
+			deflating.add(new Callable<byte[]>() {
+				@Override
+				public byte[] call () {
+					byte[] data = filtered.get(index);
+					Adler32 adler = new Adler32();
+					adler.update(data, 0, data.length);
+					adlers[index] = adler.getValue();
+					byte[] dictionary = index == 0 ? null : filtered.get(index - 1);
+					return deflate(data, dictionary, index == blocks - 1);
+				}
+			});
+		}
+		List<byte[]> compressed = run(deflating);
+
+		long adler = adlers[0];
+		for (int i = 1; i < blocks; i++) {
+			adler = adler32Combine(adler, adlers[i], filtered.get(i).length);
+		}
+
+		DataOutputStream data = new DataOutputStream(out);
+		data.write(SIGNATURE);
+		ByteArrayOutputStream ihdr = new ByteArrayOutputStream(13);
+		DataOutputStream header = new DataOutputStream(ihdr);
+		header.writeInt(width);
+		header.writeInt(height);
+		header.writeByte(8);
+		header.writeByte(bpp == 3 ? COLOR_TYPE_RGB : COLOR_TYPE_RGBA);
+		header.writeByte(0);
+		header.writeByte(0);
+		header.writeByte(0);
+		writeChunk(data, "IHDR", ihdr.toByteArray(), 0, ihdr.size());
+
+		writeChunk(data, "IDAT", zlibHeader(level), 0, 2);
+		for (int i = 0; i < blocks; i++) {
+			byte[] block = compressed.get(i);
+			writeChunk(data, "IDAT", block, 0, block.length);
+		}
+		byte[] trailer = new byte[] {(byte)(adler >>> 24), (byte)(adler >>> 16), (byte)(adler >>> 8), (byte)adler};
+		writeChunk(data, "IDAT", trailer, 0, 4);
+		writeChunk(data, "IEND", new byte[0], 0, 0);
+		data.flush();
+	}
+
+	private <T> List<T> run (ArrayList<Callable<T>> tasks) throws IOException {
+		if (tasks.size() == 1) {
+			try {
+				ArrayList<T> result = new ArrayList<T>();
+				result.add(tasks.get(0).call());
+				return result;
+			} catch (Exception e) {
+				throw new IOException(e);
+			}
+		}
+		ExecutorService executor = this.executor != null ? this.executor : ForkJoinPool.commonPool();
+		try {
+			ArrayList<T> result = new ArrayList<T>();
+			for (Future<T> future : executor.invokeAll(tasks)) {
+				result.add(future.get());
+			}
+			return result;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted", e);
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		}
+	}
+
+	static boolean isOpaque (int[] argb, int n) {
+		int alpha = 0xff000000;
+		for (int i = 0; i < n; i++) {
+			alpha = alpha & argb[i];
+		}
+		return alpha == 0xff000000;
+	}
+
+	/** @return rows [first, last) with a filter type byte in front of each */
+	byte[] filterRows (int[] argb, int width, int bpp, int first, int last) {
+		int row_bytes = width * bpp;
+		byte[] result = new byte[(last - first) * (row_bytes + 1)];
+		byte[] prior = new byte[row_bytes];
+		byte[] raw = new byte[row_bytes];
+		byte[][] candidates = new byte[filter == Filter.ADAPTIVE ? 5 : 1][row_bytes];
+		if (first > 0) {
+			toBytes(argb, (first - 1) * width, width, bpp, prior);
+		}
+		int pos = 0;
+		for (int y = first; y < last; y++) {
+			toBytes(argb, y * width, width, bpp, raw);
+			if (filter == Filter.ADAPTIVE) {
+				int best = 0;
+				long best_sum = Long.MAX_VALUE;
+				for (int type = 0; type < 5; type++) {
+					long sum = filterRow(type, raw, prior, bpp, candidates[type]);
+					if (sum < best_sum) {
+						best = type;
+						best_sum = sum;
+					}
+				}
+				result[pos] = (byte)best;
+				System.arraycopy(candidates[best], 0, result, pos + 1, row_bytes);
+			} else {
+				int type = filter.ordinal();
+				result[pos] = (byte)type;
+				filterRow(type, raw, prior, bpp, candidates[0]);
+				System.arraycopy(candidates[0], 0, result, pos + 1, row_bytes);
+			}
+			pos = pos + row_bytes + 1;
+			byte[] swap = prior;
+			prior = raw;
+			raw = swap;
+		}
+		return result;
+	}
+
+	private static void toBytes (int[] argb, int offset, int width, int bpp, byte[] row) {
+		int j = 0;
+		if (bpp == 3) {
+			for (int x = 0; x < width; x++) {
+				int p = argb[offset + x];
+				row[j++] = (byte)(p >>> 16);
+				row[j++] = (byte)(p >>> 8);
+				row[j++] = (byte)p;
+			}
+		} else {
+			for (int x = 0; x < width; x++) {
+				int p = argb[offset + x];
+				row[j++] = (byte)(p >>> 16);
+				row[j++] = (byte)(p >>> 8);
+				row[j++] = (byte)p;
+				row[j++] = (byte)(p >>> 24);
+			}
+		}
+	}
+
+	/** @return sum of the filtered bytes taken as signed values, the usual adaptive heuristic */
+	private static long filterRow (int type, byte[] raw, byte[] prior, int bpp, byte[] out) {
+		int n = raw.length;
+		switch (type) {
+		case 1:
+			for (int i = 0; i < n; i++) {
+				out[i] = (byte)(raw[i] - (i >= bpp ? raw[i - bpp] : 0));
+			}
+			break;
+		case 2:
+			for (int i = 0; i < n; i++) {
+				out[i] = (byte)(raw[i] - prior[i]);
+			}
+			break;
+		case 3:
+			for (int i = 0; i < n; i++) {
+				int a = i >= bpp ? raw[i - bpp] & 0xff : 0;
+				out[i] = (byte)(raw[i] - ((a + (prior[i] & 0xff)) >>> 1));
+			}
+			break;
+		case 4:
+			for (int i = 0; i < n; i++) {
+				int a = i >= bpp ? raw[i - bpp] & 0xff : 0;
+				int c = i >= bpp ? prior[i - bpp] & 0xff : 0;
+				out[i] = (byte)(raw[i] - paeth(a, prior[i] & 0xff, c));
+			}
+			break;
+		default:
+			System.arraycopy(raw, 0, out, 0, n);
+		}
+		long sum = 0;
+		for (int i = 0; i < n; i++) {
+			sum = sum + Math.abs(out[i]);
+		}
+		return sum;
+	}
+
+	private static int paeth (int a, int b, int c) {
+		int p = a + b - c;
+		int pa = Math.abs(p - a);
+		int pb = Math.abs(p - b);
+		int pc = Math.abs(p - c);
+		if (pa <= pb && pa <= pc) {
+			return a;
+		}
+		return pb <= pc ? b : c;
+	}
+
+	/** @return raw deflate data, byte aligned by a sync flush unless it is the last block */
+	private byte[] deflate (byte[] data, byte[] dictionary, boolean last) {
+		Deflater deflater = new Deflater(level, true);
+		try {
+			if (dictionary != null) {
+				int length = Math.min(DICTIONARY_SIZE, dictionary.length);
+				deflater.setDictionary(dictionary, dictionary.length - length, length);
+			}
+			deflater.setInput(data);
+			if (last) {
+				deflater.finish();
+			}
+			byte[] buffer = new byte[Math.max(1024, data.length / 2)];
+			int size = 0;
+			while (true) {
+				if (size == buffer.length) {
+					buffer = Arrays.copyOf(buffer, buffer.length * 2);
+				}
+				int n = last ? deflater.deflate(buffer, size, buffer.length - size)
+					: deflater.deflate(buffer, size, buffer.length - size, Deflater.SYNC_FLUSH);
+				size = size + n;
+				if (last ? deflater.finished() : size < buffer.length) {
+					// a sync flush that did not fill the buffer has written everything
+					return Arrays.copyOf(buffer, size);
+				}
+			}
+		} finally {
+			deflater.end();
+		}
+	}
+
+	private static byte[] zlibHeader (int level) {
+		int flevel = level < 2 ? 0 : level < 6 ? 1 : level == 6 ? 2 : 3;
+		int cmf = 0x78;
+		int flg = flevel << 6;
+		flg = flg + 31 - ((cmf << 8) + flg) % 31;
+		return new byte[] {(byte)cmf, (byte)flg};
+	}
+
+	/** Checksum of two concatenated pieces from the checksums of the pieces, as adler32_combine() in zlib. */
+	static long adler32Combine (long adler1, long adler2, long length2) {
+		final long base = 65521;
+		long rem = length2 % base;
+		long sum1 = adler1 & 0xffff;
+		long sum2 = (rem * sum1) % base;
+		sum1 = sum1 + (adler2 & 0xffff) + base - 1;
+		sum2 = sum2 + ((adler1 >>> 16) & 0xffff) + ((adler2 >>> 16) & 0xffff) + base - rem;
+		if (sum1 >= base) {
+			sum1 = sum1 - base;
+		}
+		if (sum1 >= base) {
+			sum1 = sum1 - base;
+		}
+		if (sum2 >= base << 1) {
+			sum2 = sum2 - (base << 1);
+		}
+		if (sum2 >= base) {
+			sum2 = sum2 - base;
+		}
+		return (sum2 << 16) | sum1;
+	}
+
+	private static void writeChunk (DataOutputStream out, String type, byte[] data, int offset, int length) throws IOException {
+		byte[] type_bytes = type.getBytes("US-ASCII");
+		CRC32 crc = new CRC32();
+		crc.update(type_bytes);
+		crc.update(data, offset, length);
+		out.writeInt(length);
+		out.write(type_bytes);
+		out.write(data, offset, length);
+		out.writeInt((int)crc.getValue());
+	}
+
+}
@@ -0,0 +1,109 @@
+package com.jfixby.psd.unpacker.run;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/** The "Quite OK Image" format: one pass over the pixels with runs, a 64 entry cache of recent colors and small deltas, a lot
+ * faster than deflate at a somewhat larger size. Fully opaque images are written with three channels. */
+public class QoiEncoder implements RasterEncoder {
+
+	static final int OP_INDEX = 0x00;
+	static final int OP_DIFF = 0x40;
+	static final int OP_LUMA = 0x80;
+	static final int OP_RUN = 0xc0;
+	static final int OP_RGB = 0xfe;
+	static final int OP_RGBA = 0xff;
+	static final int MAX_RUN = 62;
+	static final int HEADER_SIZE = 14;
+	static final byte[] END = new byte[] {0, 0, 0, 0, 0, 0, 0, 1};
+	/** the longest operation takes five bytes */
+	static final int BUFFER_SIZE = 64 * 1024;
+
+	@Override
+	public String getName () {
+		return RasterEncoders.QOI;
+	}
+
+	@Override
+	public String getFileExtension () {
+		return RasterEncoders.QOI;
+	}
+
+	@Override
+	public void write (int[] argb, int width, int height, OutputStream out) throws IOException {
+		int n = width * height;
+		byte[] buffer = new byte[BUFFER_SIZE];
+		buffer[0] = 'q';
+		buffer[1] = 'o';
+		buffer[2] = 'i';
+		buffer[3] = 'f';
+		RawEncoder.putInt(buffer, 4, width);
+		RawEncoder.putInt(buffer, 8, height);
+		buffer[12] = (byte)(PngEncoder.isOpaque(argb, n) ? 3 : 4);
+		// sRGB with linear alpha
+		buffer[13] = 0;
+		int size = HEADER_SIZE;
+
+		int[] index = new int[64];
+		int previous = 0xff000000;
+		int run = 0;
+		for (int i = 0; i < n; i++) {
+			if (size + 5 > buffer.length) {
+				out.write(buffer, 0, size);
+				size = 0;
+			}
+			int p = argb[i];
+			if (p == previous) {
+				run++;
+				if (run == MAX_RUN || i == n - 1) {
+					buffer[size++] = (byte)(OP_RUN | (run - 1));
+					run = 0;
+				}
+				continue;
+			}
+			if (run > 0) {
+				buffer[size++] = (byte)(OP_RUN | (run - 1));
+				run = 0;
+			}
+			int a = p >>> 24;
+			int r = (p >>> 16) & 0xff;
+			int g = (p >>> 8) & 0xff;
+			int b = p & 0xff;
+			int hash = (r * 3 + g * 5 + b * 7 + a * 11) & 63;
+			if (index[hash] == p) {
+				buffer[size++] = (byte)(OP_INDEX | hash);
+			} else {
+				index[hash] = p;
+				if (a == previous >>> 24) {
+					int vr = (byte)(r - ((previous >>> 16) & 0xff));
+					int vg = (byte)(g - ((previous >>> 8) & 0xff));
+					int vb = (byte)(b - (previous & 0xff));
+					int vg_r = vr - vg;
+					int vg_b = vb - vg;
+					if (vr > -3 && vr < 2 && vg > -3 && vg < 2 && vb > -3 && vb < 2) {
+						buffer[size++] = (byte)(OP_DIFF | (vr + 2) << 4 | (vg + 2) << 2 | (vb + 2));
+					} else if (vg_r > -9 && vg_r < 8 && vg > -33 && vg < 32 && vg_b > -9 && vg_b < 8) {
+						buffer[size++] = (byte)(OP_LUMA | (vg + 32));
+						buffer[size++] = (byte)((vg_r + 8) << 4 | (vg_b + 8));
+					} else {
+						buffer[size++] = (byte)OP_RGB;
+						buffer[size++] = (byte)r;
+						buffer[size++] = (byte)g;
+						buffer[size++] = (byte)b;
+					}
+				} else {
+					buffer[size++] = (byte)OP_RGBA;
+					buffer[size++] = (byte)r;
+					buffer[size++] = (byte)g;
+					buffer[size++] = (byte)b;
+					buffer[size++] = (byte)a;
+				}
+			}
+			previous = p;
+		}
+		out.write(buffer, 0, size);
+		out.write(END);
+		out.flush();
+	}
+
+}
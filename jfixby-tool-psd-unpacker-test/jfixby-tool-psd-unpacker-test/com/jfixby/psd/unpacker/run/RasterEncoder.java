@@ -0,0 +1,20 @@
+package com.jfixby.psd.unpacker.run;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/** Writes decoded rasters in one file format. Besides the formats built into {@link RasterEncoders}, encoders are looked up
+ * with {@link java.util.ServiceLoader}: an implementation with a public no-argument constructor is listed in
+ * META-INF/services/com.jfixby.psd.unpacker.run.RasterEncoder on the class path. */
+public interface RasterEncoder {
+
+	/** @return the name that selects this encoder, e.g. "qoi" */
+	String getName ();
+
+	/** @return file name extension of the output, without the dot */
+	String getFileExtension ();
+
+	/** @param argb pixels row by row, not premultiplied, as stored by {@link java.awt.image.BufferedImage#TYPE_INT_ARGB} */
+	void write (int[] argb, int width, int height, OutputStream out) throws IOException;
+
+}
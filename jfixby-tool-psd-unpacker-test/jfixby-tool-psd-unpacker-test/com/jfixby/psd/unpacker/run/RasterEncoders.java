@@ -0,0 +1,56 @@
+package com.jfixby.psd.unpacker.run;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.ServiceLoader;
+
+import com.jfixby.psd.unpacker.core.RasterPixels;
+
+/** The built-in encoders plus the ones found by {@link ServiceLoader}. Every lookup returns a new encoder, so settings made on
+ * it stay with one run. */
+public class RasterEncoders {
+
+	public static final String PNG = "png";
+	public static final String QOI = "qoi";
+	public static final String RGBA = "rgba";
+	public static final String BGRA = "bgra";
+
+	/** @return the encoder with this name, null if there is none */
+	public static RasterEncoder forName (String name) {
+		for (RasterEncoder encoder : list()) {
+			if (encoder.getName().equalsIgnoreCase(name)) {
+				return encoder;
+			}
+		}
+		return null;
+	}
+
+	/** @return built-in encoders first, then the ones from service providers */
+	public static List<RasterEncoder> list () {
+		ArrayList<RasterEncoder> result = new ArrayList<RasterEncoder>();
+		result.add(new PngEncoder());
+		result.add(new QoiEncoder());
+		result.add(new RawEncoder(false));
+		result.add(new RawEncoder(true));
+		for (RasterEncoder encoder : ServiceLoader.load(RasterEncoder.class)) {
+			result.add(encoder);
+		}
+		return result;
+	}
+
+	/** Passes the pixel array of the image to the encoder without copying it when the image stores ARGB row by row. Pixels of a
+	 * premultiplied image are written premultiplied. */
+	public static void write (RasterEncoder encoder, BufferedImage image, OutputStream out) throws IOException {
+		int w = image.getWidth();
+		int h = image.getHeight();
+		int[] argb = RasterPixels.pixelsOf(image);
+		if (argb == null) {
+			argb = RasterPixels.getPixels(image, 0, 0, w, h, null);
+		}
+		encoder.write(argb, w, h, out);
+	}
+
+}
@@ -0,0 +1,66 @@
+package com.jfixby.psd.unpacker.run;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/** Uncompressed 8 bit pixels behind a 12 byte header: the channel order as four ASCII letters ("RGBA" or "BGRA"), then width
+ * and height as big-endian 32 bit integers. Meant for intermediate files that are read back right away. */
+public class RawEncoder implements RasterEncoder {
+
+	static final int HEADER_SIZE = 12;
+	static final int BUFFER_SIZE = 64 * 1024;
+
+	private final boolean bgra;
+
+	/** @param bgra blue first instead of red */
+	public RawEncoder (boolean bgra) {
+		this.bgra = bgra;
+	}
+
+	@Override
+	public String getName () {
+		return bgra ? RasterEncoders.BGRA : RasterEncoders.RGBA;
+	}
+
+	@Override
+	public String getFileExtension () {
+		return getName();
+	}
+
+	@Override
+	public void write (int[] argb, int width, int height, OutputStream out) throws IOException {
+		long n = (long)width * height;
+		byte[] buffer = new byte[(int)Math.min(BUFFER_SIZE, HEADER_SIZE + n * 4)];
+		String order = bgra ? "BGRA" : "RGBA";
+		for (int i = 0; i < 4; i++) {
+			buffer[i] = (byte)order.charAt(i);
+		}
+		putInt(buffer, 4, width);
+		putInt(buffer, 8, height);
+		int size = HEADER_SIZE;
+		int near = bgra ? 0 : 16;
+		int far = bgra ? 16 : 0;
+		for (int i = 0; i < n; i++) {
+			if (size + 4 > buffer.length) {
+				out.write(buffer, 0, size);
+				size = 0;
+			}
+			int p = argb[i];
+			buffer[size] = (byte)(p >>> near);
+			buffer[size + 1] = (byte)(p >>> 8);
+			buffer[size + 2] = (byte)(p >>> far);
+			buffer[size + 3] = (byte)(p >>> 24);
+			size = size + 4;
+		}
+		out.write(buffer, 0, size);
+		out.flush();
+	}
+
+	static void putInt (byte[] buffer, int offset, int value) {
+		buffer[offset] = (byte)(value >>> 24);
+		buffer[offset + 1] = (byte)(value >>> 16);
+		buffer[offset + 2] = (byte)(value >>> 8);
+		buffer[offset + 3] = (byte)value;
+	}
+
+}
@@ -1,16 +1,24 @@
-
 package com.jfixby.psd.unpacker.run;
 
 import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.io.OutputStream;
-
-import javax.imageio.ImageIO;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 
 import com.jfixby.psd.unpacker.api.PSDFileContent;
 import com.jfixby.psd.unpacker.api.PSDLayer;
+import com.jfixby.psd.unpacker.api.PSDLayerFilter;
+import com.jfixby.psd.unpacker.api.PSDLayerRecord;
+import com.jfixby.psd.unpacker.api.PSDLayerSelector;
 import com.jfixby.psd.unpacker.api.PSDRaster;
 import com.jfixby.psd.unpacker.api.PSDRootLayer;
+import com.jfixby.psd.unpacker.api.PSDUnpackMetrics;
 import com.jfixby.psd.unpacker.api.PSDUnpacker;
 import com.jfixby.psd.unpacker.api.PSDUnpackingParameters;
 import com.jfixby.scarabei.api.file.File;
@@ -24,6 +32,35 @@ import com.jfixby.scarabei.red.desktop.ScarabeiDesktop;
 
 public class UnpackAll {
 
+	/** Only layers whose pixels changed since the previous run are decoded and written. */
+	public static final String INCREMENTAL = "--incremental";
+	/** Visible layers are packed into atlas pages instead of being written one file each. */
+	public static final String ATLAS = "--atlas";
+	/** With --atlas: only the layers of this group are packed, e.g. --atlas-group=ui/buttons */
+	public static final String ATLAS_GROUP = "--atlas-group=";
+	/** With --atlas: transparent borders of the layers are cut off. */
+	public static final String TRIM = "--trim";
+	/** Output format, e.g. --format=qoi, see {@link RasterEncoders}. PNG by default. */
+	public static final String FORMAT = "--format=";
+	/** Deflate level of the written PNG files, 0-9, e.g. --png-level=9 */
+	public static final String PNG_LEVEL = "--png-level=";
+	/** Row filter of the written PNG files: none, sub, up, average, paeth or adaptive, e.g. --png-filter=paeth */
+	public static final String PNG_FILTER = "--png-filter=";
+	/** After the first pass every saved PSD file is unpacked again, see {@link WatchDaemon}. The folder is watched from the
+	 * start, files saved during the first pass are picked up after it. Implies --incremental. Outputs are replaced
+	 * atomically. */
+	public static final String WATCH = "--watch";
+	/** Unpacks running in parallel wait while their decoded rasters would exceed this many megabytes, e.g.
+	 * --memory-budget=2048, see {@link com.jfixby.psd.unpacker.api.PSDMemoryGovernor}. Large files are not split into layer
+	 * tasks then, every file is unpacked whole under the budget. */
+	public static final String MEMORY_BUDGET = "--memory-budget=";
+	/** Layers are written with their colors multiplied by alpha, e.g. for engines that blend premultiplied textures. */
+	public static final String PREMULTIPLIED = "--premultiplied";
+
+	/** output folder as a path, set when outputs are written atomically */
+	private static Path atomic_output;
+	private static boolean premultiplied;
+
 	private static final FileFilter filter = new FileFilter() {
 
 		@Override
@@ -53,54 +90,279 @@ public class UnpackAll {
 		File output_folder = home.child("unpacker-output");
 		output_folder.makeFolder();
 
+		String format = RasterEncoders.PNG;
+		for (String arg : args) {
+			if (arg.startsWith(FORMAT)) {
+				format = arg.substring(FORMAT.length());
+			}
+		}
+		RasterEncoder encoder = RasterEncoders.forName(format);
+		if (encoder == null) {
+			L.e("Unknown format", format);
+			Sys.exit();
+		}
+		if (encoder instanceof PngEncoder) {
+			PngEncoder png = (PngEncoder)encoder;
+			for (String arg : args) {
+				if (arg.startsWith(PNG_LEVEL)) {
+					png.setLevel(Integer.parseInt(arg.substring(PNG_LEVEL.length())));
+				}
+				if (arg.startsWith(PNG_FILTER)) {
+					png.setFilter(PngEncoder.Filter.valueOf(arg.substring(PNG_FILTER.length()).toUpperCase()));
+				}
+			}
+		}
+
+		for (String arg : args) {
+			if (arg.startsWith(MEMORY_BUDGET)) {
+				long megabytes = Long.parseLong(arg.substring(MEMORY_BUDGET.length()));
+				PSDUnpacker.getMemoryGovernor().setByteBudget(megabytes * 1024 * 1024);
+			}
+		}
+
+		premultiplied = Arrays.asList(args).contains(PREMULTIPLIED);
+
+		boolean watch = Arrays.asList(args).contains(WATCH);
+		if (watch) {
+			// the desktop application home is the working directory
+			atomic_output = Paths.get("unpacker-output").toAbsolutePath();
+			AtomicOutput.deleteLeftovers(atomic_output);
+		}
+		boolean incremental = Arrays.asList(args).contains(INCREMENTAL) || watch;
+		AtlasExport atlas = null;
+		if (Arrays.asList(args).contains(ATLAS)) {
+			atlas = new AtlasExport();
+			atlas.setEncoder(encoder);
+			atlas.setTrim(Arrays.asList(args).contains(TRIM));
+			for (String arg : args) {
+				if (arg.startsWith(ATLAS_GROUP)) {
+					atlas.setGroupPath(arg.substring(ATLAS_GROUP.length()));
+				}
+			}
+			if (incremental) {
+				// an atlas needs all of its layers, unchanged ones included
+				L.d(INCREMENTAL, "is ignored together with " + ATLAS);
+				incremental = false;
+			}
+		}
+		final File manifest_file = home.child("unpacker-output.manifest");
+		ExportManifest manifest = null;
+		if (incremental) {
+			manifest = ExportManifest.read(manifest_file);
+		}
+
+		HashSet<String> removed_psd_files = null;
+		if (manifest != null) {
+			removed_psd_files = new HashSet<String>(manifest.psdFiles());
+		}
+
+		final PSDUnpackMetrics metrics = PSDUnpacker.newMetrics();
+		ArrayList<File> psd_files = new ArrayList<File>();
 		for (int i = 0; i < input_files.size(); i++) {
 			File psd_file_i = input_files.getElementAt(i);
-			unpack(psd_file_i, output_folder);
+			psd_files.add(psd_file_i);
+			if (removed_psd_files != null) {
+				removed_psd_files.remove(psd_file_i.getName());
+			}
+		}
+		WatchDaemon daemon = null;
+		if (watch) {
+			// saves made during the first pass wait in the watcher until the pass is done
+			daemon = watcher(input_folder, output_folder, manifest, manifest_file, atlas, encoder, metrics);
+			daemon.open();
+		}
+		batch(psd_files, output_folder, manifest, atlas, encoder, metrics);
+
+		if (manifest != null) {
+			for (String psd_file_name : removed_psd_files) {
+				removeOutputs(output_folder, manifest.layersOf(psd_file_name).keySet());
+				manifest.remove(psd_file_name);
+			}
+			manifest.write(manifest_file);
+		}
+
+		L.d("unpacked", metrics);
+
+		if (daemon != null) {
+			try {
+				daemon.run();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private static void batch (List<File> psd_files, final File output_folder, final ExportManifest manifest,
+		final AtlasExport atlas, final RasterEncoder encoder, final PSDUnpackMetrics metrics) throws IOException {
+		BatchScheduler scheduler = new BatchScheduler(Paths.get("unpacker-input").toAbsolutePath(), output_folder, encoder,
+			new BatchScheduler.FileHandler() {
+				@Override
+				public void unpack (File psd_file) throws IOException {
+					UnpackAll.unpack(psd_file, output_folder, manifest, atlas, encoder, metrics);
+				}
+			});
+		// the manifest needs the fingerprints of every layer, an atlas needs all of its layers in one place, the index decodes
+		// plain alpha only and outside of the memory governor
+		scheduler.setSplit(manifest == null && atlas == null && !premultiplied
+			&& PSDUnpacker.getMemoryGovernor().getByteBudget() == 0);
+		scheduler.run(psd_files);
+	}
+
+	private static WatchDaemon watcher (final File input_folder, final File output_folder, final ExportManifest manifest,
+		final File manifest_file, final AtlasExport atlas, final RasterEncoder encoder, final PSDUnpackMetrics metrics) {
+		return new WatchDaemon(Paths.get("unpacker-input").toAbsolutePath(), new WatchDaemon.Handler() {
+			@Override
+			public void changed (String psd_file_name) throws IOException {
+				unpack(input_folder.child(psd_file_name), output_folder, manifest, atlas, encoder, metrics);
+				if (manifest != null) {
+					manifest.write(manifest_file);
+				}
+			}
+
+			@Override
+			public void removed (String psd_file_name) throws IOException {
+				if (manifest == null) {
+					L.d("outputs of removed " + psd_file_name, "are kept");
+					return;
+				}
+				removeOutputs(output_folder, manifest.layersOf(psd_file_name).keySet());
+				manifest.remove(psd_file_name);
+				manifest.write(manifest_file);
+			}
+		}, Runtime.getRuntime().availableProcessors());
+	}
+
+	/** Opens a file in the output folder for writing, atomically replaced on {@link #commitOutput(OutputStream)} in
+	 * {@link #WATCH} mode. */
+	static OutputStream openOutput (File output_folder, String output_name) throws IOException {
+		if (atomic_output != null) {
+			return AtomicOutput.open(atomic_output.resolve(output_name));
 		}
+		FileOutputStream os = output_folder.child(output_name).newOutputStream();
+		return os.toJavaOutputStream();
+	}
 
+	/** @return the options that change the written pixels, kept with the fingerprint of every layer in the manifest. Empty
+	 *         with the defaults, so manifests of earlier runs stay valid. */
+	static String outputOptions () {
+		return premultiplied ? "|premultiplied" : "";
 	}
 
-	private static void unpack (File psd_file_i, File output_folder) throws IOException {
+	/** Publishes a file opened with {@link #openOutput(File, String)} once it is written completely. The stream is closed in
+	 * a finally block afterwards, without the commit an atomic output is discarded there. */
+	static void commitOutput (OutputStream java_stream) throws IOException {
+		if (java_stream instanceof AtomicOutput.Stream) {
+			((AtomicOutput.Stream)java_stream).commit();
+		}
+	}
+
+	private static void unpack (File psd_file_i, final File output_folder, ExportManifest manifest, AtlasExport atlas,
+		RasterEncoder encoder, PSDUnpackMetrics metrics) throws IOException {
 
 		PSDUnpackingParameters specs = PSDUnpacker.newUnpackingSpecs();
 		specs.setPSDFile(psd_file_i);
+		specs.setPremultipliedAlpha(premultiplied);
+
+		final String psd_name = psd_file_i.nameWithoutExtension();
 
-		String psd_name = psd_file_i.nameWithoutExtension();
+		// hidden layers are never exported, so do not decode them either
+		final PSDLayerSelector visible_layers = PSDUnpacker.newLayerSelector();
+		visible_layers.setVisibleOnly(true);
+
+		if (manifest == null) {
+			specs.setLayerFilter(visible_layers);
+		} else {
+			final HashMap<String, String> previous = manifest.layersOf(psd_file_i.getName());
+			final HashMap<String, String> current = new HashMap<String, String>();
+			specs.setLayerFilter(new PSDLayerFilter() {
+				@Override
+				public boolean accept (PSDLayerRecord layer) {
+					if (!visible_layers.accept(layer)) {
+						return false;
+					}
+					String output_name = outputFileName(psd_name, layer.getName(), encoder);
+					// an output written with other pixel options counts as changed
+					String fingerprint = layer.getFingerprint() + outputOptions();
+					current.put(output_name, fingerprint);
+					return !fingerprint.equals(previous.get(output_name)) || !output_folder.child(output_name).exists();
+				}
+			});
+
+			HashSet<String> removed = new HashSet<String>(previous.keySet());
+			PSDFileContent result = PSDUnpacker.unpack(specs);
+			export(psd_name, result, output_folder, null, encoder, metrics);
+
+			removed.removeAll(current.keySet());
+			removeOutputs(output_folder, removed);
+			manifest.setLayers(psd_file_i.getName(), current);
+			return;
+		}
 
 		PSDFileContent result = PSDUnpacker.unpack(specs);
+		export(psd_name, result, output_folder, atlas, encoder, metrics);
+	}
 
-		result.print();
+	private static void export (String psd_name, PSDFileContent result, File output_folder, AtlasExport atlas,
+		RasterEncoder encoder, PSDUnpackMetrics metrics) throws IOException {
+		try {
+			result.print();
+			metrics.add(result.getMetrics());
 
-		PSDRootLayer root = result.getRootlayer();
+			if (atlas != null) {
+				atlas.export(psd_name, result, output_folder);
+				return;
+			}
 
-		for (int i = 0; i < root.numberOfChildren(); i++) {
-			PSDLayer child = root.getChild(i);
-			process_child(psd_name, child, output_folder);
+			PSDRootLayer root = result.getRootlayer();
+
+			for (int i = 0; i < root.numberOfChildren(); i++) {
+				PSDLayer child = root.getChild(i);
+				process_child(psd_name, child, output_folder, encoder);
+			}
+		} finally {
+			result.close();
 		}
 	}
 
-	private static void process_folder (String psd_name, PSDLayer root, File output_path) throws IOException {
+	private static void removeOutputs (File output_folder, java.util.Collection<String> output_names) {
+		for (String output_name : output_names) {
+			File output_file = output_folder.child(output_name);
+			L.d("removing", output_file);
+			output_file.delete();
+		}
+	}
+
+	static String outputFileName (String psd_name, String raster_name, RasterEncoder encoder) {
+		return psd_name + "." + raster_name + "." + encoder.getFileExtension();
+	}
+
+	private static void process_folder (String psd_name, PSDLayer root, File output_path, RasterEncoder encoder)
+		throws IOException {
 		for (int i = 0; i < root.numberOfChildren(); i++) {
 			PSDLayer child = root.getChild(i);
-			process_child(psd_name, child, output_path);
+			process_child(psd_name, child, output_path, encoder);
 		}
 	}
 
-	private static void process_child (String psd_name, PSDLayer child, File output_path) throws IOException {
+	private static void process_child (String psd_name, PSDLayer child, File output_path, RasterEncoder encoder)
+		throws IOException {
 		if (child.isVisible()) {
 			if (child.isFolder()) {
-				process_folder(psd_name, child, output_path);
+				process_folder(psd_name, child, output_path, encoder);
 			} else {
 				PSDRaster raster = child.getRaster();
 				BufferedImage java_image = raster.getBufferedImage();
 				String raster_name = child.getName();
-				File output_file = output_path.child(psd_name + "." + raster_name + ".png");
+				String output_name = outputFileName(psd_name, raster_name, encoder);
 
-				L.d("writing", output_file);
-				FileOutputStream os = output_file.newOutputStream();
-				OutputStream java_stream = os.toJavaOutputStream();
-				ImageIO.write(java_image, "png", java_stream);
-				java_stream.close();
+				L.d("writing", output_path.child(output_name));
+				OutputStream java_stream = openOutput(output_path, output_name);
+				try {
+					RasterEncoders.write(encoder, java_image, java_stream);
+					commitOutput(java_stream);
+				} finally {
+					java_stream.close();
+				}
 			}
 		}
 	}
@@ -49,6 +49,8 @@ public class UnpackExamplePSD {
 			process_child(child, output_folder);
 		}
 
+		result.close();
+
 	}
 
 	static int k = 0;
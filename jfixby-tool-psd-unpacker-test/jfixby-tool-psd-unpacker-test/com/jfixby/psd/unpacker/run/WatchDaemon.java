@@ -0,0 +1,270 @@
+package com.jfixby.psd.unpacker.run;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import com.jfixby.psd.unpacker.api.PSDFormatException;
+import com.jfixby.scarabei.api.log.L;
+
+/** Watches a folder and hands every PSD file that was saved or deleted to a handler on a pool of workers.
+ * <p>
+ * Events of a file are collected until the file stays quiet for {@link #DEFAULT_QUIET_MILLIS}, so a save that writes in
+ * several steps, or several saves in a row, give one call. A file is handled only when its size and modification time
+ * did not change over the quiet period, a copy still in progress waits. A file is never handled by two workers at once:
+ * changes that arrive while it is handled give one more call after that. Events that leave size and modification time as
+ * they were when the file was last handled are dropped. A file the handler failed on is tried again after
+ * {@link #RETRY_MILLIS}, one it rejected as broken waits for its next save. */
+public class WatchDaemon {
+
+	public static final long DEFAULT_QUIET_MILLIS = 250;
+	/** a file the handler failed on is tried again after this long */
+	public static final long RETRY_MILLIS = 5000;
+
+	public interface Handler {
+
+		void changed (String psd_file_name) throws IOException;
+
+		void removed (String psd_file_name) throws IOException;
+
+	}
+
+	/** Last seen state of a file with events that are not handled yet, size -1 if the file does not exist. */
+	static class Pending {
+		long due;
+		long size;
+		long modified;
+	}
+
+	private final Path folder;
+	private final Handler handler;
+	private final int workers;
+	private long quiet_millis = DEFAULT_QUIET_MILLIS;
+
+	private WatchService watcher;
+	private final HashMap<String, Pending> pending = new HashMap<String, Pending>();
+	/** state of every file when the handler last succeeded on it, guarded by running */
+	private final HashMap<String, Pending> handled = new HashMap<String, Pending>();
+	/** files the handler failed on, guarded by running */
+	private final HashSet<String> failed = new HashSet<String>();
+	/** files a worker is busy with, guarded by itself */
+	private final HashSet<String> running = new HashSet<String>();
+
+	public WatchDaemon (Path folder, Handler handler, int workers) {
+		this.folder = folder;
+		this.handler = handler;
+		this.workers = Math.max(1, workers);
+	}
+
+	public void setQuietMillis (long quiet_millis) {
+		this.quiet_millis = quiet_millis;
+	}
+
+	static boolean isPSD (String file_name) {
+		return file_name.toLowerCase().endsWith(".psd");
+	}
+
+	/** Starts to collect events, they wait in the watch service until {@link #run()}. Called before a first pass over the
+	 * folder, so files saved while it runs are not missed. */
+	public void open () throws IOException {
+		if (watcher != null) {
+			return;
+		}
+		watcher = folder.getFileSystem().newWatchService();
+		try {
+			folder.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY,
+				StandardWatchEventKinds.ENTRY_DELETE);
+		} catch (IOException e) {
+			watcher.close();
+			watcher = null;
+			throw e;
+		}
+		L.d("watching", folder);
+	}
+
+	/** Watches until the thread is interrupted, opens the watch service first if {@link #open()} was not called. */
+	public void run () throws IOException, InterruptedException {
+		open();
+		ExecutorService executor = Executors.newFixedThreadPool(workers);
+		try {
+			while (true) {
+				WatchKey key = watcher.poll(nextTimeout(), TimeUnit.MILLISECONDS);
+				long now = System.currentTimeMillis();
+				if (key != null) {
+					collect(key, now);
+					if (!key.reset()) {
+						L.e("watched folder is gone", folder);
+						return;
+					}
+				}
+				retry(now);
+				dispatch(executor, now);
+			}
+		} catch (ClosedWatchServiceException e) {
+			return;
+		} finally {
+			watcher.close();
+			watcher = null;
+			executor.shutdown();
+			executor.awaitTermination(1, TimeUnit.MINUTES);
+		}
+	}
+
+	private void collect (WatchKey key, long now) throws IOException {
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+				// events were lost, look at every file again
+				DirectoryStream<Path> files = Files.newDirectoryStream(folder);
+				try {
+					for (Path file : files) {
+						touch(file.getFileName().toString(), now);
+					}
+				} finally {
+					files.close();
+				}
+				continue;
+			}
+			touch(((Path)event.context()).getFileName().toString(), now);
+		}
+	}
+
+	/** Every event of a file restarts its quiet period. */
+	private void touch (String file_name, long now) {
+		if (!isPSD(file_name)) {
+			return;
+		}
+		Pending state = pending.get(file_name);
+		if (state == null) {
+			state = new Pending();
+			pending.put(file_name, state);
+		}
+		state.due = now + quiet_millis;
+		stat(file_name, state);
+	}
+
+	/** @return true if size or modification time of the file changed since the last look */
+	private boolean stat (String file_name, Pending state) {
+		Path file = folder.resolve(file_name);
+		long size = -1;
+		long modified = -1;
+		try {
+			size = Files.size(file);
+			modified = Files.getLastModifiedTime(file).toMillis();
+		} catch (NoSuchFileException e) {
+			// removed, or replaced and not there yet
+		} catch (IOException e) {
+			L.e("can not read " + file, e.getMessage());
+		}
+		boolean changed = size != state.size || modified != state.modified;
+		state.size = size;
+		state.modified = modified;
+		return changed;
+	}
+
+	/** Files the handler failed on wait {@link #RETRY_MILLIS}, unless a new event of the file comes first. */
+	private void retry (long now) {
+		synchronized (running) {
+			for (String file_name : failed) {
+				if (!pending.containsKey(file_name)) {
+					Pending state = new Pending();
+					state.due = now + RETRY_MILLIS;
+					stat(file_name, state);
+					pending.put(file_name, state);
+				}
+			}
+			failed.clear();
+		}
+	}
+
+	private long nextTimeout () {
+		if (pending.isEmpty()) {
+			return 1000;
+		}
+		long due = Long.MAX_VALUE;
+		for (Pending state : pending.values()) {
+			due = Math.min(due, state.due);
+		}
+		return Math.max(1, due - System.currentTimeMillis());
+	}
+
+	private void dispatch (ExecutorService executor, long now) {
+		Iterator<Map.Entry<String, Pending>> entries = pending.entrySet().iterator();
+		while (entries.hasNext()) {
+			Map.Entry<String, Pending> entry = entries.next();
+			Pending state = entry.getValue();
+			if (state.due > now) {
+				continue;
+			}
+			synchronized (running) {
+				if (running.contains(entry.getKey())) {
+					// handled right now, look again after the quiet period
+					state.due = now + quiet_millis;
+					continue;
+				}
+			}
+			if (stat(entry.getKey(), state)) {
+				// still being written
+				state.due = now + quiet_millis;
+				continue;
+			}
+			entries.remove();
+			synchronized (running) {
+				Pending last = handled.get(entry.getKey());
+				if (last != null && last.size == state.size && last.modified == state.modified) {
+					// an event without a new save, e.g. of a program that only opened the file
+					continue;
+				}
+				running.add(entry.getKey());
+			}
+			submit(executor, entry.getKey(), state);
+		}
+	}
+
+	private void submit (ExecutorService executor, final String file_name, final Pending state) {
+		executor.execute(new Runnable() {
+			@Override
+			public void run () {
+				boolean done = false;
+				boolean retry = false;
+				try {
+					if (state.size >= 0) {
+						handler.changed(file_name);
+					} else {
+						handler.removed(file_name);
+					}
+					done = true;
+				} catch (PSDFormatException e) {
+					// the previous outputs are kept until the file is fixed, saving it again gives a new event
+					L.e("rejected " + file_name, e.getMessage());
+				} catch (Throwable e) {
+					L.e("failed " + file_name, e);
+					retry = true;
+				} finally {
+					synchronized (running) {
+						running.remove(file_name);
+						if (done) {
+							handled.put(file_name, state);
+						} else if (retry) {
+							failed.add(file_name);
+						}
+					}
+				}
+			}
+		});
+	}
+
+}